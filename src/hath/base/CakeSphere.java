@@ -32,7 +32,7 @@ public class CakeSphere implements Runnable {
 	private boolean doResume;
 	
 	public CakeSphere(ServerHandler handler, HentaiAtHomeClient client) {
-		myThread = new Thread(this);
+		myThread = Tools.createThread(this);
 		this.handler = handler;
 		this.client = client;
 	}
@@ -51,7 +51,6 @@ public class CakeSphere implements Runnable {
 			Stats.serverContact();
 		}
 		else if(sr.getResponseStatus() == ServerResponse.RESPONSE_STATUS_NULL) {
-			Settings.markRPCServerFailure(sr.getFailHost());
 			Out.warning("Failed to connect to the server for the stillAlive test. This is probably a temporary connection problem.");
 		}
 		else if(sr.getFailCode().startsWith("TERM_BAD_NETWORK")) {
@@ -28,17 +28,21 @@ import java.io.*;
 import java.nio.*;
 import java.nio.channels.*;
 import java.nio.file.*;
+import java.security.MessageDigest;
+import java.util.concurrent.locks.ReentrantLock;
 import javax.net.ssl.HttpsURLConnection;
 
 public class FileDownloader implements Runnable {
 	private int timeout = 30000, maxDLTime = Integer.MAX_VALUE, retries = 3, contentLength = 0;
 	private long timeDownloadStart = 0, timeFirstByte = 0, timeDownloadFinish = 0;
 	private ByteBuffer byteBuffer = null;
+	private MessageDigest sha1Digest = null;
+	private String sha1Hash = null;
 	private HTTPBandwidthMonitor downloadLimiter = null;
 	private Path outputPath = null;
 	private URL source;
 	private Thread myThread;
-	private Object downloadLock = new Object();
+	private ReentrantLock downloadLock = new ReentrantLock();	// not a monitor, since blocking I/O while holding a monitor pins the carrier of a virtual thread
 	private boolean started = false, discardData = false, successful = false, allowProxy = false;
 
 	public FileDownloader(URL source, int timeout, int maxDLTime) {
@@ -69,6 +73,21 @@ public class FileDownloader implements Runnable {
 		downloadLimiter = limiter;
 	}
 
+	public void enableSHA1Digest() {
+		// hashes the data while it is received, so the caller can verify a file without reading it back from disk
+		try {
+			sha1Digest = MessageDigest.getInstance("SHA-1");
+		}
+		catch(java.security.NoSuchAlgorithmException e) {
+			HentaiAtHomeClient.dieWithError(e);
+		}
+	}
+
+	public String getSHA1Hash() {
+		// null unless enableSHA1Digest was called and the download was successful
+		return sha1Hash;
+	}
+
 	public boolean downloadFile() {
 		// this will block while the file is downloaded
 		if(myThread == null) {
@@ -85,7 +104,7 @@ public class FileDownloader implements Runnable {
 	public void startAsyncDownload() {
 		// start a new thread to handle the download. this will return immediately
 		if(myThread == null) {
-			myThread = new Thread(this);
+			myThread = Tools.createThread(this);
 			myThread.start();
 		}
 	}
@@ -101,10 +120,15 @@ public class FileDownloader implements Runnable {
 		}
 		catch(Exception e) {}
 
-		// synchronize on the download lock to wait for the download attempts to complete before returning
-		synchronized(downloadLock) {
+		// take the download lock to wait for the download attempts to complete before returning
+		downloadLock.lock();
+
+		try {
 			Out.debug("Finished async wait for source=" + source + " with timeDownloadStart=" + timeDownloadStart + " timeFirstByte=" + timeFirstByte + " timeDownloadFinish=" + timeDownloadFinish + " successful=" + successful);
 		}
+		finally {
+			downloadLock.unlock();
+		}
 
 		return successful;
 	}
@@ -136,36 +160,26 @@ public class FileDownloader implements Runnable {
 	}
 
 	public void run() {
-		synchronized(downloadLock) {
+		downloadLock.lock();
+
+		try {
 			if(started) {
 				return;
 			}
 
+			RandomAccessFile outputFile = null;
 			FileChannel outputChannel = null;
 			started = true;
 
 			while(!successful && --retries >= 0) {
 				InputStream is = null;
+				URLConnection connection = null;
 
 				try {
 					Out.debug("Connecting to " + source.getHost() + "...");
 
-					Proxy proxy = allowProxy ? Settings.getImageProxy() : null;
-
-					// should return a HttpURLConnection for http and HttpsURLConnection for https
-					URLConnection connection = null;
-
-					if(proxy != null) {
-						connection = source.openConnection(proxy);
-					}
-					else {
-						connection = source.openConnection();
-					}
-					
-					connection.setConnectTimeout(5000);
-					connection.setReadTimeout(timeout);
-					connection.setRequestProperty("Connection", "Close");
-					connection.setRequestProperty("User-Agent", "Hentai@Home " + Settings.CLIENT_VERSION);
+					// the connection is kept alive and reused for the next request to the same host, as long as the response is read to the end
+					connection = HTTPClient.openConnection(source, allowProxy, 5000, timeout);
 					connection.connect();
 					
 					/*
@@ -215,27 +229,35 @@ public class FileDownloader implements Runnable {
 						}
 						else {
 							if(outputChannel == null) {
-								outputChannel = FileChannel.open(outputPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+								outputFile = new RandomAccessFile(outputPath.toFile(), "rw");
+								outputChannel = outputFile.getChannel();
 								Out.debug("FileChannel for output opened");
 							}
-							else {
-								outputChannel.truncate(0);
-								Out.debug("Truncated open file, set position to " + outputChannel.position());
-							}
+
+							// setting the full length up front lets the filesystem allocate the file in one go instead of growing it with every write
+							outputFile.setLength(0);
+							outputFile.setLength(contentLength);
+							outputChannel.position(0);
 						}
 					}
 
+					if(sha1Digest != null) {
+						sha1Digest.reset();
+					}
+
 					Out.debug("Reading " + contentLength + " bytes from " + source);
 					timeDownloadStart = System.currentTimeMillis();
 
 					long writeoff = 0;	// counts the number of bytes read
 					int readbytes = 0;	// the number of bytes in the last read
+					int buffered = 0;	// the number of bytes in the buffer that have not been stored yet
 					
 					// HttpsURLConnection is retarded and breaks (does not download more data) unless we do a blocking read, so now we use a normal byte array as a buffer like some primitive savage
-					byte[] buffer = new byte[1500];
+					// the reads are collected in the array until it is full, so that the data is hashed and written in large blocks
+					byte[] buffer = new byte[65536];
 					
 					do {
-						readbytes = is.read(buffer);
+						readbytes = is.read(buffer, buffered, buffer.length - buffered);
 
 						if(readbytes > 0) {
 							//Out.debug("Read " + readbytes + " bytes of data");
@@ -244,18 +266,7 @@ public class FileDownloader implements Runnable {
 								timeFirstByte = System.currentTimeMillis();
 							}
 
-							if(discardData) {
-								//Out.debug("Skipped " + readbytes + " bytes");
-							}
-							else if(outputPath == null) {
-								byteBuffer.put(buffer, 0, readbytes);
-								//Out.debug("Added " + readbytes + " bytes to byteBuffer");
-							}
-							else {
-								outputChannel.write(ByteBuffer.wrap(buffer, 0, readbytes));
-								//Out.debug("Wrote " + readbytes + " bytes to outputChannel");
-							}
-							
+							buffered += readbytes;
 							writeoff += readbytes;
 							
 							/*
@@ -269,15 +280,28 @@ public class FileDownloader implements Runnable {
 								downloadLimiter.waitForQuota(Thread.currentThread(), (int) readbytes);
 							}
 						}
-					} while(readbytes > 0);
+
+						if(buffered > 0 && (buffered == buffer.length || readbytes < 0)) {
+							storeData(buffer, buffered, outputChannel);
+							buffered = 0;
+						}
+					} while(readbytes >= 0);
 
 					successful = writeoff == contentLength;
+
+					if(successful && sha1Digest != null) {
+						sha1Hash = Tools.binaryToHex(sha1Digest.digest());
+					}
+
 					timeDownloadFinish = System.currentTimeMillis();
 					long dltime = getDownloadTimeMillis();
 					Out.debug("Finished download for " + source + " in " + dltime + " ms" + (dltime > 0 ? ", speed=" + (writeoff / dltime) + "KB/s" : "") + ", writeoff=" + writeoff + ", successful=" + (successful ? "yes" : "no"));
 					Stats.bytesRcvd(contentLength);
 				}
 				catch(Exception e) {
+					// the connection may be in the middle of a response, so it cannot be reused
+					HTTPClient.discard(connection);
+
 					if(e instanceof java.io.FileNotFoundException) {
 						Out.warning("Server returned: 404 Not Found");
 						break;
@@ -298,9 +322,9 @@ public class FileDownloader implements Runnable {
 				}
 			}
 
-			if(outputChannel != null) {
+			if(outputFile != null) {
 				try {
-					outputChannel.close();
+					outputFile.close();
 
 					if(!successful) {
 						outputPath.toFile().delete();
@@ -312,8 +336,34 @@ public class FileDownloader implements Runnable {
 				Out.warning("Exhaused retries or aborted getting " + source);
 			}
 		}
+		finally {
+			downloadLock.unlock();
+		}
 	}
 	
+	private void storeData(byte[] buffer, int length, FileChannel outputChannel) throws IOException {
+		if(sha1Digest != null) {
+			sha1Digest.update(buffer, 0, length);
+		}
+
+		if(discardData) {
+			//Out.debug("Skipped " + length + " bytes");
+		}
+		else if(outputPath == null) {
+			byteBuffer.put(buffer, 0, length);
+			//Out.debug("Added " + length + " bytes to byteBuffer");
+		}
+		else {
+			ByteBuffer data = ByteBuffer.wrap(buffer, 0, length);
+
+			while(data.hasRemaining()) {
+				outputChannel.write(data);
+			}
+
+			//Out.debug("Wrote " + length + " bytes to outputChannel");
+		}
+	}
+
 	public static void main(String[] args) {
 		try {
 			/*
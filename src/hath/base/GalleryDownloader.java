@@ -28,6 +28,9 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Hashtable;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Pattern;
 import java.io.File;
 import java.net.URL;
@@ -38,6 +41,9 @@ public class GalleryDownloader implements Runnable {
 	private FileValidator validator;
 	protected HTTPBandwidthMonitor downloadLimiter;
 	private boolean downloadsAvailable = true, pendingDownload = false, markDownloaded = false;
+	// set by the thread that resolves the file URLs when it has queued the last file of a pass
+	private volatile boolean resolverDone = false;
+	private AtomicInteger successfulFiles = new AtomicInteger(0), totalFailedFiles = new AtomicInteger(0);
 	
 	private String title, information;
 	private GalleryFile[] galleryFiles;
@@ -67,51 +73,15 @@ public class GalleryDownloader implements Runnable {
 
 			Out.info("GalleryDownloader: Starting download of gallery: " + title);
 
-			int galleryretry = 0, totalFailedFiles = 0;
+			int galleryretry = 0;
 			boolean success = false;
-			
-			while(!success && ++galleryretry < 10 && totalFailedFiles < filecount * 2) {
-				int successfulFiles = 0;
-				
-				for(GalleryFile gFile : galleryFiles) {
-					if(client.isShuttingDown()) {
-						break;
-					}
-
-					long sleepTime = 0;
+			totalFailedFiles.set(0);
 
-					if(client.isSuspended()) {
-						sleepTime = 60000;
-					}
-					else if(downloadDirectoryHasLowSpace()) {
-						Out.warning("GalleryDownloader: Download suspended; there is less than the minimum allowed space left on the storage device.");
-						sleepTime = 300000;
-					}
-					else {
-						int downloadState = gFile.download();
-						
-						if(downloadState == GalleryFile.STATE_DOWNLOAD_SUCCESSFUL) {
-							++successfulFiles;
-							sleepTime = 1000;
-						}
-						else if(downloadState == GalleryFile.STATE_ALREADY_DOWNLOADED) {
-							++successfulFiles;
-						}
-						else if(downloadState == GalleryFile.STATE_DOWNLOAD_FAILED) {
-							++totalFailedFiles;
-							sleepTime = 5000;
-						}
-					}
+			while(!success && ++galleryretry < 10 && totalFailedFiles.get() < filecount * 2) {
+				successfulFiles.set(0);
+				downloadGalleryFiles();
 
-					if(sleepTime > 0) {
-						try {
-							myThread.sleep(sleepTime);
-						}
-						catch(java.lang.InterruptedException e) {}
-					}
-				}
-				
-				if(successfulFiles == filecount) {
+				if(successfulFiles.get() == filecount) {
 					success = true;
 				}
 			}
@@ -124,6 +94,77 @@ public class GalleryDownloader implements Runnable {
 		client.deleteDownloader();
 	}
 
+	// makes one pass over the files of the gallery. this thread requests the URL for each file in turn and hands it to the download workers through a short queue, so the URL for the next files is already known when a worker becomes free
+	private void downloadGalleryFiles() {
+		int threadCount = Math.max(1, Math.min(Settings.getDownloadThreads(), filecount));
+		ArrayBlockingQueue<GalleryFile> resolvedFiles = new ArrayBlockingQueue<GalleryFile>(threadCount);
+		Thread[] workers = new Thread[threadCount];
+		resolverDone = false;
+
+		for(int i = 0; i < threadCount; i++) {
+			workers[i] = Tools.createThread(new DownloadWorker(resolvedFiles));
+			workers[i].start();
+		}
+
+		for(GalleryFile gFile : galleryFiles) {
+			if(!waitUntilDownloadAllowed()) {
+				break;
+			}
+
+			if(gFile.isDownloaded(validator)) {
+				successfulFiles.incrementAndGet();
+				continue;
+			}
+
+			gFile.resolveSource();
+
+			try {
+				// blocks while the workers are busy, which limits how far ahead the URLs are requested
+				while(!resolvedFiles.offer(gFile, 1, TimeUnit.SECONDS)) {
+					if(client.isShuttingDown()) {
+						break;
+					}
+				}
+			}
+			catch(java.lang.InterruptedException e) {
+				break;
+			}
+		}
+
+		resolverDone = true;
+
+		for(Thread worker : workers) {
+			try {
+				worker.join();
+			}
+			catch(java.lang.InterruptedException e) {}
+		}
+	}
+
+	private boolean waitUntilDownloadAllowed() {
+		while(!client.isShuttingDown()) {
+			long sleepTime = 0;
+
+			if(client.isSuspended()) {
+				sleepTime = 60000;
+			}
+			else if(downloadDirectoryHasLowSpace()) {
+				Out.warning("GalleryDownloader: Download suspended; there is less than the minimum allowed space left on the storage device.");
+				sleepTime = 300000;
+			}
+			else {
+				return true;
+			}
+
+			try {
+				myThread.sleep(sleepTime);
+			}
+			catch(java.lang.InterruptedException e) {}
+		}
+
+		return false;
+	}
+
 	private boolean downloadDirectoryHasLowSpace() {
 		return !Settings.isSkipFreeSpaceCheck() && Settings.getDownloadDir().getFreeSpace() < Settings.getDiskMinRemainingBytes() + 1048576000;
 	}
@@ -167,13 +208,19 @@ public class GalleryDownloader implements Runnable {
 		}
 
 		// this does two things: marks the previous gallery as downloaded and removes it from the queue, and fetches metadata of the next gallery in the queue
+		String rpcHost = metaurl.getHost().toLowerCase();
+		long startTime = System.currentTimeMillis();
 		FileDownloader metaDownloader = new FileDownloader(metaurl, 30000, 30000);
 		String galleryMeta = metaDownloader.getResponseAsString("UTF8");
 
+		// this does not go through ServerResponse, so the result is recorded here. this request may have been picked as the probe for a failing RPC server
 		if(galleryMeta == null) {
+			RPCServerHealth.recordFailure(rpcHost, startTime);
 			return false;
 		}
 
+		RPCServerHealth.recordSuccess(rpcHost, System.currentTimeMillis() - startTime);
+
 		if(galleryMeta.equals("INVALID_REQUEST")) {
 			Out.warning("GalleryDownloader: Request was rejected by the server");
 			return false;
@@ -320,7 +367,7 @@ public class GalleryDownloader implements Runnable {
 		return gid > 0 && filecount > 0 && minxres != null && title != null && todir != null && galleryFiles != null;
 	}
 	
-	protected void logFailure(String fail) {
+	protected synchronized void logFailure(String fail) {
 		if(failures == null) {
 			failures = Collections.checkedList(new ArrayList<String>(), String.class);
 		}
@@ -330,11 +377,53 @@ public class GalleryDownloader implements Runnable {
 		}
 	}
 
+	private class DownloadWorker implements Runnable {
+		private ArrayBlockingQueue<GalleryFile> resolvedFiles;
+
+		public DownloadWorker(ArrayBlockingQueue<GalleryFile> resolvedFiles) {
+			this.resolvedFiles = resolvedFiles;
+		}
+
+		public void run() {
+			while(!client.isShuttingDown()) {
+				GalleryFile gFile = null;
+
+				try {
+					gFile = resolvedFiles.poll(1, TimeUnit.SECONDS);
+				}
+				catch(java.lang.InterruptedException e) {
+					break;
+				}
+
+				if(gFile == null) {
+					// the flag is set after the last file was queued, so the queue is final once we see it
+					if(resolverDone && resolvedFiles.isEmpty()) {
+						break;
+					}
+
+					continue;
+				}
+
+				if(gFile.download() == GalleryFile.STATE_DOWNLOAD_SUCCESSFUL) {
+					successfulFiles.incrementAndGet();
+				}
+				else {
+					totalFailedFiles.incrementAndGet();
+
+					try {
+						Thread.sleep(5000);
+					}
+					catch(java.lang.InterruptedException e) {}
+				}
+			}
+		}
+	}
+
 	private class GalleryFile {
 		public static final int STATE_DOWNLOAD_FAILED = 0;
 		public static final int STATE_DOWNLOAD_SUCCESSFUL = 1;
-		public static final int STATE_ALREADY_DOWNLOADED = 2;
 		private File tofile;
+		private URL source;
 		private String filetype, filename, xres, expectedSHA1Hash;
 		private int page, fileindex;
 		private int fileretry = 0;
@@ -350,9 +439,10 @@ public class GalleryDownloader implements Runnable {
 			tofile = new File(todir, filename + "." + filetype);
 		}
 
-		public int download() {
+		// checks if the file was completed in an earlier pass, or already exists in the download directory with the right hash
+		public boolean isDownloaded(FileValidator validator) {
 			if(fileComplete) {
-				return STATE_ALREADY_DOWNLOADED;
+				return true;
 			}
 
 			if(tofile.isFile()) {
@@ -377,25 +467,36 @@ public class GalleryDownloader implements Runnable {
 
 				if(verified) {
 					fileComplete = true;
-					return STATE_ALREADY_DOWNLOADED;
+					return true;
 				}
 				else {
 					tofile.delete();
 				}
 			}
 
+			return false;
+		}
+
+		public void resolveSource() {
 			// if this turns out to be a file that can be handled by this client, the returned link will be to localhost, which will trigger a static range fetch using the standard mechanism
 			// we don't have enough information at this point to initiate a ProxyFileDownload directly, so while the extra roundtrip might seem wasteful, it is necessary (and usually fairly rare)
-			URL source = client.getServerHandler().getDownloaderFetchURL(gid, page, fileindex, xres, ++fileretry);
+			source = client.getServerHandler().getDownloaderFetchURL(gid, page, fileindex, xres, ++fileretry);
+		}
 
+		public int download() {
 			if(source != null) {
 				try {
 					FileDownloader dler = new FileDownloader(source, 10000, 300000, tofile.toPath(), fileretry > 1);
 					dler.setDownloadLimiter(downloadLimiter);
+
+					if(expectedSHA1Hash != null) {
+						dler.enableSHA1Digest();
+					}
+
 					fileComplete = dler.downloadFile();
 
 					if(fileComplete && expectedSHA1Hash != null) {
-						if(!validator.validateFile(tofile.toPath(), expectedSHA1Hash)) {
+						if(!expectedSHA1Hash.equals(dler.getSHA1Hash())) {
 							fileComplete = false;
 							Out.debug("GalleryDownloader: Corrupted download for " + this + ", forcing retry");
 						}
@@ -0,0 +1,676 @@
+/*
+
+Copyright 2008-2024 E-Hentai.org
+https://forums.e-hentai.org/
+tenboro@e-hentai.org
+
+This file is part of Hentai@Home.
+
+Hentai@Home is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Hentai@Home is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Hentai@Home.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+
+package hath.base;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+// HTTP/2 framing for connections that negotiated h2 through ALPN. this runs on the event loop of the HTTPSessionNIO that owns the connection, and uses its TLS buffers for all network I/O.
+// each stream gets its own HTTP2Stream with an HTTPResponse and HTTPResponseProcessor, the same as an HTTP/1.1 request would. the response bodies are interleaved one DATA frame at a time, limited by the HTTP/2 flow control windows and the shared bandwidth quota.
+
+public class HTTP2Connection {
+	public static final int MAX_FRAME_LENGTH = 16384 + 9;
+
+	private static final byte[] CONNECTION_PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(Charset.forName("ISO-8859-1"));
+	private static final int FRAME_HEADER_LENGTH = 9, MAX_FRAME_SIZE = 16384, DEFAULT_WINDOW_SIZE = 65535, MAX_WINDOW_SIZE = 2147483647, MAX_CONCURRENT_STREAMS = 100, MAX_HEADER_LIST_SIZE = 16384;
+	private static final int TYPE_DATA = 0, TYPE_HEADERS = 1, TYPE_PRIORITY = 2, TYPE_RST_STREAM = 3, TYPE_SETTINGS = 4, TYPE_PUSH_PROMISE = 5, TYPE_PING = 6, TYPE_GOAWAY = 7, TYPE_WINDOW_UPDATE = 8, TYPE_CONTINUATION = 9;
+	private static final int FLAG_END_STREAM = 0x1, FLAG_ACK = 0x1, FLAG_END_HEADERS = 0x4, FLAG_PADDED = 0x8, FLAG_PRIORITY = 0x20;
+	private static final int ERROR_PROTOCOL = 0x1, ERROR_INTERNAL = 0x2, ERROR_FLOW_CONTROL = 0x3, ERROR_FRAME_SIZE = 0x6, ERROR_REFUSED_STREAM = 0x7, ERROR_COMPRESSION = 0x9;
+	private static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3, SETTINGS_INITIAL_WINDOW_SIZE = 0x4, SETTINGS_MAX_FRAME_SIZE = 0x5, SETTINGS_MAX_HEADER_LIST_SIZE = 0x6;
+
+	private HTTPSessionNIO session;
+	private HTTPBandwidthMonitor bwm;
+	private HTTP2HeaderCodec headerCodec;
+	private ByteBuffer appIn, appOut;
+	private HashMap<Integer,HTTP2Stream> streams;
+	private ArrayDeque<HTTP2Stream> sendQueue;
+	private ConcurrentLinkedQueue<HTTP2Stream> readyStreams;
+	private ByteArrayOutputStream headerBlock;
+	private int headerBlockStreamId = 0, lastStreamId = 0, connectionSendWindow = DEFAULT_WINDOW_SIZE, initialSendWindow = DEFAULT_WINDOW_SIZE;
+	private boolean prefaceReceived = false, goAwayReceived = false, waitingForQuota = false;
+	private volatile long lastActivity;
+
+	public HTTP2Connection(HTTPSessionNIO session, ByteBuffer appIn, HTTPBandwidthMonitor bwm) {
+		this.session = session;
+		this.appIn = appIn;
+		this.bwm = bwm;
+		headerCodec = new HTTP2HeaderCodec();
+		appOut = ByteBuffer.allocate(MAX_FRAME_LENGTH * 4);
+		streams = new HashMap<Integer,HTTP2Stream>();
+		sendQueue = new ArrayDeque<HTTP2Stream>();
+		readyStreams = new ConcurrentLinkedQueue<HTTP2Stream>();
+		headerBlock = new ByteArrayOutputStream(1024);
+		lastActivity = System.currentTimeMillis();
+
+		// the server connection preface is a SETTINGS frame, which we can send right away
+		writeFrameHeader(12, TYPE_SETTINGS, 0, 0);
+		writeSetting(SETTINGS_MAX_CONCURRENT_STREAMS, MAX_CONCURRENT_STREAMS);
+		writeSetting(SETTINGS_MAX_HEADER_LIST_SIZE, MAX_HEADER_LIST_SIZE);
+	}
+
+	// called by HTTPSessionNIO every time the session is stepped. returns false when the connection should be closed
+	public boolean step() throws Exception {
+		boolean outputFull = false, flushed = false;
+
+		flushOutput();
+
+		do {
+			// each of these stops when the output buffer is full. if the socket then takes all of it, there is no OP_WRITE coming to wake us up, so we have to go again
+			outputFull = readFrames();
+			outputFull |= startResponses();
+			outputFull |= sendData();
+			flushed = flushOutput();
+		} while(outputFull && flushed);
+
+		// unlike HTTP/1.1, the client can send us frames at any time, so we always want to know about incoming data
+		session.setInterest(SelectionKey.OP_READ | (flushed ? 0 : SelectionKey.OP_WRITE));
+
+		return !(goAwayReceived && streams.isEmpty() && flushed);
+	}
+
+	public void streamReady(HTTP2Stream stream) {
+		// called by the request processor thread when the response for a stream has been prepared
+		readyStreams.add(stream);
+		session.wakeUp();
+	}
+
+	public void connectionClosed() {
+		for(HTTP2Stream stream : streams.values()) {
+			stream.cancel();
+		}
+
+		streams.clear();
+		sendQueue.clear();
+	}
+
+	public boolean isStuck() {
+		return getStuckTime() < System.currentTimeMillis();
+	}
+
+	public long getStuckTime() {
+		// requests can take a long time to process if the file has to be proxied, so this uses the same timeout as HTTPSession does for a started request
+		return lastActivity + 180000;
+	}
+
+	public HTTPSessionNIO getSession() {
+		return session;
+	}
+
+	// returns true if it stopped because the output buffer is full
+	private boolean readFrames() throws Exception {
+		while(true) {
+			// make sure that any control frames we have to send in response will fit
+			if(appOut.remaining() < 1024) {
+				return true;
+			}
+
+			if(!processFrame()) {
+				if(!session.unwrap()) {
+					return false;
+				}
+
+				if(session.isHandshaking() && !session.processHandshake()) {
+					// post-handshake messages, like TLS 1.3 key updates
+					return false;
+				}
+			}
+		}
+	}
+
+	// processes a single frame from appIn. returns false if there is no complete frame in the buffer
+	private boolean processFrame() throws Exception {
+		byte[] data = appIn.array();
+		int available = appIn.position();
+
+		if(!prefaceReceived) {
+			if(available < CONNECTION_PREFACE.length) {
+				return false;
+			}
+
+			for(int i = 0; i < CONNECTION_PREFACE.length; i++) {
+				if(data[i] != CONNECTION_PREFACE[i]) {
+					throw new java.io.IOException("Invalid HTTP/2 connection preface");
+				}
+			}
+
+			prefaceReceived = true;
+			consumeInput(CONNECTION_PREFACE.length);
+			return true;
+		}
+
+		if(available < FRAME_HEADER_LENGTH) {
+			return false;
+		}
+
+		int length = ((data[0] & 0xff) << 16) | ((data[1] & 0xff) << 8) | (data[2] & 0xff);
+
+		if(length > MAX_FRAME_SIZE) {
+			connectionError(ERROR_FRAME_SIZE, "Frame exceeds the maximum size");
+		}
+
+		if(available < FRAME_HEADER_LENGTH + length) {
+			return false;
+		}
+
+		int type = data[3] & 0xff;
+		int flags = data[4] & 0xff;
+		int streamId = readInt(data, 5) & 0x7fffffff;
+
+		lastActivity = System.currentTimeMillis();
+		processFrame(type, flags, streamId, data, FRAME_HEADER_LENGTH, length);
+		consumeInput(FRAME_HEADER_LENGTH + length);
+		return true;
+	}
+
+	private void processFrame(int type, int flags, int streamId, byte[] data, int offset, int length) throws Exception {
+		if(headerBlockStreamId != 0 && type != TYPE_CONTINUATION) {
+			connectionError(ERROR_PROTOCOL, "Expected CONTINUATION frame");
+		}
+
+		switch(type) {
+			case TYPE_DATA:
+				if(streamId == 0) {
+					connectionError(ERROR_PROTOCOL, "DATA frame on stream 0");
+				}
+
+				// none of the requests we serve have a body, so the data is discarded. the flow control windows still have to be replenished
+				if(length > 0) {
+					writeWindowUpdate(0, length);
+
+					if(streams.containsKey(streamId)) {
+						writeWindowUpdate(streamId, length);
+					}
+				}
+				break;
+
+			case TYPE_HEADERS:
+				if(streamId == 0 || (streamId & 1) == 0) {
+					connectionError(ERROR_PROTOCOL, "Invalid stream id " + streamId + " for HEADERS frame");
+				}
+
+				int end = offset + length;
+
+				if((flags & FLAG_PADDED) != 0) {
+					end -= data[offset++] & 0xff;
+				}
+
+				if((flags & FLAG_PRIORITY) != 0) {
+					// stream priorities are ignored; all streams get an equal share
+					offset += 5;
+				}
+
+				if(offset > end) {
+					connectionError(ERROR_PROTOCOL, "Invalid padding in HEADERS frame");
+				}
+
+				headerBlock.reset();
+				headerBlock.write(data, offset, end - offset);
+				headerBlockStreamId = streamId;
+
+				if((flags & FLAG_END_HEADERS) != 0) {
+					processHeaderBlock();
+				}
+				break;
+
+			case TYPE_CONTINUATION:
+				if(streamId != headerBlockStreamId || streamId == 0) {
+					connectionError(ERROR_PROTOCOL, "Unexpected CONTINUATION frame");
+				}
+
+				if(headerBlock.size() + length > MAX_HEADER_LIST_SIZE) {
+					connectionError(ERROR_PROTOCOL, "Header block exceeds the maximum size");
+				}
+
+				headerBlock.write(data, offset, length);
+
+				if((flags & FLAG_END_HEADERS) != 0) {
+					processHeaderBlock();
+				}
+				break;
+
+			case TYPE_PRIORITY:
+				break;
+
+			case TYPE_RST_STREAM:
+				if(streamId == 0 || length != 4) {
+					connectionError(ERROR_PROTOCOL, "Invalid RST_STREAM frame");
+				}
+
+				HTTP2Stream resetStream = streams.get(streamId);
+
+				if(resetStream != null) {
+					Out.debug(resetStream + " Stream was reset by the client");
+					removeStream(resetStream);
+					resetStream.cancel();
+				}
+				break;
+
+			case TYPE_SETTINGS:
+				if(streamId != 0) {
+					connectionError(ERROR_PROTOCOL, "SETTINGS frame on stream " + streamId);
+				}
+
+				if((flags & FLAG_ACK) != 0) {
+					break;
+				}
+
+				if(length % 6 != 0) {
+					connectionError(ERROR_FRAME_SIZE, "Invalid SETTINGS frame length");
+				}
+
+				for(int i = offset; i < offset + length; i += 6) {
+					processSetting(((data[i] & 0xff) << 8) | (data[i + 1] & 0xff), readInt(data, i + 2));
+				}
+
+				writeFrameHeader(0, TYPE_SETTINGS, FLAG_ACK, 0);
+				break;
+
+			case TYPE_PUSH_PROMISE:
+				connectionError(ERROR_PROTOCOL, "Clients cannot push streams");
+				break;
+
+			case TYPE_PING:
+				if(streamId != 0 || length != 8) {
+					connectionError(ERROR_FRAME_SIZE, "Invalid PING frame");
+				}
+
+				if((flags & FLAG_ACK) == 0) {
+					writeFrameHeader(8, TYPE_PING, FLAG_ACK, 0);
+					appOut.put(data, offset, 8);
+				}
+				break;
+
+			case TYPE_GOAWAY:
+				// the client will not open any more streams. we finish the ones it has already opened, then close the connection
+				goAwayReceived = true;
+				break;
+
+			case TYPE_WINDOW_UPDATE:
+				if(length != 4) {
+					connectionError(ERROR_FRAME_SIZE, "Invalid WINDOW_UPDATE frame");
+				}
+
+				int increment = readInt(data, offset) & 0x7fffffff;
+
+				if(streamId == 0) {
+					if(increment == 0) {
+						// RFC 7540 6.9: a zero increment is a protocol error, only an overflow is a flow control error
+						connectionError(ERROR_PROTOCOL, "Zero increment in connection window update");
+					}
+
+					if((long) connectionSendWindow + increment > MAX_WINDOW_SIZE) {
+						connectionError(ERROR_FLOW_CONTROL, "Invalid connection window update");
+					}
+
+					connectionSendWindow += increment;
+				}
+				else {
+					HTTP2Stream stream = streams.get(streamId);
+
+					if(stream != null) {
+						if(increment == 0) {
+							writeRstStream(stream, ERROR_PROTOCOL);
+						}
+						else if((long) stream.getSendWindow() + increment > MAX_WINDOW_SIZE) {
+							writeRstStream(stream, ERROR_FLOW_CONTROL);
+						}
+						else {
+							stream.adjustSendWindow(increment);
+						}
+					}
+				}
+				break;
+
+			default:
+				// unknown frame types are ignored
+				break;
+		}
+	}
+
+	private void processSetting(int identifier, int value) throws java.io.IOException {
+		switch(identifier) {
+			case SETTINGS_INITIAL_WINDOW_SIZE:
+				if(value < 0) {
+					connectionError(ERROR_FLOW_CONTROL, "Invalid initial window size");
+				}
+
+				// the change applies to all the streams that are already open
+				int delta = value - initialSendWindow;
+				initialSendWindow = value;
+
+				for(HTTP2Stream stream : streams.values()) {
+					if((long) stream.getSendWindow() + delta > MAX_WINDOW_SIZE) {
+						// RFC 7540 6.9.2: a change that makes any stream window too large is a connection error
+						connectionError(ERROR_FLOW_CONTROL, "Initial window size change overflows a stream window");
+					}
+
+					stream.adjustSendWindow(delta);
+				}
+				break;
+
+			case SETTINGS_MAX_FRAME_SIZE:
+				// we never send frames larger than the default, so this only has to be validated
+				if(value < 16384 || value > 16777215) {
+					connectionError(ERROR_PROTOCOL, "Invalid max frame size");
+				}
+				break;
+
+			default:
+				// we do not use the dynamic table for response headers, and never push, so the other settings do not affect us
+				break;
+		}
+	}
+
+	private void processHeaderBlock() throws java.io.IOException {
+		int streamId = headerBlockStreamId;
+		headerBlockStreamId = 0;
+		List<String[]> headers = null;
+
+		try {
+			headers = headerCodec.decode(headerBlock.toByteArray(), headerBlock.size(), MAX_HEADER_LIST_SIZE);
+		}
+		catch(java.io.IOException e) {
+			connectionError(ERROR_COMPRESSION, e.getMessage());
+		}
+
+		if(streamId <= lastStreamId) {
+			// trailers on a stream we already have the request for. the header block had to be decoded anyway to keep the dynamic table in sync
+			return;
+		}
+
+		lastStreamId = streamId;
+
+		if(goAwayReceived || streams.size() >= MAX_CONCURRENT_STREAMS) {
+			writeFrameHeader(4, TYPE_RST_STREAM, 0, streamId);
+			appOut.putInt(ERROR_REFUSED_STREAM);
+			return;
+		}
+
+		String method = null, path = null;
+		List<String> headerLines = new ArrayList<String>();
+
+		for(String[] header : headers) {
+			if(header[0].equals(":method")) {
+				method = header[1];
+			}
+			else if(header[0].equals(":path")) {
+				path = header[1];
+			}
+			else if(header[0].equals("range") || header[0].startsWith("if-")) {
+				// the only regular request headers we care about. everything else, including the connection handling ones, does not apply to HTTP/2
+				headerLines.add(header[0] + ": " + header[1]);
+			}
+		}
+
+		// the request line is reconstructed from the pseudo-headers, so that HTTPResponse can parse it the same way as for HTTP/1.1. requests without one are answered with a 400, same as there
+		String request = method == null || path == null ? null : method + " " + path + " HTTP/2";
+		HTTP2Stream stream = new HTTP2Stream(this, session.getConnId(), streamId, initialSendWindow, request, session.isLocalNetworkAccess(), session.getHTTPServer());
+
+		for(String headerLine : headerLines) {
+			stream.processHeaderLine(headerLine);
+		}
+
+		if(streams.isEmpty()) {
+			session.keepAliveIdle = false;
+		}
+
+		streams.put(streamId, stream);
+		session.sessionStartTime = System.currentTimeMillis();
+		session.getHTTPServer().getRequestProcessor().execute(stream);
+	}
+
+	private boolean startResponses() throws Exception {
+		HTTP2Stream stream = null;
+
+		// the response header is small, but leave enough room for one that spans a full frame
+		while((stream = readyStreams.peek()) != null) {
+			if(appOut.remaining() < MAX_FRAME_LENGTH) {
+				return true;
+			}
+
+			readyStreams.poll();
+
+			if(streams.get(stream.getStreamId()) != stream) {
+				// reset while it was being processed
+				stream.cancel();
+				continue;
+			}
+
+			if(stream.isProcessingFailed()) {
+				writeRstStream(stream, ERROR_INTERNAL);
+				continue;
+			}
+
+			stream.startResponse();
+
+			ByteArrayOutputStream block = new ByteArrayOutputStream(256);
+			HTTP2HeaderCodec.encodeStatus(block, stream.getHTTPResponse().getResponseStatusCode());
+
+			for(String field : stream.getResponseHeaderFields().split(HTTPSession.CRLF)) {
+				int separator = field.indexOf(':');
+
+				if(separator > 0) {
+					// HTTP/2 header field names must be lowercase
+					HTTP2HeaderCodec.encodeHeader(block, field.substring(0, separator).trim().toLowerCase(), field.substring(separator + 1).trim());
+				}
+			}
+
+			if(block.size() > MAX_FRAME_SIZE) {
+				writeRstStream(stream, ERROR_INTERNAL);
+				continue;
+			}
+
+			boolean endStream = stream.isBodyComplete();
+			writeFrameHeader(block.size(), TYPE_HEADERS, FLAG_END_HEADERS | (endStream ? FLAG_END_STREAM : 0), stream.getStreamId());
+			appOut.put(block.toByteArray());
+
+			if(endStream) {
+				finishStream(stream);
+			}
+			else {
+				sendQueue.add(stream);
+			}
+		}
+
+		return false;
+	}
+
+	// returns true if it stopped because the output buffer is full
+	private boolean sendData() throws Exception {
+		if(waitingForQuota) {
+			// we are in the queue for bandwidth quota, and will be stepped again when it is our turn. steps caused by incoming frames should not skip ahead
+			if(!session.isQuotaTurn()) {
+				return false;
+			}
+
+			waitingForQuota = false;
+		}
+
+		boolean madeProgress = false;
+		int blockedStreams = 0;
+
+		// round-robin over the streams with data to send, one frame each. stops when every stream is blocked on flow control or waiting for its response processor
+		while(!sendQueue.isEmpty() && connectionSendWindow > 0 && blockedStreams < sendQueue.size()) {
+			if(appOut.remaining() < MAX_FRAME_LENGTH && (!flushOutput() || appOut.remaining() < MAX_FRAME_LENGTH)) {
+				// we will be woken up by OP_WRITE when the socket can take more
+				return true;
+			}
+
+			HTTP2Stream stream = sendQueue.poll();
+
+			if(stream.getSendWindow() <= 0) {
+				sendQueue.add(stream);
+				++blockedStreams;
+				continue;
+			}
+
+			ByteBuffer buffer = null;
+
+			try {
+				buffer = stream.getPendingBuffer();
+			}
+			catch(Exception e) {
+				// only this stream is affected; the others can carry on
+				Out.debug(stream + " Failed to read response data: " + e);
+				writeRstStream(stream, ERROR_INTERNAL);
+				continue;
+			}
+
+			if(buffer == null) {
+				// the stream is woken up when its proxied file has received more data
+				sendQueue.add(stream);
+				++blockedStreams;
+				continue;
+			}
+
+			int length = Math.min(buffer.remaining(), Math.min(Math.min(stream.getSendWindow(), connectionSendWindow), MAX_FRAME_SIZE));
+
+			if(bwm != null) {
+				long priority = stream.getQuotaPriority(bwm);
+
+				if(!session.mayAcquireQuota(priority) || !bwm.tryAcquireQuota(length + FRAME_HEADER_LENGTH)) {
+					sendQueue.addFirst(stream);
+					waitingForQuota = true;
+					session.waitForQuota(madeProgress, priority);
+					return false;
+				}
+			}
+
+			madeProgress = true;
+			blockedStreams = 0;
+
+			stream.bodyBytesSent(length);
+			stream.countBodyBytes(length);
+			connectionSendWindow -= length;
+			boolean endStream = stream.isBodyComplete();
+
+			writeFrameHeader(length, TYPE_DATA, endStream ? FLAG_END_STREAM : 0, stream.getStreamId());
+			int limit = buffer.limit();
+			buffer.limit(buffer.position() + length);
+			appOut.put(buffer);
+			buffer.limit(limit);
+
+			session.lastPacketSend = System.currentTimeMillis();
+			lastActivity = session.lastPacketSend;
+
+			if(!session.isLocalNetworkAccess()) {
+				Stats.bytesSent(length + FRAME_HEADER_LENGTH);
+			}
+
+			if(endStream) {
+				finishStream(stream);
+			}
+			else {
+				sendQueue.add(stream);
+			}
+		}
+
+		return false;
+	}
+
+	private void finishStream(HTTP2Stream stream) {
+		removeStream(stream);
+		stream.finishResponse();
+	}
+
+	private void removeStream(HTTP2Stream stream) {
+		streams.remove(stream.getStreamId());
+		sendQueue.remove(stream);
+
+		if(streams.isEmpty()) {
+			// back to being an idle connection, which is subject to the keepalive timeout
+			session.setKeepAliveIdle();
+		}
+	}
+
+	private void writeRstStream(HTTP2Stream stream, int errorCode) {
+		writeFrameHeader(4, TYPE_RST_STREAM, 0, stream.getStreamId());
+		appOut.putInt(errorCode);
+		removeStream(stream);
+		stream.cancel();
+	}
+
+	private void writeWindowUpdate(int streamId, int increment) {
+		writeFrameHeader(4, TYPE_WINDOW_UPDATE, 0, streamId);
+		appOut.putInt(increment);
+	}
+
+	private void writeSetting(int identifier, int value) {
+		appOut.putShort((short) identifier);
+		appOut.putInt(value);
+	}
+
+	private void writeFrameHeader(int length, int type, int flags, int streamId) {
+		appOut.put((byte) (length >>> 16));
+		appOut.put((byte) (length >>> 8));
+		appOut.put((byte) length);
+		appOut.put((byte) type);
+		appOut.put((byte) flags);
+		appOut.putInt(streamId);
+	}
+
+	private void connectionError(int errorCode, String message) throws java.io.IOException {
+		// best effort attempt at telling the client why we are closing the connection
+		writeFrameHeader(8, TYPE_GOAWAY, 0, 0);
+		appOut.putInt(lastStreamId);
+		appOut.putInt(errorCode);
+		flushOutput();
+
+		throw new java.io.IOException("HTTP/2 connection error " + errorCode + ": " + message);
+	}
+
+	private boolean flushOutput() throws java.io.IOException {
+		appOut.flip();
+
+		try {
+			while(appOut.hasRemaining()) {
+				if(!session.wrap(appOut)) {
+					return false;
+				}
+			}
+		}
+		finally {
+			appOut.compact();
+		}
+
+		return session.flushNetOut();
+	}
+
+	private void consumeInput(int length) {
+		appIn.flip();
+		appIn.position(length);
+		appIn.compact();
+	}
+
+	private static int readInt(byte[] data, int offset) {
+		return ((data[offset] & 0xff) << 24) | ((data[offset + 1] & 0xff) << 16) | ((data[offset + 2] & 0xff) << 8) | (data[offset + 3] & 0xff);
+	}
+}
@@ -0,0 +1,186 @@
+/*
+
+Copyright 2008-2024 E-Hentai.org
+https://forums.e-hentai.org/
+tenboro@e-hentai.org
+
+This file is part of Hentai@Home.
+
+Hentai@Home is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Hentai@Home is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Hentai@Home.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+
+package hath.base;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+
+// a single request/response exchange on an HTTP/2 connection. streams reuse the HTTPSession request handling and logging, but are not registered with the HTTPServer; only the connection they belong to counts as an open connection.
+
+public class HTTP2Stream extends HTTPSession {
+	private HTTP2Connection connection;
+	private int connId, streamId, sendWindow, bodyLength = 0, writtenBytes = 0;
+	private long startTime = 0;
+	private ByteBuffer pendingBuffer = null;
+	private boolean headersSent = false, processingFailed = false, cancelled = false, cleanedUp = false;
+	private volatile boolean processingComplete = false;
+
+	public HTTP2Stream(HTTP2Connection connection, int connId, int streamId, int sendWindow, String request, boolean localNetworkAccess, HTTPServer httpServer) {
+		super(connId, localNetworkAccess, httpServer);
+		this.connection = connection;
+		this.connId = connId;
+		this.streamId = streamId;
+		this.sendWindow = sendWindow;
+
+		if(request != null) {
+			setRequestLine(request);
+		}
+	}
+
+	public void run() {
+		// this is executed by the request processor pool, same as for HTTPSessionNIO
+		try {
+			hr = new HTTPResponse(this);
+			hr.parseRequest(getRequestParser(), isLocalNetworkAccess());
+			hpc = hr.getHTTPResponseProcessor();
+		}
+		catch(Exception e) {
+			Out.debug(this + " Failed to process request: " + e);
+			processingFailed = true;
+		}
+
+		synchronized(this) {
+			processingComplete = true;
+
+			if(cancelled) {
+				// the stream was reset or the connection closed while we were working on it
+				cleanup();
+				return;
+			}
+		}
+
+		connection.streamReady(this);
+	}
+
+	public synchronized void cancel() {
+		// if the request is still being processed, the request processor thread will clean up when it is done
+		cancelled = true;
+
+		if(processingComplete) {
+			cleanup();
+		}
+	}
+
+	public synchronized void cleanup() {
+		if(cleanedUp) {
+			return;
+		}
+
+		cleanedUp = true;
+
+		if(hpc != null) {
+			hpc.cleanup();
+		}
+
+		if(hr != null) {
+			hr.requestCompleted();
+		}
+	}
+
+	public void startResponse() {
+		bodyLength = hr.isRequestHeadOnly() ? 0 : hpc.getContentLength();
+		headersSent = true;
+		logRequestStart();
+		startTime = System.currentTimeMillis();
+		startResponseTiming();
+	}
+
+	public void finishResponse() {
+		if(!hr.isRequestHeadOnly()) {
+			logRequestFinished(System.currentTimeMillis() - startTime);
+		}
+
+		cleanup();
+	}
+
+	// returns the next chunk of the response body, or null if the response processor is still waiting for data
+	public ByteBuffer getPendingBuffer() throws Exception {
+		if(pendingBuffer == null || !pendingBuffer.hasRemaining()) {
+			int recordSize = getRecordSize(writtenBytes);
+
+			if(!hpc.isBufferReady(recordSize)) {
+				return null;
+			}
+
+			pendingBuffer = hpc.getPreparedTCPBuffer(recordSize);
+		}
+
+		return pendingBuffer;
+	}
+
+	public void bodyDataAvailable() {
+		connection.getSession().wakeUp();
+	}
+
+	public void bodyBytesSent(int length) {
+		writtenBytes += length;
+		sendWindow -= length;
+	}
+
+	public void adjustSendWindow(int delta) {
+		sendWindow += delta;
+	}
+
+	// accessors
+
+	public int getStreamId() {
+		return streamId;
+	}
+
+	public int getSendWindow() {
+		return sendWindow;
+	}
+
+	public boolean isProcessingComplete() {
+		return processingComplete;
+	}
+
+	public boolean isProcessingFailed() {
+		return processingFailed;
+	}
+
+	public boolean isHeadersSent() {
+		return headersSent;
+	}
+
+	public boolean isBodyComplete() {
+		return writtenBytes >= bodyLength;
+	}
+
+	public HTTPResponse getHTTPResponse() {
+		return hr;
+	}
+
+	public HTTPResponseProcessor getHTTPResponseProcessor() {
+		return hpc;
+	}
+
+	public InetAddress getSocketInetAddress() {
+		return connection.getSession().getSocketInetAddress();
+	}
+
+	public String toString() {
+		return "{" + connId + "/" + streamId + String.format("%1$-14s", getSocketInetAddress().toString() + "}");
+	}
+}
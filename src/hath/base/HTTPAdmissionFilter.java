@@ -0,0 +1,261 @@
+/*
+
+Copyright 2008-2024 E-Hentai.org
+https://forums.e-hentai.org/
+tenboro@e-hentai.org
+
+This file is part of Hentai@Home.
+
+Hentai@Home is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Hentai@Home is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Hentai@Home.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+
+package hath.base;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// per-address connection accounting for the accept loop. every address has a token bucket that stops clients from opening more than ten connections in a burst, refilled at one connection per second, and a count of TLS handshakes that have not completed yet.
+// addresses are keyed on their raw bytes: IPv4 addresses on the full address, and IPv6 addresses on their /64 prefix, as that is what is normally handed out to a single host. the entries are spread over a number of independently locked stripes, so sessions finishing their handshakes on the event loops rarely contend with the accept thread.
+// there is no separate cleanup pass. an entry that has a full bucket, is not blocked and has no handshakes in flight holds no information, and is dropped whenever its stripe needs to make room.
+
+public class HTTPAdmissionFilter {
+	public static final int FLOOD_OK = 0, FLOOD_BLOCKED = 1, FLOOD_BLOCK_STARTED = 2;
+	public static final int REJECT_STARTUP = 0, REJECT_CONNECTION_LIMIT = 1, REJECT_FLOOD_CONTROL = 2, REJECT_HANDSHAKE_LIMIT = 3;
+	private static final String[] REJECT_REASONS = {"during startup", "over the connection limit", "by flood control", "over the handshake limit"};
+
+	// private network: 127.x.y.z, 10.0.0.0 - 10.255.255.255, 172.16.0.0 - 172.31.255.255, 192.168.0.0 - 192.168.255.255, 169.254.0.0 - 169.254.255.255, and the IPv6 loopback and unique local addresses
+	private static final NetworkMatcher LOCAL_NETWORKS = new NetworkMatcher(new String[] {"127.0.0.0/8", "10.0.0.0/8", "172.16.0.0/12", "192.168.0.0/16", "169.254.0.0/16", "::1/128", "fc00::/7"});
+
+	private static final int STRIPE_COUNT = 64;
+	private static final long BUCKET_CAPACITY = 10000, CONNECT_COST = 1000, BLOCK_MILLIS = 60000;
+
+	private Stripe[] stripes;
+	private AtomicLongArray rejectCounts, loggedRejectCounts;
+
+	public HTTPAdmissionFilter() {
+		stripes = new Stripe[STRIPE_COUNT];
+
+		for(int i = 0; i < STRIPE_COUNT; i++) {
+			stripes[i] = new Stripe();
+		}
+
+		rejectCounts = new AtomicLongArray(REJECT_REASONS.length);
+		loggedRejectCounts = new AtomicLongArray(REJECT_REASONS.length);
+	}
+
+	public boolean isLocalNetwork(byte[] address) {
+		return LOCAL_NETWORKS.matches(address) || Settings.isClientHost(address);
+	}
+
+	// counts a new connection against the token bucket of the address. a client that uses up its bucket is blocked for 60 seconds
+	public int hit(byte[] address) {
+		long key = getKey(address);
+		Stripe stripe = getStripe(key);
+		long nowtime = System.currentTimeMillis();
+
+		synchronized(stripe) {
+			Entry entry = stripe.getOrCreate(key, nowtime);
+
+			if(entry.blockedUntil > nowtime) {
+				return FLOOD_BLOCKED;
+			}
+
+			// the bucket holds milliseconds of credit, and a connection costs one second of it
+			entry.credit = Math.min(BUCKET_CAPACITY, entry.credit + nowtime - entry.lastUpdate) - CONNECT_COST;
+			entry.lastUpdate = nowtime;
+
+			if(entry.credit < 0) {
+				entry.credit = 0;
+				entry.blockedUntil = nowtime + BLOCK_MILLIS;
+				return FLOOD_BLOCK_STARTED;
+			}
+
+			return FLOOD_OK;
+		}
+	}
+
+	public boolean isBlocked(byte[] address) {
+		long key = getKey(address);
+		Stripe stripe = getStripe(key);
+
+		synchronized(stripe) {
+			Entry entry = stripe.get(key);
+			return entry != null && entry.blockedUntil > System.currentTimeMillis();
+		}
+	}
+
+	// every admitted connection that is subject to the limits holds a handshake slot until its handshake completes or the connection is closed. the slot is always taken so the count stays correct if the limit is changed, but it is only enforced if limit is positive
+	public boolean acquireHandshake(byte[] address, int limit) {
+		long key = getKey(address);
+		Stripe stripe = getStripe(key);
+
+		synchronized(stripe) {
+			Entry entry = stripe.getOrCreate(key, System.currentTimeMillis());
+
+			if(limit > 0 && entry.handshakes >= limit) {
+				return false;
+			}
+
+			++entry.handshakes;
+			return true;
+		}
+	}
+
+	public void releaseHandshake(byte[] address) {
+		long key = getKey(address);
+		Stripe stripe = getStripe(key);
+
+		synchronized(stripe) {
+			Entry entry = stripe.get(key);
+
+			if(entry != null && entry.handshakes > 0) {
+				--entry.handshakes;
+			}
+		}
+	}
+
+	public void countReject(int reason) {
+		rejectCounts.incrementAndGet(reason);
+	}
+
+	public long getRejectCount(int reason) {
+		return rejectCounts.get(reason);
+	}
+
+	// returns a summary of the connections that were rejected since the last call, or null if there were none
+	public String getRejectSummary() {
+		StringBuilder sb = null;
+		long total = 0;
+
+		for(int i = 0; i < REJECT_REASONS.length; i++) {
+			long count = rejectCounts.get(i);
+			long delta = count - loggedRejectCounts.getAndSet(i, count);
+
+			if(delta > 0) {
+				sb = sb == null ? new StringBuilder() : sb.append(", ");
+				sb.append(delta).append(" ").append(REJECT_REASONS[i]);
+				total += delta;
+			}
+		}
+
+		return sb == null ? null : "Rejected " + total + " incoming connections: " + sb;
+	}
+
+	private static long getKey(byte[] address) {
+		if(address.length == 4) {
+			return NetworkMatcher.toInt(address) & 0xffffffffL;
+		}
+
+		return NetworkMatcher.toLong(address, 0);
+	}
+
+	private Stripe getStripe(long key) {
+		// the same mix is used for the stripe and the slot, but they take their bits from opposite ends of it
+		return stripes[(int) (mix(key) >>> 58)];
+	}
+
+	private static long mix(long key) {
+		key = (key ^ (key >>> 33)) * 0xff51afd7ed558ccdL;
+		key = (key ^ (key >>> 33)) * 0xc4ceb9fe1a85ec53L;
+		return key ^ (key >>> 33);
+	}
+
+	private static class Entry {
+		private long key;
+		private long credit = BUCKET_CAPACITY, lastUpdate, blockedUntil = 0;
+		private int handshakes = 0;
+
+		private Entry(long key, long nowtime) {
+			this.key = key;
+			this.lastUpdate = nowtime;
+		}
+
+		private boolean isStale(long nowtime) {
+			return handshakes == 0 && blockedUntil <= nowtime && credit + nowtime - lastUpdate >= BUCKET_CAPACITY;
+		}
+	}
+
+	// an open addressing table with linear probing, guarded by its own monitor
+	private static class Stripe {
+		private Entry[] table = new Entry[16];
+		private int size = 0;
+
+		private Entry get(long key) {
+			int mask = table.length - 1;
+
+			for(int i = (int) mix(key) & mask; table[i] != null; i = (i + 1) & mask) {
+				if(table[i].key == key) {
+					return table[i];
+				}
+			}
+
+			return null;
+		}
+
+		private Entry getOrCreate(long key, long nowtime) {
+			Entry entry = get(key);
+
+			if(entry != null) {
+				return entry;
+			}
+
+			if((size + 1) * 2 > table.length) {
+				makeRoom(nowtime);
+			}
+
+			entry = new Entry(key, nowtime);
+			insert(entry);
+			++size;
+			return entry;
+		}
+
+		private void makeRoom(long nowtime) {
+			// drop the stale entries, and only grow the table if it would still be more than a quarter full afterwards
+			Entry[] oldTable = table;
+			int live = 0;
+
+			for(Entry entry : oldTable) {
+				if(entry != null && !entry.isStale(nowtime)) {
+					++live;
+				}
+			}
+
+			int capacity = 16;
+
+			while(capacity < (live + 1) * 4) {
+				capacity <<= 1;
+			}
+
+			table = new Entry[capacity];
+			size = live;
+
+			for(Entry entry : oldTable) {
+				if(entry != null && !entry.isStale(nowtime)) {
+					insert(entry);
+				}
+			}
+		}
+
+		private void insert(Entry entry) {
+			int mask = table.length - 1;
+			int i = (int) mix(entry.key) & mask;
+
+			while(table[i] != null) {
+				i = (i + 1) & mask;
+			}
+
+			table[i] = entry;
+		}
+	}
+}
@@ -24,71 +24,191 @@ along with Hentai@Home.  If not, see <https://www.gnu.org/licenses/>.
 package hath.base;
 
 import java.lang.Thread;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+// a lock-free token bucket. instead of counting tokens, we keep the time at which the bucket will be full again, in nanoseconds; sending n bytes pushes that time n / rate further out. a send is allowed as long as this does not put the bucket more than the burst size in debt.
+// a blocking sender reserves its bytes right away, even if it has to wait for them, and then parks until its reservation comes up. as each reservation starts where the previous one ended, the senders are served strictly in the order they asked, without anyone polling the monitor.
+// unless disabled with --disable-shortest-first, responses do not share the quota in arrival order when it runs out. each response gets a deadline of its start time plus the time its full length would take at the throttle, and the waiting sender with the earliest deadline goes first. this lets small files through ahead of large ones, while a large file that has waited longer than its own length is no longer overtaken. the first INITIAL_CREDIT bytes of every response are due at its start time, so the time to first byte stays low even when the quota is used up.
 
 public class HTTPBandwidthMonitor {
-	private final int TIME_RESOLUTION = 50;
-	private final int WINDOW_LENGTH = 5;
-	private int millisPerTick, bytesPerTick;
-	private int[] tickBytes, tickSeconds;
+	private static final long NANOS_PER_SECOND = 1000000000L;
+	private static final int TIME_RESOLUTION = 50;
+	private static final int INITIAL_CREDIT = 65536;
+
+	private final int bytesPerSecond, bytesPerTick;
+	private final long burstNanos;
+	private final AtomicLong fullTime;
+	private final boolean shortestFirst;
+	private final PriorityQueue<QuotaWaiter> waiters;
+	private volatile int waiterCount = 0;
+	private long waiterSequence = 0;
 
 	public HTTPBandwidthMonitor() {
-		bytesPerTick = (int) Math.ceil(Settings.getThrottleBytesPerSec() / TIME_RESOLUTION);
-		millisPerTick = (int) (1000 / TIME_RESOLUTION);
-		tickBytes = new int[TIME_RESOLUTION];
-		tickSeconds = new int[TIME_RESOLUTION];
+		this(Settings.getThrottleBytesPerSec(), Settings.getThrottleBurstBytes(), !Settings.isDisableShortestFirst());
 	}
 
-	public synchronized void waitForQuota(Thread thread, int bytecount) {
-		do {
-			long now = System.currentTimeMillis();
-			long epochSeconds = (long) (now / 1000);
-			int currentTick = (int) ((now - epochSeconds * 1000) / millisPerTick);
-			int currentSecond = (int) epochSeconds;
-			int bytesThisTick = 0, bytesLastWindow = 0, bytesLastSecond = 0;
-			int tickCounter = currentTick - TIME_RESOLUTION;
-			int tickIndex, validSecond;
-
-			while(++tickCounter <= currentTick) {
-				tickIndex = tickCounter < 0 ? TIME_RESOLUTION + tickCounter : tickCounter;
-				validSecond = tickCounter < 0 ? currentSecond - 1 : currentSecond;
-
-				if(tickSeconds[tickIndex] == validSecond) {
-					if(tickCounter == currentTick) {
-						bytesThisTick += tickBytes[tickIndex];
-					}
-					else {
-						if(tickCounter >= currentTick - WINDOW_LENGTH) {
-							bytesLastWindow += tickBytes[tickIndex];
+	public HTTPBandwidthMonitor(int bytesPerSecond, int burstBytes, boolean shortestFirst) {
+		this.shortestFirst = shortestFirst;
+		waiters = new PriorityQueue<QuotaWaiter>();
+		this.bytesPerSecond = Math.max(1, bytesPerSecond);
+		bytesPerTick = (int) Math.ceil((double) this.bytesPerSecond / TIME_RESOLUTION);
+		// the default burst is a tenth of a second worth of data, which is about what the old five tick window allowed
+		burstNanos = getNanos(burstBytes > 0 ? burstBytes : Math.max(1, this.bytesPerSecond / 10));
+		fullTime = new AtomicLong(System.nanoTime());
+	}
+
+	public int getBytesPerTick() {
+		return bytesPerTick;
+	}
+
+	public boolean isShortestFirst() {
+		return shortestFirst;
+	}
+
+	// lower values go first. responseStart is the System.nanoTime at which the response started. always zero for FIFO scheduling, so that only the queue order counts
+	public long getPriority(long responseStart, long responseLength, long bytesSent) {
+		if(!shortestFirst) {
+			return 0;
+		}
+
+		return bytesSent < INITIAL_CREDIT ? responseStart : responseStart + getNanos(responseLength);
+	}
+
+	public void waitForQuota(Thread thread, int bytecount, long priority) {
+		if(!shortestFirst) {
+			waitForQuota(thread, bytecount);
+			return;
+		}
+
+		if(waiterCount == 0 && tryAcquireQuota(bytecount)) {
+			return;
+		}
+
+		// only the waiter at the head of the queue waits for the quota itself. the others park until the one ahead of them is done, or until they are woken up by a waiter with a later deadline that took over the head
+		QuotaWaiter waiter = new QuotaWaiter(Thread.currentThread(), priority);
+		boolean interrupted = false;
+
+		synchronized(waiters) {
+			waiter.sequence = ++waiterSequence;
+			waiters.add(waiter);
+			waiterCount = waiters.size();
+		}
+
+		while(true) {
+			long delay = 0;
+
+			synchronized(waiters) {
+				if(waiters.peek() == waiter) {
+					if(tryAcquireQuota(bytecount)) {
+						waiters.poll();
+						waiterCount = waiters.size();
+						QuotaWaiter next = waiters.peek();
+
+						if(next != null) {
+							LockSupport.unpark(next.thread);
 						}
 
-						// technically, 49/50ths of a second
-						bytesLastSecond += tickBytes[tickIndex];
+						break;
 					}
+
+					delay = getNanosUntilQuota(bytecount);
 				}
 			}
 
-			if(bytesThisTick > bytesPerTick * 1.1 || bytesLastWindow > bytesPerTick * WINDOW_LENGTH * 1.05 || bytesLastSecond > bytesPerTick * TIME_RESOLUTION) {
-				//Out.debug("sleeping with currentTick=" + currentTick + " second=" + currentSecond + " bytesPerTick=" + bytesPerTick + " bytesThisTick=" + bytesThisTick + " bytesLastWindow=" + bytesLastWindow + " bytesLastSecond=" + bytesLastSecond);
+			if(delay > 0) {
+				LockSupport.parkNanos(this, delay);
+			}
+			else {
+				LockSupport.park(this);
+			}
 
-				try {
-					thread.sleep(10);
-				} catch(Exception e) {
-					e.printStackTrace();
-				}
+			interrupted |= Thread.interrupted();
+		}
+
+		if(interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	public void waitForQuota(Thread thread, int bytecount) {
+		long cost = getNanos(bytecount);
+		long startTime;
 
-				continue;
+		while(true) {
+			long now = System.nanoTime();
+			long current = fullTime.get();
+			long base = current - now > 0 ? current : now;
+			// sends larger than the burst size are let through on a full bucket, or they would never go out
+			startTime = Math.max(now, current - Math.max(0, burstNanos - cost));
+
+			if(fullTime.compareAndSet(current, base + cost)) {
+				break;
 			}
+		}
+
+		long delay;
+		boolean interrupted = false;
+
+		while((delay = startTime - System.nanoTime()) > 0) {
+			LockSupport.parkNanos(this, delay);
 
-			//Out.debug("granted with currentTick=" + currentTick + " second=" + currentSecond + " bytesPerTick=" + bytesPerTick + " bytesThisTick=" + bytesThisTick + " bytesLastWindow=" + bytesLastWindow + " bytesLastSecond=" + bytesLastSecond);
+			// an interrupt would make every further park return immediately, so it is held until we are done waiting
+			interrupted |= Thread.interrupted();
+		}
+
+		if(interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	// non-blocking variant used by the event loops, which cannot sleep while waiting for quota. returns true and deducts the bytes from the quota if they can be sent now
+	public boolean tryAcquireQuota(int bytecount) {
+		long cost = getNanos(bytecount);
+
+		while(true) {
+			long now = System.nanoTime();
+			long current = fullTime.get();
+			long base = current - now > 0 ? current : now;
+
+			if(base - now > Math.max(0, burstNanos - cost)) {
+				return false;
+			}
 
-			if(tickSeconds[currentTick] != currentSecond) {
-				tickSeconds[currentTick] = currentSecond;
-				tickBytes[currentTick] = 0;
+			if(fullTime.compareAndSet(current, base + cost)) {
+				return true;
 			}
+		}
+	}
+
+	private long getNanosUntilQuota(int bytecount) {
+		long debt = fullTime.get() - System.nanoTime();
+		return Math.max(1, debt - Math.max(0, burstNanos - getNanos(bytecount)));
+	}
+
+	private long getNanos(long bytecount) {
+		return bytecount * NANOS_PER_SECOND / bytesPerSecond;
+	}
 
-			tickBytes[currentTick] += bytecount;
+	private static class QuotaWaiter implements Comparable<QuotaWaiter> {
+		private Thread thread;
+		private long priority, sequence;
+
+		private QuotaWaiter(Thread thread, long priority) {
+			this.thread = thread;
+			this.priority = priority;
+		}
+
+		public int compareTo(QuotaWaiter other) {
+			// deadlines are nanoTime values, which have to be compared by their difference
+			long diff = priority - other.priority;
+
+			if(diff == 0) {
+				diff = sequence - other.sequence;
+			}
 
-			break;
-		} while(true);
+			return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+		}
 	}
 }
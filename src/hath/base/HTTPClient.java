@@ -0,0 +1,75 @@
+/*
+
+Copyright 2008-2024 E-Hentai.org
+https://forums.e-hentai.org/
+tenboro@e-hentai.org
+
+This file is part of Hentai@Home.
+
+Hentai@Home is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Hentai@Home is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Hentai@Home.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+package hath.base;
+
+import java.net.HttpURLConnection;
+import java.net.Proxy;
+import java.net.URL;
+import java.net.URLConnection;
+
+// sets up and opens the outgoing HTTP connections, which are the RPC calls to the server, the proxied files, and the gallery and certificate downloads.
+// HttpURLConnection already keeps a per-host pool of idle keep-alive connections, which is separate for each proxy. a connection goes back to the pool when its response has been read to the end and the stream is closed, so the callers have to either do that or throw the connection away with discard.
+
+public class HTTPClient {
+	// has to be called before the first connection is made, as HttpURLConnection only reads these properties once
+	public static void configure() {
+		if(Settings.isDisableUpstreamKeepAlive()) {
+			System.setProperty("http.keepAlive", "false");
+			Out.info("HTTPClient: Keep-alive is disabled for outgoing connections");
+		}
+		else {
+			System.setProperty("http.keepAlive", "true");
+			// the number of idle connections kept per host. the image servers and the RPC servers are only a few hosts, but a burst of misses can have many requests in flight to each of them
+			System.setProperty("http.maxConnections", String.valueOf(Settings.getUpstreamMaxIdleConnections()));
+			// how long an idle connection is kept if the server does not say, in seconds. older Java versions ignore this and always use 5 seconds
+			System.setProperty("http.keepAlive.time.server", "30");
+			System.setProperty("http.keepAlive.time.proxy", "30");
+		}
+	}
+
+	public static URLConnection openConnection(URL source, boolean allowProxy, int connectTimeout, int readTimeout) throws java.io.IOException {
+		Proxy proxy = allowProxy ? Settings.getImageProxy() : null;
+
+		// should return a HttpURLConnection for http and HttpsURLConnection for https
+		URLConnection connection = null;
+
+		if(proxy != null) {
+			connection = source.openConnection(proxy);
+		}
+		else {
+			connection = source.openConnection();
+		}
+
+		connection.setConnectTimeout(connectTimeout);
+		connection.setReadTimeout(readTimeout);
+		connection.setRequestProperty("User-Agent", "Hentai@Home " + Settings.CLIENT_VERSION);
+		return connection;
+	}
+
+	// closes the underlying socket instead of returning it to the pool. for failed requests, and for responses that are not read to the end
+	public static void discard(URLConnection connection) {
+		if(connection instanceof HttpURLConnection) {
+			((HttpURLConnection) connection).disconnect();
+		}
+	}
+}
@@ -0,0 +1,400 @@
+/*
+
+Copyright 2008-2024 E-Hentai.org
+https://forums.e-hentai.org/
+tenboro@e-hentai.org
+
+This file is part of Hentai@Home.
+
+Hentai@Home is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Hentai@Home is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Hentai@Home.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+package hath.base;
+
+import java.nio.charset.Charset;
+
+// parses a request line in place, into a byte array that is reused for every request on a connection. the method, path segments and the fields of the /h/ additional segment are kept as offsets into that array, so nothing is allocated unless a value is actually needed as a string.
+
+public class HTTPRequestParser {
+	public static final int METHOD_OTHER = 0, METHOD_GET = 1, METHOD_HEAD = 2;
+	public static final int FIELD_KEYSTAMP = 0, FIELD_FILEINDEX = 1, FIELD_XRES = 2;
+
+	private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+	private static final byte[][] FIELD_NAMES = { encode("keystamp"), encode("fileindex"), encode("xres") };
+	// the longest URL form is /servercmd/$command/$additional/$time/$key, and anything past that is never looked at
+	private static final int MAX_SEGMENTS = 8;
+
+	private byte[] line = new byte[256];
+	private int length = 0, method = METHOD_OTHER, versionStart = 0, segmentCount = 0;
+	private boolean wellFormed = false;
+	private int[] segmentStart = new int[MAX_SEGMENTS], segmentEnd = new int[MAX_SEGMENTS];
+	private int[] fieldStart = new int[FIELD_NAMES.length], fieldEnd = new int[FIELD_NAMES.length];
+
+	public void parse(byte[] data, int offset, int count) {
+		int end = offset + count;
+
+		while(offset < end && data[offset] <= ' ') {
+			++offset;
+		}
+
+		while(end > offset && data[end - 1] <= ' ') {
+			--end;
+		}
+
+		if(line.length < end - offset) {
+			line = new byte[end - offset];
+		}
+
+		// copy the line while decoding %3d, which some clients use instead of = in the additional field
+		length = 0;
+
+		for(int i = offset; i < end; i++) {
+			if(data[i] == '%' && i + 2 < end && data[i + 1] == '3' && (data[i + 2] | 0x20) == 'd') {
+				line[length++] = '=';
+				i += 2;
+			}
+			else {
+				line[length++] = data[i];
+			}
+		}
+
+		// the request line is split in exactly three parts on the first two spaces
+		int firstSpace = indexOf(line, 0, length, ' ');
+		int secondSpace = firstSpace < 0 ? -1 : indexOf(line, firstSpace + 1, length, ' ');
+
+		wellFormed = secondSpace >= 0;
+		method = METHOD_OTHER;
+		versionStart = length;
+		segmentCount = 0;
+
+		if(!wellFormed) {
+			return;
+		}
+
+		if(regionMatches(line, 0, firstSpace, "GET") && firstSpace == 3) {
+			method = METHOD_GET;
+		}
+		else if(regionMatches(line, 0, firstSpace, "HEAD") && firstSpace == 4) {
+			method = METHOD_HEAD;
+		}
+
+		versionStart = secondSpace + 1;
+
+		// the request URI may be an absolute path or an absolute URI for GET/HEAD requests (see section 5.1.2 of RFC2616)
+		int targetStart = firstSpace + 1;
+
+		if(regionMatches(line, targetStart, secondSpace, "http://")) {
+			int pathStart = indexOf(line, targetStart + 7, secondSpace, '/');
+
+			if(pathStart > targetStart + 7) {
+				targetStart = pathStart;
+			}
+		}
+
+		// same as String.split, trailing empty segments are dropped
+		int segment = 0, start = targetStart;
+
+		while(true) {
+			int slash = indexOf(line, start, secondSpace, '/');
+			int segEnd = slash < 0 ? secondSpace : slash;
+
+			if(segment < MAX_SEGMENTS) {
+				segmentStart[segment] = start;
+				segmentEnd[segment] = segEnd;
+			}
+
+			if(segEnd > start) {
+				segmentCount = segment + 1;
+			}
+
+			if(slash < 0) {
+				break;
+			}
+
+			++segment;
+			start = slash + 1;
+		}
+	}
+
+	public boolean isWellFormed() {
+		return wellFormed;
+	}
+
+	public int getMethod() {
+		return method;
+	}
+
+	public boolean isHTTPVersion() {
+		return regionMatchesExact(line, versionStart, length, "HTTP/");
+	}
+
+	public boolean isHTTP10() {
+		return length - versionStart == 8 && regionMatches(line, versionStart, length, "HTTP/1.0");
+	}
+
+	public int getSegmentCount() {
+		return segmentCount;
+	}
+
+	public boolean segmentEquals(int segment, String value) {
+		if(segment >= Math.min(segmentCount, MAX_SEGMENTS)) {
+			return false;
+		}
+
+		return segmentEnd[segment] - segmentStart[segment] == value.length() && regionMatchesExact(line, segmentStart[segment], segmentEnd[segment], value);
+	}
+
+	public String getSegment(int segment) {
+		return new String(line, segmentStart[segment], segmentEnd[segment] - segmentStart[segment], ISO_8859_1);
+	}
+
+	public int getSegmentInt(int segment) {
+		return parseInt(segmentStart[segment], segmentEnd[segment]);
+	}
+
+	// reads the keystamp, fileindex and xres fields from an additional segment of the form k1=v1;k2=v2
+	public void parseAdditional(int segment) {
+		for(int i = 0; i < FIELD_NAMES.length; i++) {
+			fieldStart[i] = -1;
+		}
+
+		int start = segmentStart[segment], end = segmentEnd[segment];
+
+		while(start < end) {
+			int pairEnd = indexOf(line, start, end, ';');
+
+			if(pairEnd < 0) {
+				pairEnd = end;
+			}
+
+			// you cannot get k=v with less than a three-characters string
+			if(pairEnd - start > 2) {
+				int equals = indexOf(line, start, pairEnd, '=');
+
+				if(equals < 0) {
+					Out.warning("Invalid kvPair: " + new String(line, start, pairEnd - start, ISO_8859_1));
+				}
+				else {
+					int keyStart = skipSpace(start, equals), keyEnd = trimSpace(keyStart, equals);
+					int valueStart = skipSpace(equals + 1, pairEnd), valueEnd = trimSpace(valueStart, pairEnd);
+
+					for(int i = 0; i < FIELD_NAMES.length; i++) {
+						byte[] name = FIELD_NAMES[i];
+
+						if(keyEnd - keyStart == name.length && regionMatchesExact(line, keyStart, keyEnd, name)) {
+							fieldStart[i] = valueStart;
+							fieldEnd[i] = valueEnd;
+						}
+					}
+				}
+			}
+
+			start = pairEnd + 1;
+		}
+	}
+
+	public boolean hasField(int field) {
+		return fieldStart[field] >= 0;
+	}
+
+	public String getField(int field) {
+		return new String(line, fieldStart[field], fieldEnd[field] - fieldStart[field], ISO_8859_1);
+	}
+
+	public boolean isFieldNumeric(int field) {
+		if(fieldStart[field] < 0 || fieldEnd[field] <= fieldStart[field]) {
+			return false;
+		}
+
+		for(int i = fieldStart[field]; i < fieldEnd[field]; i++) {
+			if(line[i] < '0' || line[i] > '9') {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	public boolean fieldEquals(int field, String value) {
+		return fieldStart[field] >= 0 && fieldEnd[field] - fieldStart[field] == value.length() && regionMatchesExact(line, fieldStart[field], fieldEnd[field], value);
+	}
+
+	// the keystamp has the form $time-$hash. returns -1 if it is missing or malformed
+	public int getKeystampTime() {
+		if(fieldStart[FIELD_KEYSTAMP] < 0) {
+			return -1;
+		}
+
+		int dash = indexOf(line, fieldStart[FIELD_KEYSTAMP], fieldEnd[FIELD_KEYSTAMP], '-');
+
+		if(dash < 0 || indexOf(line, dash + 1, fieldEnd[FIELD_KEYSTAMP], '-') >= 0) {
+			return -1;
+		}
+
+		try {
+			return parseInt(fieldStart[FIELD_KEYSTAMP], dash);
+		}
+		catch(NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	public boolean keystampHashEquals(String hash) {
+		int start = indexOf(line, fieldStart[FIELD_KEYSTAMP], fieldEnd[FIELD_KEYSTAMP], '-') + 1;
+		return fieldEnd[FIELD_KEYSTAMP] - start == hash.length() && regionMatches(line, start, fieldEnd[FIELD_KEYSTAMP], hash);
+	}
+
+	private int parseInt(int start, int end) {
+		// same results as Integer.parseInt, which is what this is replacing
+		if(start >= end) {
+			throw new NumberFormatException("empty number");
+		}
+
+		boolean negative = line[start] == '-';
+		int i = negative || line[start] == '+' ? start + 1 : start;
+		long value = 0;
+
+		if(i >= end) {
+			throw new NumberFormatException("no digits");
+		}
+
+		for(; i < end; i++) {
+			int digit = line[i] - '0';
+
+			if(digit < 0 || digit > 9) {
+				throw new NumberFormatException("not a number");
+			}
+
+			value = value * 10 + digit;
+
+			if(value > Integer.MAX_VALUE + 1L) {
+				throw new NumberFormatException("out of range");
+			}
+		}
+
+		if(negative) {
+			value = -value;
+		}
+
+		if(value > Integer.MAX_VALUE) {
+			throw new NumberFormatException("out of range");
+		}
+
+		return (int) value;
+	}
+
+	private int skipSpace(int start, int end) {
+		while(start < end && line[start] <= ' ') {
+			++start;
+		}
+
+		return start;
+	}
+
+	private int trimSpace(int start, int end) {
+		while(end > start && line[end - 1] <= ' ') {
+			--end;
+		}
+
+		return end;
+	}
+
+	// helpers shared with the header line parsing in HTTPSession
+
+	public static int indexOf(byte[] data, int start, int end, char c) {
+		for(int i = start; i < end; i++) {
+			if(data[i] == c) {
+				return i;
+			}
+		}
+
+		return -1;
+	}
+
+	// case-insensitive match of an ASCII prefix
+	public static boolean regionMatches(byte[] data, int start, int end, String prefix) {
+		int prefixLength = prefix.length();
+
+		if(end - start < prefixLength) {
+			return false;
+		}
+
+		for(int i = 0; i < prefixLength; i++) {
+			int c = data[start + i], p = prefix.charAt(i);
+
+			if(c != p && ((c | 0x20) != (p | 0x20) || (p | 0x20) < 'a' || (p | 0x20) > 'z')) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	public static boolean contains(byte[] data, int start, int end, String value) {
+		for(int i = start; i <= end - value.length(); i++) {
+			if(regionMatches(data, i, end, value)) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	private static boolean regionMatchesExact(byte[] data, int start, int end, String prefix) {
+		int prefixLength = prefix.length();
+
+		if(end - start < prefixLength) {
+			return false;
+		}
+
+		for(int i = 0; i < prefixLength; i++) {
+			if(data[start + i] != prefix.charAt(i)) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	private static boolean regionMatchesExact(byte[] data, int start, int end, byte[] prefix) {
+		if(end - start < prefix.length) {
+			return false;
+		}
+
+		for(int i = 0; i < prefix.length; i++) {
+			if(data[start + i] != prefix[i]) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	public static String getValue(byte[] data, int start, int end) {
+		// trimmed header value as a string
+		while(start < end && data[start] <= ' ') {
+			++start;
+		}
+
+		while(end > start && data[end - 1] <= ' ') {
+			--end;
+		}
+
+		return new String(data, start, end - start, ISO_8859_1);
+	}
+
+	private static byte[] encode(String value) {
+		return value.getBytes(ISO_8859_1);
+	}
+}
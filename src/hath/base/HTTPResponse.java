@@ -24,18 +24,17 @@ along with Hentai@Home.  If not, see <https://www.gnu.org/licenses/>.
 package hath.base;
 
 import java.util.*;
-import java.util.regex.Pattern;
 import java.net.URL;
 import java.io.File;
 
 public class HTTPResponse {
-	private static final Pattern absoluteUriPattern = Pattern.compile("^http://[^/]+/", Pattern.CASE_INSENSITIVE);
-
 	private HTTPSession session;
 
 	private boolean requestHeadOnly;
 	private boolean servercmd;
 	private int responseStatusCode;
+	private int rangeStart = -1, rangeEnd = -1, rangeFileSize = 0;
+	private String entityTag = null;
 
 	private HTTPResponseProcessor hpc;
 
@@ -125,109 +124,128 @@ public class HTTPResponse {
 		return new HTTPResponseProcessorText("OK:" + successfulTests + "-" + totalTimeMillis);
 	}
 
-	public void parseRequest(String request, boolean localNetworkAccess) {
+	public void parseRequest(HTTPRequestParser request, boolean localNetworkAccess) {
 		if(request == null) {
 			Out.debug(session + " Client did not send a request.");
 			responseStatusCode = 400;
 			return;
 		}
 
-		String[] requestParts = request.trim().split(" ", 3);
-
-		if(requestParts.length != 3) {
+		if(!request.isWellFormed()) {
 			Out.debug(session + " Invalid HTTP request form.");
 			responseStatusCode = 400;
 			return;
 		}
 
-		if( !(requestParts[0].equalsIgnoreCase("GET") || requestParts[0].equalsIgnoreCase("HEAD")) || !requestParts[2].startsWith("HTTP/") ) {
+		if(request.getMethod() == HTTPRequestParser.METHOD_OTHER || !request.isHTTPVersion()) {
 			Out.debug(session + " HTTP request is not GET or HEAD.");
 			responseStatusCode = 405;
 			return;
 		}
 
-		// The request URI may be an absolute path or an absolute URI for GET/HEAD requests (see section 5.1.2 of RFC2616)
-		requestParts[1] = absoluteUriPattern.matcher(requestParts[1]).replaceFirst("/");
-		String[] urlparts = requestParts[1].replace("%3d", "=").split("/");
+		int segmentCount = request.getSegmentCount();
 
-		if( (urlparts.length < 2) || !urlparts[0].equals("")) {
+		if( (segmentCount < 2) || !request.segmentEquals(0, "")) {
 			Out.debug(session + " The requested URL is invalid or not supported.");
 			responseStatusCode = 404;
 			return;
 		}
 
-		requestHeadOnly = requestParts[0].equalsIgnoreCase("HEAD");
+		requestHeadOnly = request.getMethod() == HTTPRequestParser.METHOD_HEAD;
 
-		if(urlparts[1].equals("h")) {
+		if(request.segmentEquals(1, "h")) {
 			// form: /h/$fileid/$additional/$filename
 
-			if(urlparts.length < 4) {
+			if(segmentCount < 4) {
 				responseStatusCode = 400;
 				return;
 			}
 
-			String fileid = urlparts[2];
+			String fileid = request.getSegment(2);
 			HVFile requestedHVFile = HVFile.getHVFileFromFileid(fileid);
-			Hashtable<String,String> additional = Tools.parseAdditional(urlparts[3]);
 			boolean keystampRejected = true;
+			request.parseAdditional(3);
+			int keystampTime = request.getKeystampTime();
 
-			try {
-				String[] keystampParts = additional.get("keystamp").split("-");
-
-				if(keystampParts.length == 2) {
-					int keystampTime = Integer.parseInt(keystampParts[0]);
-
-					if(Math.abs(Settings.getServerTime() - keystampTime) < 900) {
-						if( keystampParts[1].equalsIgnoreCase(Tools.getSHA1String(keystampTime + "-" + fileid + "-" + Settings.getClientKey() + "-hotlinkthis").substring(0, 10)) ) {
-							keystampRejected = false;
-						}
-					}
+			if(keystampTime >= 0 && Math.abs(Settings.getServerTime() - keystampTime) < 900) {
+				if( request.keystampHashEquals(Tools.getSHA1String(keystampTime + "-" + fileid + "-" + Settings.getClientKey() + "-hotlinkthis").substring(0, 10)) ) {
+					keystampRejected = false;
 				}
-			} catch(Exception e) {}
-
-			String fileindex = additional.get("fileindex");
-			String xres = additional.get("xres");
+			}
 
 			if(keystampRejected) {
 				responseStatusCode = 403;
 			}
-			else if(requestedHVFile == null || fileindex == null || xres == null || !Pattern.matches("^\\d+$", fileindex) || !Pattern.matches("^org|\\d+$", xres)) {
+			else if(requestedHVFile == null || !request.isFieldNumeric(HTTPRequestParser.FIELD_FILEINDEX) || !(request.fieldEquals(HTTPRequestParser.FIELD_XRES, "org") || request.isFieldNumeric(HTTPRequestParser.FIELD_XRES))) {
 				Out.debug(session + " Invalid or missing arguments.");
 				responseStatusCode = 404;
 			}
+			else if(isNotModified(entityTag = "\"" + requestedHVFile.getHash() + "\"")) {
+				// the client already has this exact file, so there is no need to look it up in the cache or fetch it
+				responseStatusCode = 304;
+			}
+			else if(!parseRange(requestedHVFile.getSize())) {
+				Out.debug(session + " Requested range " + session.getRangeHeader() + " is not satisfiable for fileid=" + fileid);
+				responseStatusCode = 416;
+			}
 			else {
 				File requestedFile = requestedHVFile.getLocalFileRef();
 
 				if(requestedFile.exists() && (requestedFile.length() == requestedHVFile.getSize())) {
 					// if this file has not been read for some time, and file verification is not on cooldown, verify the hash inline as the file is being sent, which is reasonably cheap
+					// this is not possible for range requests, which should not take up the verification slot either
 					CacheHandler cacheHandler = session.getHTTPServer().getHentaiAtHomeClient().getCacheHandler();
 					boolean verifyFileIntegrity = false;
 
-					if(cacheHandler.markRecentlyAccessed(requestedHVFile)) {
+					if(cacheHandler.markRecentlyAccessed(requestedHVFile) && rangeStart < 0) {
 						verifyFileIntegrity = !Settings.isdisableFileVerification() && !cacheHandler.isFileVerificationOnCooldown();
 					}
 
 					// hpc will update responseStatusCode
-					hpc = new HTTPResponseProcessorFile(session, requestedHVFile, verifyFileIntegrity);
+					HTTPResponseProcessorFile hpcFile = new HTTPResponseProcessorFile(session, requestedHVFile, verifyFileIntegrity);
+
+					if(rangeStart >= 0) {
+						hpcFile.setRange(rangeStart, rangeEnd);
+					}
+
+					hpc = hpcFile;
 				}
 				else {
-					// non-existent file, or existing file has the wrong size. do an on-demand request of the file directly from the image servers
-					URL[] sources = session.getHTTPServer().getHentaiAtHomeClient().getServerHandler().getStaticRangeFetchURL(fileindex, xres, fileid);
+					// non-existent file, or existing file has the wrong size. do an on-demand request of the file directly from the image servers, unless another request is already doing so
+					ProxyFileDownloader proxyDownloader = ProxyFileDownloader.attachToDownload(fileid);
 
-					if(sources == null) {
-						Out.debug(session + " Sources was empty for fileindex=" + fileindex + " xres=" + xres + " fileid=" + fileid);
+					if(proxyDownloader == null) {
+						String fileindex = request.getField(HTTPRequestParser.FIELD_FILEINDEX);
+						String xres = request.getField(HTTPRequestParser.FIELD_XRES);
+						URL[] sources = session.getHTTPServer().getHentaiAtHomeClient().getServerHandler().getStaticRangeFetchURL(fileindex, xres, fileid);
+
+						if(sources == null) {
+							Out.debug(session + " Sources was empty for fileindex=" + fileindex + " xres=" + xres + " fileid=" + fileid);
+						}
+						else {
+							proxyDownloader = ProxyFileDownloader.startDownload(session.getHTTPServer().getHentaiAtHomeClient(), fileid, sources);
+						}
+					}
+
+					if(proxyDownloader == null) {
 						responseStatusCode = 404;
 					}
 					else {
 						// hpc will update responseStatusCode
-						hpc = new HTTPResponseProcessorProxy(session, fileid, sources);
+						HTTPResponseProcessorProxy hpcProxy = new HTTPResponseProcessorProxy(session, proxyDownloader);
+
+						if(rangeStart >= 0) {
+							hpcProxy.setRange(rangeStart, rangeEnd);
+						}
+
+						hpc = hpcProxy;
 					}
 				}
 			}
 
 			return;
 		}
-		else if(urlparts[1].equals("servercmd")) {
+		else if(request.segmentEquals(1, "servercmd")) {
 			// form: /servercmd/$command/$additional/$time/$key
 
 			if(!Settings.isValidRPCServer(session.getSocketInetAddress())) {
@@ -236,16 +254,16 @@ public class HTTPResponse {
 				return;
 			}
 
-			if(urlparts.length < 6) {
+			if(segmentCount < 6) {
 				Out.debug(session + " Got a malformed servercmd");
 				responseStatusCode = 403;
 				return;
 			}
 
-			String command = urlparts[2];
-			String additional = urlparts[3];
-			int commandTime = Integer.parseInt(urlparts[4]);
-			String key = urlparts[5];
+			String command = request.getSegment(2);
+			String additional = request.getSegment(3);
+			int commandTime = request.getSegmentInt(4);
+			String key = request.getSegment(5);
 
 			if( (Math.abs(commandTime - Settings.getServerTime()) > Settings.MAX_KEY_TIME_DRIFT) || !Tools.getSHA1String("hentai@home-servercmd-" + command + "-" + additional + "-" + Settings.getClientID() + "-" + commandTime + "-" + Settings.getClientKey()).equals(key) ) {
 				Out.debug(session + " Got a servercmd with expired or incorrect key");
@@ -258,18 +276,18 @@ public class HTTPResponse {
 			hpc = processRemoteAPICommand(command, additional);
 			return;
 		}
-		else if(urlparts[1].equals("t")) {
+		else if(request.segmentEquals(1, "t")) {
 			// form: /t/$testsize/$testtime/$testkey
 
-			if(urlparts.length < 5) {
+			if(segmentCount < 5) {
 				responseStatusCode = 400;
 				return;
 			}
 
 			// send a randomly generated file of a given length for speed testing purposes
-			int testsize = Integer.parseInt(urlparts[2]);
-			int testtime = Integer.parseInt(urlparts[3]);
-			String testkey = urlparts[4];
+			int testsize = request.getSegmentInt(2);
+			int testtime = request.getSegmentInt(3);
+			String testkey = request.getSegment(4);
 
 			if(Math.abs(testtime - Settings.getServerTime()) > Settings.MAX_KEY_TIME_DRIFT) {
 				Out.debug(session + " Got a speedtest request with expired key");
@@ -289,15 +307,15 @@ public class HTTPResponse {
 			hpc = new HTTPResponseProcessorSpeedtest(testsize);
 			return;
 		}
-		else if(urlparts.length == 2) {
-			if(urlparts[1].equals("favicon.ico")) {
+		else if(segmentCount == 2) {
+			if(request.segmentEquals(1, "favicon.ico")) {
 				// Redirect to the main website icon (which should already be in the browser cache).
 				hpc = new HTTPResponseProcessorText("");
 				hpc.addHeaderField("Location", "https://e-hentai.org/favicon.ico");
 				responseStatusCode = 301; // Moved Permanently
 				return;
 			}
-			else if(urlparts[1].equals("robots.txt")) {
+			else if(request.segmentEquals(1, "robots.txt")) {
 				// Bots are not welcome.
 				hpc = new HTTPResponseProcessorText("User-agent: *\nDisallow: /", "text/plain");
 				responseStatusCode = 200; // Found
@@ -305,24 +323,143 @@ public class HTTPResponse {
 			}
 		}
 
-		Out.debug(session + " Invalid request type '" + urlparts[1]);
+		Out.debug(session + " Invalid request type '" + request.getSegment(1));
 		responseStatusCode = 404;
 		return;
 	}
 
+	// evaluates If-None-Match and If-Modified-Since against the strong entity tag of a file
+	private boolean isNotModified(String etag) {
+		String ifNoneMatch = session.getIfNoneMatchHeader();
+
+		if(ifNoneMatch != null) {
+			// If-None-Match uses weak comparison. If-Modified-Since must be ignored if this header is present
+			for(String tag : ifNoneMatch.split(",")) {
+				tag = tag.trim();
+
+				if(tag.startsWith("W/")) {
+					tag = tag.substring(2);
+				}
+
+				if(tag.equals("*") || tag.equals(etag)) {
+					return true;
+				}
+			}
+
+			return false;
+		}
+
+		String ifModifiedSince = session.getIfModifiedSinceHeader();
+
+		if(ifModifiedSince != null) {
+			// the content of a fileid can never change, so any copy the client has from before the given time is still current. invalid dates and dates in the future are ignored
+			long modifiedSince = HTTPResponseHeader.parseDate(ifModifiedSince);
+			return modifiedSince >= 0 && modifiedSince <= System.currentTimeMillis();
+		}
+
+		return false;
+	}
+
+	// resolves the Range header against a file of the given size. returns false if the range cannot be satisfied; otherwise, rangeStart is left at -1 unless a single range should be sent
+	private boolean parseRange(int fileSize) {
+		String range = session.getRangeHeader();
+		rangeFileSize = fileSize;
+
+		if(range == null) {
+			return true;
+		}
+
+		String ifRange = session.getIfRangeHeader();
+
+		if(ifRange != null && !ifRange.equals(entityTag)) {
+			// If-Range requires a strong match. we do not send Last-Modified, so a date can never match either, and the whole file is sent
+			return true;
+		}
+
+		// other units, multiple ranges and malformed headers are ignored, as allowed by RFC 7233, in which case the whole file is sent
+		if(!range.regionMatches(true, 0, "bytes=", 0, 6) || range.indexOf(',') >= 0) {
+			return true;
+		}
+
+		String spec = range.substring(6).trim();
+		int dash = spec.indexOf('-');
+
+		if(dash < 0) {
+			return true;
+		}
+
+		long first = 0, last = 0;
+
+		try {
+			String firstPart = spec.substring(0, dash).trim();
+			String lastPart = spec.substring(dash + 1).trim();
+
+			if(firstPart.isEmpty()) {
+				// suffix range, the last n bytes of the file
+				long suffixLength = Long.parseLong(lastPart);
+
+				if(suffixLength < 0) {
+					return true;
+				}
+				else if(suffixLength == 0) {
+					return false;
+				}
+
+				first = Math.max(0, fileSize - suffixLength);
+				last = fileSize - 1;
+			}
+			else {
+				first = Long.parseLong(firstPart);
+				last = lastPart.isEmpty() ? Long.MAX_VALUE : Long.parseLong(lastPart);
+
+				if(first < 0 || last < first) {
+					return true;
+				}
+			}
+		}
+		catch(NumberFormatException e) {
+			return true;
+		}
+
+		if(first >= fileSize) {
+			return false;
+		}
+
+		rangeStart = (int) first;
+		rangeEnd = (int) Math.min(last, fileSize - 1);
+		return true;
+	}
+
 	public HTTPResponseProcessor getHTTPResponseProcessor() {
-		if(hpc == null) {
+		if(hpc == null && responseStatusCode == 304) {
+			// bodyless, so this never opens the file or takes any bandwidth quota
+			hpc = new HTTPResponseProcessorText("");
+			hpc.addHeaderField("ETag", entityTag);
+		}
+		else if(hpc == null) {
 			hpc = new HTTPResponseProcessorText("An error has occurred. (" + responseStatusCode + ")");
 
 			if(responseStatusCode == 405) {
 				hpc.addHeaderField("Allow", "GET,HEAD");
 			}
+			else if(responseStatusCode == 416) {
+				hpc.addHeaderField("Content-Range", "bytes */" + rangeFileSize);
+			}
 		}
-		else if(hpc instanceof HTTPResponseProcessorFile) {
-			responseStatusCode = hpc.initialize();
-		}
-		else if(hpc instanceof HTTPResponseProcessorProxy) {
+		else if(hpc instanceof HTTPResponseProcessorFile || hpc instanceof HTTPResponseProcessorProxy) {
 			responseStatusCode = hpc.initialize();
+
+			if(responseStatusCode == 200) {
+				hpc.addHeaderField("ETag", entityTag);
+
+				if(rangeStart >= 0) {
+					responseStatusCode = 206;
+					hpc.addHeaderField("Content-Range", "bytes " + rangeStart + "-" + rangeEnd + "/" + rangeFileSize);
+				}
+				else {
+					hpc.addHeaderField("Accept-Ranges", "bytes");
+				}
+			}
 		}
 		else if(hpc instanceof HTTPResponseProcessorSpeedtest) {
 			Stats.setProgramStatus("Running speed tests...");
@@ -0,0 +1,240 @@
+/*
+
+Copyright 2008-2024 E-Hentai.org
+https://forums.e-hentai.org/
+tenboro@e-hentai.org
+
+This file is part of Hentai@Home.
+
+Hentai@Home is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Hentai@Home is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Hentai@Home.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+
+package hath.base;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+
+// builds HTTP/1.1 response headers directly into a reusable byte array. the lines that never change are encoded once, and the Date line is formatted at most once per second and shared by all sessions.
+
+public class HTTPResponseHeader {
+	public static final String SERVER = "Genetic Lifeform and Distributed Open Server " + Settings.CLIENT_VERSION;
+	public static final String CACHE_CONTROL = "public, max-age=31536000";
+
+	private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+	private static final byte[] CRLF = encode("\r\n");
+	private static final byte[] CONNECTION_CLOSE = encode("Connection: close\r\n");
+	private static final byte[] CONNECTION_KEEPALIVE = encode("Connection: keep-alive\r\nKeep-Alive: timeout=");
+	private static final byte[] KEEPALIVE_MAX = encode(", max=");
+	private static final byte[] SERVER_LINE = encode("Server: " + SERVER + "\r\n");
+	private static final byte[] CACHE_CONTROL_LINE = encode("Cache-Control: " + CACHE_CONTROL + "\r\n");
+	private static final byte[] CONTENT_LENGTH = encode("Content-Length: ");
+	private static final byte[] STATUS_200 = encode("HTTP/1.1 200 OK\r\n");
+	private static final byte[] STATUS_206 = encode("HTTP/1.1 206 Partial Content\r\n");
+	private static final byte[] STATUS_301 = encode("HTTP/1.1 301 Moved Permanently\r\n");
+	private static final byte[] STATUS_304 = encode("HTTP/1.1 304 Not Modified\r\n");
+	private static final byte[] STATUS_400 = encode("HTTP/1.1 400 Bad Request\r\n");
+	private static final byte[] STATUS_403 = encode("HTTP/1.1 403 Permission Denied\r\n");
+	private static final byte[] STATUS_404 = encode("HTTP/1.1 404 Not Found\r\n");
+	private static final byte[] STATUS_405 = encode("HTTP/1.1 405 Method Not Allowed\r\n");
+	private static final byte[] STATUS_416 = encode("HTTP/1.1 416 Range Not Satisfiable\r\n");
+	private static final byte[] STATUS_418 = encode("HTTP/1.1 418 I'm a teapot\r\n");
+	private static final byte[] STATUS_500 = encode("HTTP/1.1 500 Internal Server Error\r\n");
+	private static final byte[] STATUS_501 = encode("HTTP/1.1 501 Not Implemented\r\n");
+	private static final byte[] STATUS_502 = encode("HTTP/1.1 502 Bad Gateway\r\n");
+
+	// there is only a handful of content types, as they all come from HVFile.getMimeType or are hardcoded in the response processors
+	private static final ConcurrentHashMap<String,byte[]> contentTypeLines = new ConcurrentHashMap<String,byte[]>();
+
+	private static SimpleDateFormat dateFormat = null;
+	// SimpleDateFormat is not thread safe, so each thread that parses request dates gets its own
+	private static final ThreadLocal<SimpleDateFormat> parseFormat = new ThreadLocal<SimpleDateFormat>() {
+		protected SimpleDateFormat initialValue() {
+			SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", java.util.Locale.US);
+			format.setTimeZone(TimeZone.getTimeZone("GMT"));
+			return format;
+		}
+	};
+	private static volatile long dateSecond = -1;
+	private static volatile String dateValue = null;
+	private static volatile byte[] dateLine = null;
+
+	private byte[] buffer = new byte[512];
+	private int length = 0;
+
+	public void reset() {
+		length = 0;
+	}
+
+	public ByteBuffer getByteBuffer() {
+		return ByteBuffer.wrap(buffer, 0, length);
+	}
+
+	public void appendStatusLine(int statusCode) {
+		switch(statusCode) {
+			case 200: append(STATUS_200); break;
+			case 206: append(STATUS_206); break;
+			case 301: append(STATUS_301); break;
+			case 304: append(STATUS_304); break;
+			case 400: append(STATUS_400); break;
+			case 403: append(STATUS_403); break;
+			case 404: append(STATUS_404); break;
+			case 405: append(STATUS_405); break;
+			case 416: append(STATUS_416); break;
+			case 418: append(STATUS_418); break;
+			case 501: append(STATUS_501); break;
+			case 502: append(STATUS_502); break;
+			default: append(STATUS_500);
+		}
+	}
+
+	public void appendConnection(boolean keepAlive, int timeout, int remainingRequests) {
+		if(keepAlive) {
+			append(CONNECTION_KEEPALIVE);
+			appendNumber(timeout);
+			append(KEEPALIVE_MAX);
+			appendNumber(remainingRequests);
+			append(CRLF);
+		}
+		else {
+			append(CONNECTION_CLOSE);
+		}
+	}
+
+	public void appendDate() {
+		append(getDateLine());
+	}
+
+	public void appendServer() {
+		append(SERVER_LINE);
+	}
+
+	public void appendContentType(String contentType) {
+		byte[] line = contentTypeLines.get(contentType);
+
+		if(line == null) {
+			line = encode("Content-Type: " + contentType + "\r\n");
+			contentTypeLines.put(contentType, line);
+		}
+
+		append(line);
+	}
+
+	public void appendCacheControl() {
+		append(CACHE_CONTROL_LINE);
+	}
+
+	public void appendContentLength(int contentLength) {
+		append(CONTENT_LENGTH);
+		appendNumber(contentLength);
+		append(CRLF);
+	}
+
+	public void appendEnd() {
+		append(CRLF);
+	}
+
+	public void appendLines(String lines) {
+		// for the header fields added by the response processors, which are already terminated by CRLF. these are all plain ASCII
+		int lineLength = lines.length();
+		ensureCapacity(lineLength);
+
+		for(int i = 0; i < lineLength; i++) {
+			buffer[length++] = (byte) lines.charAt(i);
+		}
+	}
+
+	public static String getDateValue() {
+		getDateLine();
+		return dateValue;
+	}
+
+	// parses an HTTP date as sent by clients, and returns it in milliseconds, or -1 if it is not a valid date
+	public static long parseDate(String value) {
+		try {
+			return parseFormat.get().parse(value).getTime();
+		}
+		catch(java.text.ParseException e) {
+			return -1;
+		}
+	}
+
+	private static byte[] getDateLine() {
+		long second = System.currentTimeMillis() / 1000;
+
+		if(second != dateSecond) {
+			updateDate(second);
+		}
+
+		return dateLine;
+	}
+
+	private static synchronized void updateDate(long second) {
+		if(second == dateSecond) {
+			// another thread got here first
+			return;
+		}
+
+		if(dateFormat == null) {
+			dateFormat = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss", java.util.Locale.US);
+			dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+		}
+
+		dateValue = dateFormat.format(new Date(second * 1000)) + " GMT";
+		dateLine = encode("Date: " + dateValue + "\r\n");
+
+		// written last, so any thread that sees the new second also sees the new line
+		dateSecond = second;
+	}
+
+	private void appendNumber(int number) {
+		// only used for lengths and counts, which are never negative
+		int digits = 1;
+
+		for(int i = number; i >= 10; i /= 10) {
+			++digits;
+		}
+
+		ensureCapacity(digits);
+
+		for(int i = length + digits - 1; i >= length; i--) {
+			buffer[i] = (byte) ('0' + number % 10);
+			number /= 10;
+		}
+
+		length += digits;
+	}
+
+	private void append(byte[] bytes) {
+		ensureCapacity(bytes.length);
+		System.arraycopy(bytes, 0, buffer, length, bytes.length);
+		length += bytes.length;
+	}
+
+	private void ensureCapacity(int extra) {
+		if(length + extra > buffer.length) {
+			byte[] newBuffer = new byte[Math.max(buffer.length * 2, length + extra)];
+			System.arraycopy(buffer, 0, newBuffer, 0, length);
+			buffer = newBuffer;
+		}
+	}
+
+	private static byte[] encode(String value) {
+		return value.getBytes(ISO_8859_1);
+	}
+}
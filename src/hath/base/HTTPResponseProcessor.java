@@ -42,7 +42,13 @@ public abstract class HTTPResponseProcessor {
 	
 	public void cleanup() {}
 
-	public abstract ByteBuffer getPreparedTCPBuffer() throws Exception;
+	// returns the next chunk of the body, which should be as close to maxLength bytes as the processor can manage without blocking for longer than necessary, and never more
+	public abstract ByteBuffer getPreparedTCPBuffer(int maxLength) throws Exception;
+
+	public boolean isBufferReady(int maxLength) {
+		// the event loops cannot block, so they will check this before calling getPreparedTCPBuffer. processors that have to wait for data should override it, and call HTTPSession.bodyDataAvailable once they have it
+		return true;
+	}
 
 	public String getHeader() {
 		return this.header;
@@ -37,19 +37,27 @@ public class HTTPResponseProcessorFile extends HTTPResponseProcessor {
 	private FileChannel fileChannel;
 	private ByteBuffer fileBuffer;
 	private MessageDigest sha1Digest = null;
-	private int readoff = 0;
+	private int readoff = 0, startoff = 0, endoff = 0;
 	private boolean verifyFileIntegrity = false;
 
 	public HTTPResponseProcessorFile(HTTPSession session, HVFile requestedHVFile, boolean verifyFileIntegrity) {
 		this.session = session;
 		this.requestedHVFile = requestedHVFile;
 		this.verifyFileIntegrity = verifyFileIntegrity;
+		endoff = requestedHVFile.getSize();
+	}
+
+	public void setRange(int rangeStart, int rangeEnd) {
+		// only send the bytes from rangeStart to rangeEnd, inclusive
+		startoff = rangeStart;
+		endoff = rangeEnd + 1;
+		readoff = rangeStart;
 	}
 
 	public int initialize() {
 		int responseStatusCode = 0;
 
-		if(verifyFileIntegrity) {
+		if(verifyFileIntegrity && startoff == 0 && endoff == requestedHVFile.getSize()) {
 			//Out.debug("Reading file " + requestedHVFile.getFileid() + " with verifyFileIntegrity=" + verifyFileIntegrity);
 
 			try {
@@ -61,6 +69,7 @@ public class HTTPResponseProcessorFile extends HTTPResponseProcessor {
 
 		try {
 			fileChannel = FileChannel.open(requestedHVFile.getLocalFilePath(), StandardOpenOption.READ);
+			fileChannel.position(startoff);
 			fileBuffer = ByteBuffer.allocateDirect(Settings.isUseLessMemory() ? 8192 : 65536);
 			fileChannel.read(fileBuffer);
 			fileBuffer.flip();
@@ -84,7 +93,8 @@ public class HTTPResponseProcessorFile extends HTTPResponseProcessor {
 
 		// if the remote client closed the connection before the file was fully read, parts of the preimage have not been update()'d into sha1Digest, and the digest will therefore obviously be wrong. in this case, skip checking the digest
 		// (if the size of the cached file did not match, we would not have attempted to read it in the first place)
-		if( (sha1Digest != null) && (readoff == getContentLength()) ) {
+		// partial reads for range requests are never verified, as the digest is only created when the whole file is sent
+		if( (sha1Digest != null) && (readoff == requestedHVFile.getSize()) ) {
 			String sha1Hash = Tools.binaryToHex(sha1Digest.digest());
 
 			if(requestedHVFile.getHash().equals(sha1Hash)) {
@@ -103,15 +113,15 @@ public class HTTPResponseProcessorFile extends HTTPResponseProcessor {
 
 	public int getContentLength() {
 		if(fileChannel != null) {
-			return requestedHVFile.getSize();
+			return endoff - startoff;
 		}
 		else {
 			return 0;
 		}
 	}
 
-	public ByteBuffer getPreparedTCPBuffer() throws Exception {
-		int readbytes = Math.min(getContentLength() - readoff, Settings.TCP_PACKET_SIZE);
+	public ByteBuffer getPreparedTCPBuffer(int maxLength) throws Exception {
+		int readbytes = Math.min(endoff - readoff, Math.min(maxLength, fileBuffer.capacity()));
 
 		if(readbytes > fileBuffer.remaining()) {
 			int fileBytes = 0;
@@ -23,24 +23,29 @@ along with Hentai@Home.  If not, see <https://www.gnu.org/licenses/>.
 
 package hath.base;
 
-import java.lang.Thread;
-import java.net.URL;
 import java.nio.ByteBuffer;
 
 public class HTTPResponseProcessorProxy extends HTTPResponseProcessor {
 	private HTTPSession session;
 	private ProxyFileDownloader proxyDownloader;
-	private int readoff = 0;
+	private int readoff = 0, rangeStart = -1, rangeEnd = -1;
 	private ByteBuffer tcpBuffer;
 
-	public HTTPResponseProcessorProxy(HTTPSession session, String fileid, URL[] sources) {
+	public HTTPResponseProcessorProxy(HTTPSession session, ProxyFileDownloader proxyDownloader) {
+		// the downloader may be shared with other requests for the same file, and already has this one counted as a reader
 		this.session = session;
-		proxyDownloader = new ProxyFileDownloader(session.getHTTPServer().getHentaiAtHomeClient(), fileid, sources);
+		this.proxyDownloader = proxyDownloader;
+	}
+
+	public void setRange(int rangeStart, int rangeEnd) {
+		// only send the bytes from rangeStart to rangeEnd, inclusive. we have to wait for the download to reach the start of the range, but the file is still downloaded and cached in full
+		this.rangeStart = rangeStart;
+		this.rangeEnd = rangeEnd;
+		readoff = rangeStart;
 	}
 
 	public int initialize() {
 		Out.debug(session + ": Initializing proxy request...");
-		tcpBuffer = ByteBuffer.allocateDirect(Settings.TCP_PACKET_SIZE);
 		return proxyDownloader.initialize();
 	}
 
@@ -49,27 +54,59 @@ public class HTTPResponseProcessorProxy extends HTTPResponseProcessor {
 	}
 
 	public int getContentLength() {
-		return proxyDownloader.getContentLength();
+		return getEndOffset() - Math.max(rangeStart, 0);
 	}
 
-	public ByteBuffer getPreparedTCPBuffer() throws Exception {
-		tcpBuffer.clear();
-		
-		int timeout = 0;
-		int nextReadThrehold = Math.min(getContentLength(), readoff + tcpBuffer.limit());
-		//Out.debug("Filling buffer with limit=" + tcpBuffer.limit() + " at readoff=" + readoff + ", trying to read " + (nextReadThrehold - readoff) + " bytes up to byte " + nextReadThrehold);
-
-		while(nextReadThrehold > proxyDownloader.getCurrentWriteoff()) {
-			try {
-				Thread.currentThread().sleep(10);
-			} catch(Exception e) {}
-
-			if(++timeout > 30000) {
-				// we have waited about five minutes, probably won't happen
-				throw new Exception("Timeout while waiting for proxy request.");
-			}
+	public boolean isBufferReady(int maxLength) {
+		if(isDataAvailable(maxLength)) {
+			return true;
 		}
 
+		// the session is registered before checking again, so we cannot miss data that arrives in between
+		proxyDownloader.addDataWaiter(session);
+		return isDataAvailable(maxLength);
+	}
+
+	private boolean isDataAvailable(int maxLength) {
+		// a failed download is reported as ready, as getPreparedTCPBuffer will then throw, which ends the request
+		return proxyDownloader.isDownloadFailed() || Math.min(getEndOffset(), readoff + Math.min(maxLength, Settings.TLS_RECORD_SIZE)) <= proxyDownloader.getCurrentWriteoff();
+	}
+
+	private int getEndOffset() {
+		return rangeStart < 0 ? proxyDownloader.getContentLength() : rangeEnd + 1;
+	}
+
+	public ByteBuffer getPreparedTCPBuffer(int maxLength) throws Exception {
+		int nextReadThrehold = Math.min(getEndOffset(), readoff + Math.min(maxLength, Settings.TLS_RECORD_SIZE));
+		//Out.debug("Preparing buffer at readoff=" + readoff + ", trying to read " + (nextReadThrehold - readoff) + " bytes up to byte " + nextReadThrehold);
+
+		// only the blocking sessions ever have to wait here; the event loops check isBufferReady first. the downloader wakes us up as soon as it has written more data
+		proxyDownloader.waitForData(nextReadThrehold, 300000);
+
+		if(proxyDownloader.isDownloadFailed()) {
+			throw new Exception("The proxy download failed.");
+		}
+
+		if(nextReadThrehold > proxyDownloader.getCurrentWriteoff()) {
+			// we have waited five minutes, probably won't happen
+			throw new Exception("Timeout while waiting for proxy request.");
+		}
+
+		ByteBuffer bufferedData = proxyDownloader.getBufferedData(readoff, nextReadThrehold - readoff);
+
+		if(bufferedData != null) {
+			// the download is kept in memory, so we can send straight from its buffers
+			readoff += bufferedData.remaining();
+			return bufferedData;
+		}
+
+		if(tcpBuffer == null) {
+			tcpBuffer = ByteBuffer.allocateDirect(Settings.TLS_RECORD_SIZE);
+		}
+
+		tcpBuffer.clear();
+		tcpBuffer.limit(nextReadThrehold - readoff);
+
 		int readBytes = proxyDownloader.fillBuffer(tcpBuffer, readoff);
 		readoff += readBytes;
 		
@@ -28,7 +28,7 @@ import java.nio.ByteBuffer;
 
 public class HTTPResponseProcessorSpeedtest extends HTTPResponseProcessor {
 	private int testsize = 0, writeoff = 0;
-	private final int randomLength = 8192;
+	private final int randomLength = Settings.TLS_RECORD_SIZE * 2;
 	private byte[] randomBytes;
 
 	public HTTPResponseProcessorSpeedtest(int testsize) {
@@ -42,12 +42,12 @@ public class HTTPResponseProcessorSpeedtest extends HTTPResponseProcessor {
 		return testsize;
 	}
 
-	public ByteBuffer getPreparedTCPBuffer() throws Exception {
-		int bytecount = Math.min(getContentLength() - writeoff, Settings.TCP_PACKET_SIZE);
+	public ByteBuffer getPreparedTCPBuffer(int maxLength) throws Exception {
+		int bytecount = Math.min(getContentLength() - writeoff, Math.min(maxLength, Settings.TLS_RECORD_SIZE));
 		int startbyte = (int) Math.floor(Math.random() * (randomLength - bytecount));
 
-		// making this read-only is probably not necessary, but doing so is almost free, and we don't want anything messing with our precious random bytes
-		ByteBuffer buffer = ByteBuffer.wrap(randomBytes, startbyte, bytecount).asReadOnlyBuffer();
+		// this is not made read-only, as that would hide the backing array and force the blocking sessions to copy it before writing
+		ByteBuffer buffer = ByteBuffer.wrap(randomBytes, startbyte, bytecount);
 		writeoff += bytecount;
 
 		// this was a wrap, so we do not flip
@@ -70,8 +70,8 @@ public class HTTPResponseProcessorText extends HTTPResponseProcessor {
 		return contentType;
 	}
 
-	public ByteBuffer getPreparedTCPBuffer() throws Exception {
-		int bytecount = Math.min(getContentLength() - writeoff, Settings.TCP_PACKET_SIZE);
+	public ByteBuffer getPreparedTCPBuffer(int maxLength) throws Exception {
+		int bytecount = Math.min(getContentLength() - writeoff, maxLength);
 		ByteBuffer buffer = ByteBuffer.wrap(responseBytes, writeoff, bytecount);
 		writeoff += bytecount;
 
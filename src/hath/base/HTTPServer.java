@@ -27,73 +27,80 @@ import java.net.InetSocketAddress;
 import java.net.InetAddress;
 import java.lang.Thread;
 import java.util.*;
-import java.util.regex.Pattern;
 import java.io.File;
 import java.io.InputStream;
 import java.io.FileInputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.security.KeyStore;
 import java.security.cert.X509Certificate;
 import java.net.URL;
+import java.lang.reflect.Method;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+import javax.net.ssl.SSLEngine;
 import javax.net.ssl.SSLSocket;
 import javax.net.ssl.SSLServerSocket;
 import javax.net.ssl.SSLServerSocketFactory;
 import javax.net.ssl.SSLContext;
-import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.KeyManager;
 import javax.net.ssl.TrustManagerFactory;
 
 public class HTTPServer implements Runnable {
+	private static final long CACHED_CERT_MIN_VALIDITY = 7 * 86400000L;
+
+	// picks h2 if the client offers it. clients that only offer protocols we do not know, like http/1.0, get no ALPN response instead of a fatal handshake alert, and are then handled as HTTP/1.x
+	private static final BiFunction<SSLEngine, List<String>, String> alpnSelector = new BiFunction<SSLEngine, List<String>, String>() {
+		public String apply(SSLEngine sslEngine, List<String> protocols) {
+			if(protocols.contains("h2")) {
+				return "h2";
+			}
+
+			return protocols.contains("http/1.1") ? "http/1.1" : "";
+		}
+	};
+
 	private HentaiAtHomeClient client;
 	private HTTPBandwidthMonitor bandwidthMonitor = null;
 	private SSLServerSocket listener = null;
+	private ServerSocketChannel listenerChannel = null;
 	private SSLContext sslContext = null;
+	private HTTPServerKeyManager keyManager = null;
+	private String[] enabledProtocols = null;
+	private Method setApplicationProtocolSelector = null, getApplicationProtocol = null;
+	private HTTPServerEventLoop[] eventLoops = null;
+	private ExecutorService requestProcessor = null;
 	private Thread myThread = null;
-	private List<HTTPSession> sessions;
-	private int sessionCount = 0, currentConnId = 0;
-	private boolean allowNormalConnections = false, isRestarting = false, isTerminated = false;
-	private Hashtable<String,FloodControlEntry> floodControlTable;
-	private Pattern localNetworkPattern;
+	private ConcurrentHashMap<HTTPSession, Boolean> sessions;
+	private AtomicInteger sessionCount;
+	private HTTPSessionTimer sessionTimer;
+	private int currentConnId = 0, nextEventLoop = 0;
+	private boolean allowNormalConnections = false, isRestarting = false, isTerminated = false, isOverloaded = false;
+	private HTTPAdmissionFilter admissionFilter;
 	private Date certExpiry;
 
 	public HTTPServer(HentaiAtHomeClient client) {
 		this.client = client;
-		sessions = Collections.checkedList(new ArrayList<HTTPSession>(), HTTPSession.class);
-		floodControlTable = new Hashtable<String,FloodControlEntry>();
+		sessions = new ConcurrentHashMap<HTTPSession, Boolean>();
+		sessionCount = new AtomicInteger();
+		sessionTimer = new HTTPSessionTimer(this);
+		admissionFilter = new HTTPAdmissionFilter();
 		
 		if(!Settings.isDisableBWM()) {
 			bandwidthMonitor = new HTTPBandwidthMonitor();
 		}
-		
-		//  private network: localhost, 127.x.y.z, 10.0.0.0 - 10.255.255.255, 172.16.0.0 - 172.31.255.255,  192.168.0.0 - 192.168.255.255, 169.254.0.0 -169.254.255.255
-		localNetworkPattern = Pattern.compile("^((localhost)|(127\\.)|(10\\.)|(192\\.168\\.)|(172\\.((1[6-9])|(2[0-9])|(3[0-1]))\\.)|(169\\.254\\.)|(::1)|(0:0:0:0:0:0:0:1)|(fc)|(fd)).*$");
 	}
 
 	public boolean startConnectionListener(int port) {
 		try {
-			final String certPass = Settings.getClientKey();
+			KeyStore ks = loadCertificate(false);
 
-			Out.info("Requesting certificate from server...");
-			File certFile = new File(Settings.getDataDir(), "hathcert.p12");
-			URL certUrl = ServerHandler.getServerConnectionURL(ServerHandler.ACT_GET_CERTIFICATE);
-			FileDownloader certdl = new FileDownloader(certUrl, 10000, 300000, certFile.toPath(), false);
-			certdl.downloadFile();
-
-			if(!certFile.exists()) {
-				Out.error("Could not retrieve certificate file " + certFile);
-				return false;
-			}
-
-			KeyStore ks = KeyStore.getInstance("PKCS12");
-			InputStream keystoreFile = new FileInputStream(certFile.getPath());
-			ks.load(keystoreFile, certPass.toCharArray());
-			
-			X509Certificate cert = (X509Certificate) ks.getCertificate("hath.network");
-			certExpiry = cert.getNotAfter();
-
-			Out.debug("Initialized KeyStore with " + cert.getSubjectX500Principal().getName());
-			//Out.debug("Initialized KeyStore with cert=" + cert.toString());
-
-			if(isCertExpired()) {
-				Out.error("The retrieved certificate is expired, or the system time is off by more than a day. Correct the system time and try again.");
+			if(ks == null) {
 				return false;
 			}
 
@@ -102,28 +109,74 @@ public class HTTPServer implements Runnable {
 			
 			Out.debug("Initialized TrustManagerFactory with algorithm=" + tmf.getAlgorithm());
 
-			KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
-			kmf.init(ks, certPass.toCharArray());
-
-			Out.debug("Initialized KeyManagerFactory with algorithm=" + kmf.getAlgorithm());
+			// the key manager can be handed a new certificate later on without restarting the server
+			keyManager = new HTTPServerKeyManager(ks, Settings.getClientKey().toCharArray());
 
 			sslContext = SSLContext.getInstance("TLS");
-			sslContext.init(kmf.getKeyManagers(), tmf.getTrustManagers(), null);
+			sslContext.init(new KeyManager[] {keyManager}, tmf.getTrustManagers(), null);
 
 			Out.info("Starting up the internal HTTP Server...");
-			SSLServerSocketFactory ssf = sslContext.getServerSocketFactory();
-			listener = (SSLServerSocket) ssf.createServerSocket(port);
 
-			try {
-				listener.setEnabledProtocols(new String[]{"TLSv1.3", "TLSv1.2"});
+			if(Settings.isUseBlockingIO()) {
+				SSLServerSocketFactory ssf = sslContext.getServerSocketFactory();
+				listener = (SSLServerSocket) ssf.createServerSocket(port);
+
+				try {
+					listener.setEnabledProtocols(new String[]{"TLSv1.3", "TLSv1.2"});
+				}
+				catch(java.lang.IllegalArgumentException e) {
+					listener.setEnabledProtocols(new String[]{"TLSv1.2"});
+				}
+
+				enabledProtocols = listener.getEnabledProtocols();
 			}
-			catch(java.lang.IllegalArgumentException e) {
-				listener.setEnabledProtocols(new String[]{"TLSv1.2"});
+			else {
+				SSLEngine testEngine = sslContext.createSSLEngine();
+
+				try {
+					testEngine.setEnabledProtocols(new String[]{"TLSv1.3", "TLSv1.2"});
+				}
+				catch(java.lang.IllegalArgumentException e) {
+					testEngine.setEnabledProtocols(new String[]{"TLSv1.2"});
+				}
+
+				enabledProtocols = testEngine.getEnabledProtocols();
+
+				if(!Settings.isDisableHTTP2()) {
+					// ALPN was added in Java 9 (and backported to later Java 8 updates), so the methods have to be looked up at runtime
+					try {
+						setApplicationProtocolSelector = SSLEngine.class.getMethod("setHandshakeApplicationProtocolSelector", BiFunction.class);
+						getApplicationProtocol = SSLEngine.class.getMethod("getApplicationProtocol");
+						Out.debug("Enabled HTTP/2 through ALPN");
+					}
+					catch(Exception e) {
+						Out.info("This Java runtime does not support ALPN; HTTP/2 will not be available");
+						setApplicationProtocolSelector = null;
+						getApplicationProtocol = null;
+					}
+				}
+
+				// the listener channel is left in blocking mode; accepting and admission control is done by the HTTPServer thread, while everything after that is handled by the event loops
+				listenerChannel = ServerSocketChannel.open();
+				listenerChannel.bind(new InetSocketAddress(port));
+
+				int eventLoopCount = Settings.getEventLoopThreads();
+				eventLoops = new HTTPServerEventLoop[eventLoopCount];
+
+				for(int i = 0; i < eventLoopCount; i++) {
+					eventLoops[i] = new HTTPServerEventLoop();
+					eventLoops[i].startEventLoop();
+				}
+
+				// request parsing can block on RPC calls, so it is done on pooled threads rather than on the event loops
+				requestProcessor = Executors.newCachedThreadPool(Tools.getThreadFactory());
+
+				Out.debug("Started " + eventLoopCount + " event loops for the internal HTTP server");
 			}
 
-			Out.debug("Initialized SSLContext with cert " + certFile + " and protocol " + sslContext.getProtocol());
+			Out.debug("Initialized SSLContext with protocol " + sslContext.getProtocol());
 			Out.debug("Supported ciphers: " + Arrays.toString(sslContext.getSupportedSSLParameters().getCipherSuites()));
-			Out.debug("Enabled protocols: " + Arrays.toString(listener.getEnabledProtocols()));
+			Out.debug("Enabled protocols: " + Arrays.toString(enabledProtocols));
 			
 			myThread = new Thread(this);
 			myThread.start();
@@ -154,6 +207,105 @@ public class HTTPServer implements Runnable {
 		return false;
 	}
 	
+	private KeyStore loadCertificate(boolean forceDownload) throws Exception {
+		File certFile = new File(Settings.getDataDir(), "hathcert.p12");
+		KeyStore ks = null;
+		X509Certificate cert = null;
+
+		if(!forceDownload && certFile.exists()) {
+			// the server tells us through refresh_certs when a new certificate has been issued, so there is no need to fetch it on every startup as long as the one we have is good for a while longer
+			try {
+				ks = readKeyStore(certFile);
+				cert = (X509Certificate) ks.getCertificate("hath.network");
+
+				if(cert.getNotAfter().getTime() > System.currentTimeMillis() + CACHED_CERT_MIN_VALIDITY) {
+					Out.info("Using cached certificate, valid until " + cert.getNotAfter());
+				}
+				else {
+					Out.debug("Cached certificate expires on " + cert.getNotAfter() + ", requesting a new one");
+					ks = null;
+				}
+			}
+			catch(Exception e) {
+				Out.debug("Could not use the cached certificate: " + e);
+				ks = null;
+			}
+		}
+
+		if(ks == null) {
+			Out.info("Requesting certificate from server...");
+
+			// download to a temporary file first, so a failed download does not clobber the certificate we already have
+			File tempFile = new File(Settings.getDataDir(), "hathcert.p12.tmp");
+			tempFile.delete();
+
+			URL certUrl = ServerHandler.getServerConnectionURL(ServerHandler.ACT_GET_CERTIFICATE);
+			long startTime = System.currentTimeMillis();
+			FileDownloader certdl = new FileDownloader(certUrl, 10000, 300000, tempFile.toPath(), false);
+
+			// recorded here as well, since the RPC server picked for this request may have been a probe
+			if(certdl.downloadFile()) {
+				RPCServerHealth.recordSuccess(certUrl.getHost().toLowerCase(), System.currentTimeMillis() - startTime);
+			}
+			else {
+				RPCServerHealth.recordFailure(certUrl.getHost().toLowerCase(), startTime);
+			}
+
+			if(!tempFile.exists()) {
+				Out.error("Could not retrieve certificate file " + certFile);
+				return null;
+			}
+
+			ks = readKeyStore(tempFile);
+			cert = (X509Certificate) ks.getCertificate("hath.network");
+			Files.move(tempFile.toPath(), certFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+
+		Out.debug("Initialized KeyStore with " + cert.getSubjectX500Principal().getName());
+		//Out.debug("Initialized KeyStore with cert=" + cert.toString());
+
+		if(cert.getNotAfter().getTime() < System.currentTimeMillis() + 86400000L) {
+			Out.error("The retrieved certificate is expired, or the system time is off by more than a day. Correct the system time and try again.");
+			return null;
+		}
+
+		certExpiry = cert.getNotAfter();
+		return ks;
+	}
+
+	private KeyStore readKeyStore(File certFile) throws Exception {
+		KeyStore ks = KeyStore.getInstance("PKCS12");
+		InputStream keystoreFile = new FileInputStream(certFile);
+
+		try {
+			ks.load(keystoreFile, Settings.getClientKey().toCharArray());
+		}
+		finally {
+			keystoreFile.close();
+		}
+
+		return ks;
+	}
+
+	public boolean refreshCertificate() {
+		// swaps in a new certificate for all future handshakes. connections that are already established keep using the old one until they close
+		try {
+			KeyStore ks = loadCertificate(true);
+
+			if(ks == null) {
+				return false;
+			}
+
+			keyManager.setKeyStore(ks, Settings.getClientKey().toCharArray());
+			Out.info("The internal HTTP server is now using the new certificate, valid until " + certExpiry);
+			return true;
+		}
+		catch(Exception e) {
+			Out.warning("Failed to refresh the certificate: " + e);
+			return false;
+		}
+	}
+
 	public boolean isCertExpired() {
 		Date nowtime = new Date();
 
@@ -173,51 +325,44 @@ public class HTTPServer implements Runnable {
 
 			listener = null;
 		}
-	}
-
-	public void pruneFloodControlTable() {
-		List<String> toPrune = Collections.checkedList(new ArrayList<String>(), String.class);
 
-		synchronized(floodControlTable) {
-			Enumeration<String> keys = floodControlTable.keys();
+		if(listenerChannel != null) {
+			try {
+				listenerChannel.close();	// same as above, but for the event loop mode
+			} catch(Exception e) {}
 
-			while(keys.hasMoreElements()) {
-				String key = keys.nextElement();
-				if(floodControlTable.get(key).isStale()) {
-					toPrune.add(key);
-				}
-			}
+			listenerChannel = null;
+		}
 
-			for(String key : toPrune) {
-				floodControlTable.remove(key);
+		if(eventLoops != null) {
+			// the event loops will finish any ongoing sessions before terminating
+			for(HTTPServerEventLoop eventLoop : eventLoops) {
+				eventLoop.shutdownWhenIdle();
 			}
 		}
 
-		toPrune.clear();
-		toPrune = null;
-		System.gc();
+		// persistent connections are no longer allowed, so the idle ones can go right away
+		checkIdleSessions();
 	}
 
-	public void nukeOldConnections() {
-		// in some rare cases, the connection is unable to remove itself from the session list. if so, it will return true for doTimeoutCheck, meaning that we will have to clear it out from here instead
-		List<HTTPSession> remove = Collections.checkedList(new ArrayList<HTTPSession>(), HTTPSession.class);
+	public void logRejectedConnections() {
+		String summary = admissionFilter.getRejectSummary();
 
-		synchronized(sessions) {
-			for(HTTPSession session : sessions) {
-				if(session.doTimeoutCheck()) {
-					Out.debug("Adding session " + session + " to timeout kill queue");
-					remove.add(session);
-				}
-			}
-			
-			for(HTTPSession session : remove) {
-				removeHTTPSession(session);
-			}
+		if(summary != null) {
+			Out.info(summary);
 		}
+	}
 
-		if(!remove.isEmpty()) {
-			// it can take a long time (several minutes) to kill SSL sockets for some reason, so fire up a new thread to handle the wet work
-			(new HTTPSessionKiller(remove)).satsuriku();
+	public long getRejectedConnections(int reason) {
+		return admissionFilter.getRejectCount(reason);
+	}
+
+	private void checkIdleSessions() {
+		// idle persistent connections can also be closed because of things that do not depend on time, like the server running out of connection slots or the client tripping the flood control. these are rare, so we just check all of them when it happens
+		for(HTTPSession session : sessions.keySet()) {
+			if(session.keepAliveIdle) {
+				sessionTimer.checkNow(session);
+			}
 		}
 	}
 
@@ -228,71 +373,52 @@ public class HTTPServer implements Runnable {
 	public void run() {
 		try {
 			while(true) {
-				SSLSocket socket = (SSLSocket) listener.accept();
-				boolean forceClose = false;
-				InetAddress addr = socket.getInetAddress();
-				String hostAddress = addr.getHostAddress().toLowerCase();
-				boolean localNetworkAccess = Settings.getClientHost().replace("::ffff:", "").equals(hostAddress) || localNetworkPattern.matcher(hostAddress).matches();
-				boolean apiServerAccess = Settings.isValidRPCServer(addr);
-
-				if(!apiServerAccess && !allowNormalConnections) {
-					Out.warning("Rejecting connection request from " + hostAddress + " during startup.");
-					forceClose = true;
+				SSLSocket socket = null;
+				SocketChannel socketChannel = null;
+				InetAddress addr = null;
+
+				if(listenerChannel != null) {
+					socketChannel = listenerChannel.accept();
+					addr = socketChannel.socket().getInetAddress();
+				}
+				else {
+					socket = (SSLSocket) listener.accept();
+					addr = socket.getInetAddress();
 				}
-				else if(!apiServerAccess && !localNetworkAccess) {
-					// connections from the API Server and the local network are not subject to the max connection limit or the flood control
 
-					int maxConnections = Settings.getMaxConnections();
+				byte[] address = addr.getAddress();
+				boolean apiServerAccess = Settings.isValidRPCServer(address);
+				boolean localNetworkAccess = admissionFilter.isLocalNetwork(address);
 
-					if(sessionCount > maxConnections) {
-						Out.warning("Exceeded the maximum allowed number of incoming connections (" + maxConnections + ").");
-						forceClose = true;
-					}
-					else {
-						if(sessionCount > maxConnections * 0.8) {
-							// let the dispatcher know that we're close to the breaking point. this will make it back off for 30 sec, and temporarily turns down the dispatch rate to half.
-							client.getServerHandler().notifyOverload();
+				if(!admitConnection(addr, address, apiServerAccess, localNetworkAccess)) {
+					try {
+						if(socketChannel != null) {
+							socketChannel.close();
 						}
-						
-						if(!Settings.isDisableFloodControl()) {
-							// this flood control will stop clients from opening more than ten connections over a (roughly) five second floating window, and forcibly block them for 60 seconds if they do.
-							FloodControlEntry fce = null;
-							synchronized(floodControlTable) {
-								fce = floodControlTable.get(hostAddress);
-								if(fce == null) {
-									fce = new FloodControlEntry(addr);
-									floodControlTable.put(hostAddress, fce);
-								}
-							}
-
-							if(!fce.isBlocked()) {
-								if(!fce.hit()) {
-									Out.warning("Flood control activated for  " + hostAddress + " (blocking for 60 seconds)");
-									forceClose = true;
-								}
-							}
-							else {
-								forceClose = true;
-							}
+						else {
+							socket.close();
 						}
-					}
-				}
-
-				if(forceClose) {
-					try {
-						socket.close();
 					} catch(Exception e) {}
 				}
 				else {
 					// all is well. keep truckin'
-					HTTPSession hs = new HTTPSession(socket, getNewConnId(), localNetworkAccess, this);
+					HTTPSession hs = null;
 
-					synchronized(sessions) {
-						sessions.add(hs);
-						sessionCount = sessions.size();
+					if(socketChannel != null) {
+						hs = new HTTPSessionNIO(socketChannel, createSSLEngine(), getNewConnId(), localNetworkAccess, this);
 					}
-					
-					Stats.setOpenConnections(sessionCount);
+					else {
+						hs = new HTTPSession(socket, getNewConnId(), localNetworkAccess, this);
+					}
+
+					if(!apiServerAccess && !localNetworkAccess) {
+						// admitConnection took a handshake slot for this address, which the session gives back once its handshake is done
+						hs.setHandshakeAddress(address);
+					}
+
+					sessions.put(hs, Boolean.TRUE);
+					Stats.setOpenConnections(sessionCount.incrementAndGet());
+					sessionTimer.schedule(hs);
 					hs.handleSession();
 				}
 			}
@@ -307,69 +433,172 @@ public class HTTPServer implements Runnable {
 			}
 
 			listener = null;
+			listenerChannel = null;
 		}
 		
 		isTerminated = true;
 	}
-	
-	public boolean isThreadTerminated() {
-		return isTerminated;
-	}
 
-	private synchronized int getNewConnId() {
-		return ++currentConnId;
-	}
+	private boolean admitConnection(InetAddress addr, byte[] address, boolean apiServerAccess, boolean localNetworkAccess) {
+		if(!apiServerAccess && !allowNormalConnections) {
+			Out.warning("Rejecting connection request from " + addr.getHostAddress() + " during startup.");
+			admissionFilter.countReject(HTTPAdmissionFilter.REJECT_STARTUP);
+			return false;
+		}
+		else if(!apiServerAccess && !localNetworkAccess) {
+			// connections from the API Server and the local network are not subject to the max connection limit, the flood control or the handshake limit
 
-	public void removeHTTPSession(HTTPSession httpSession) {
-		synchronized(sessions) {
-			sessions.remove(httpSession);
-			sessionCount = sessions.size();
-			Stats.setOpenConnections(sessionCount);
+			int maxConnections = Settings.getMaxConnections();
+			int currentSessions = sessionCount.get();
+
+			if(currentSessions > maxConnections * 0.8 != isOverloaded) {
+				isOverloaded = !isOverloaded;
+
+				if(isOverloaded) {
+					// isKeepAliveAllowed now rejects persistent connections, including the ones that are already idle
+					checkIdleSessions();
+				}
+			}
+
+			if(currentSessions > maxConnections) {
+				Out.warning("Exceeded the maximum allowed number of incoming connections (" + maxConnections + ").");
+				admissionFilter.countReject(HTTPAdmissionFilter.REJECT_CONNECTION_LIMIT);
+				return false;
+			}
+			else {
+				if(isOverloaded) {
+					// let the dispatcher know that we're close to the breaking point. this will make it back off for 30 sec, and temporarily turns down the dispatch rate to half.
+					client.getServerHandler().notifyOverload();
+				}
+				
+				if(!Settings.isDisableFloodControl()) {
+					// this flood control will stop clients from opening more than ten connections in a burst, refilled at one per second, and forcibly block them for 60 seconds if they do.
+					int floodStatus = admissionFilter.hit(address);
+
+					if(floodStatus != HTTPAdmissionFilter.FLOOD_OK) {
+						if(floodStatus == HTTPAdmissionFilter.FLOOD_BLOCK_STARTED) {
+							Out.warning("Flood control activated for  " + addr.getHostAddress() + " (blocking for 60 seconds)");
+							checkIdleSessions();
+						}
+
+						admissionFilter.countReject(HTTPAdmissionFilter.REJECT_FLOOD_CONTROL);
+						return false;
+					}
+				}
+
+				// a client can keep a lot of connections open without tripping the flood control by never finishing the TLS handshake, which is the most expensive part of a connection for us. this limit is not enforced without flood control, as then all connections may come through a single reverse proxy
+				if(!admissionFilter.acquireHandshake(address, Settings.isDisableFloodControl() ? 0 : Settings.getMaxHandshakesPerIP())) {
+					admissionFilter.countReject(HTTPAdmissionFilter.REJECT_HANDSHAKE_LIMIT);
+					return false;
+				}
+			}
 		}
-	}
 
-	public HTTPBandwidthMonitor getBandwidthMonitor() {
-		return bandwidthMonitor;
+		return true;
 	}
 
-	public HentaiAtHomeClient getHentaiAtHomeClient() {
-		return client;
+	public void handshakeFinished(byte[] address) {
+		admissionFilter.releaseHandshake(address);
 	}
 
-	private class FloodControlEntry {
-		private InetAddress addr;
-		private int connectCount;
-		private long lastConnect;
-		private long blocktime;
-
-		public FloodControlEntry(InetAddress addr) {
-			this.addr = addr;
-			this.connectCount = 0;
-			this.lastConnect = 0;
-			this.blocktime = 0;
+	public boolean isKeepAliveAllowed(HTTPSession session) {
+		if(listener == null && listenerChannel == null) {
+			// the server is shutting down or restarting
+			return false;
 		}
 
-		public boolean isStale() {
-			return lastConnect < System.currentTimeMillis() - 60000;
-		}
+		InetAddress addr = session.getSocketInetAddress();
 
-		public boolean isBlocked() {
-			return blocktime > System.currentTimeMillis();
+		if(session.isLocalNetworkAccess() || Settings.isValidRPCServer(addr)) {
+			return true;
 		}
 
-		public boolean hit() {
-			long nowtime = System.currentTimeMillis();
-			connectCount = Math.max(0, connectCount - (int) Math.floor((nowtime - lastConnect) / 1000)) + 1;
-			lastConnect = nowtime;
+		// idle persistent connections still count against the connection limit, so we stop handing them out at the same point where we ask the dispatcher to back off
+		if(sessionCount.get() > Settings.getMaxConnections() * 0.8) {
+			return false;
+		}
 
-			if(connectCount > 10) {
-				// block this client from connecting for 60 seconds
-				blocktime = nowtime + 60000;
+		if(!Settings.isDisableFloodControl()) {
+			// requests on a persistent connection do not count towards the flood control, but a client that has been blocked also loses the connections it already has
+			if(admissionFilter.isBlocked(addr.getAddress())) {
 				return false;
 			}
-			else {
-				return true;
+		}
+
+		return true;
+	}
+
+	private SSLEngine createSSLEngine() {
+		SSLEngine sslEngine = sslContext.createSSLEngine();
+		sslEngine.setUseClientMode(false);
+		sslEngine.setEnabledProtocols(enabledProtocols);
+
+		if(setApplicationProtocolSelector != null) {
+			try {
+				setApplicationProtocolSelector.invoke(sslEngine, alpnSelector);
 			}
+			catch(Exception e) {
+				Out.debug("Failed to set ALPN protocols: " + e);
+			}
+		}
+
+		return sslEngine;
+	}
+
+	public boolean isHTTP2Negotiated(SSLEngine sslEngine) {
+		if(getApplicationProtocol == null) {
+			return false;
+		}
+
+		try {
+			return "h2".equals(getApplicationProtocol.invoke(sslEngine));
+		}
+		catch(Exception e) {
+			return false;
+		}
+	}
+
+	public synchronized HTTPServerEventLoop getNextEventLoop() {
+		nextEventLoop = (nextEventLoop + 1) % eventLoops.length;
+		return eventLoops[nextEventLoop];
+	}
+
+	public ExecutorService getRequestProcessor() {
+		return requestProcessor;
+	}
+
+	public boolean isThreadTerminated() {
+		return isTerminated;
+	}
+
+	private synchronized int getNewConnId() {
+		return ++currentConnId;
+	}
+
+	public void removeHTTPSession(HTTPSession httpSession) {
+		// this can be called both by the session itself and by the session timer, so only the first call counts
+		if(sessions.remove(httpSession) != null) {
+			Stats.setOpenConnections(sessionCount.decrementAndGet());
+			sessionTimer.schedule(httpSession);
+		}
+	}
+
+	public boolean isRegistered(HTTPSession httpSession) {
+		return sessions.containsKey(httpSession);
+	}
+
+	public void scheduleTimeoutCheck(HTTPSession httpSession) {
+		// called when the timeout of a session may have moved closer, like when it goes idle
+		if(sessions.containsKey(httpSession)) {
+			sessionTimer.schedule(httpSession);
 		}
 	}
+
+	public HTTPBandwidthMonitor getBandwidthMonitor() {
+		return bandwidthMonitor;
+	}
+
+	public HentaiAtHomeClient getHentaiAtHomeClient() {
+		return client;
+	}
 }
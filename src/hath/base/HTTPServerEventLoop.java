@@ -0,0 +1,168 @@
+/*
+
+Copyright 2008-2024 E-Hentai.org
+https://forums.e-hentai.org/
+tenboro@e-hentai.org
+
+This file is part of Hentai@Home.
+
+Hentai@Home is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Hentai@Home is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Hentai@Home.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+
+
+package hath.base;
+
+import java.lang.Thread;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+// each event loop owns a selector and drives any number of HTTPSessionNIO instances on a single thread. sessions are assigned round-robin by HTTPServer, and stay with the same loop until they are closed.
+
+public class HTTPServerEventLoop implements Runnable {
+	private Selector selector;
+	private Thread myThread;
+	private ConcurrentLinkedQueue<HTTPSessionNIO> wakeQueue;
+	private PriorityQueue<HTTPSessionNIO> quotaQueue;
+	private HTTPSessionNIO quotaRetrySession = null;
+	private boolean quotaDenied = false;
+	private long quotaSequence = 0;
+	private volatile boolean shutdownWhenIdle = false;
+
+	public HTTPServerEventLoop() throws java.io.IOException {
+		selector = Selector.open();
+		wakeQueue = new ConcurrentLinkedQueue<HTTPSessionNIO>();
+		quotaQueue = new PriorityQueue<HTTPSessionNIO>(11, new Comparator<HTTPSessionNIO>() {
+			public int compare(HTTPSessionNIO a, HTTPSessionNIO b) {
+				// the keys are deadlines from HTTPBandwidthMonitor.getPriority, which are nanoTime values and have to be compared by their difference. with FIFO scheduling they are all zero
+				long diff = a.quotaKey - b.quotaKey;
+
+				if(diff == 0) {
+					diff = a.quotaSequence - b.quotaSequence;
+				}
+
+				return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+			}
+		});
+		myThread = new Thread(this);
+		myThread.setDaemon(true);
+	}
+
+	public void startEventLoop() {
+		myThread.start();
+	}
+
+	public void shutdownWhenIdle() {
+		// called when the listener is closed. the loop will keep serving the sessions it already has, and exit when the last one is done
+		shutdownWhenIdle = true;
+		selector.wakeup();
+	}
+
+	public Selector getSelector() {
+		return selector;
+	}
+
+	public void wakeSession(HTTPSessionNIO session) {
+		// can be called from any thread. the session will be stepped on the event loop thread as soon as possible
+		wakeQueue.add(session);
+		selector.wakeup();
+	}
+
+	public void markWaitingForQuota(HTTPSessionNIO session, boolean madeProgress, long priority) {
+		// only called from the event loop thread. sessions waiting for bandwidth quota are ordered by priority, and then take turns in FIFO order; a session that was denied without sending anything keeps its place in the queue, while one that used up the quota goes to the back
+		if(session.quotaQueued) {
+			// the key can not change while the session is in the queue. this only happens if a session was woken up for some other reason while it was waiting
+			quotaQueue.remove(session);
+		}
+
+		if(session == quotaRetrySession && !madeProgress) {
+			quotaDenied = true;
+		}
+		else {
+			session.quotaSequence = ++quotaSequence;
+		}
+
+		session.quotaKey = priority;
+		session.quotaQueued = true;
+		quotaQueue.add(session);
+	}
+
+	public boolean mayAcquireQuota(HTTPSessionNIO session, long priority) {
+		// a session that is not taking its turn in the quota queue must not take the quota from under the sessions that are waiting for it, unless it would have been ahead of them anyway
+		if(quotaQueue.isEmpty() || session == quotaRetrySession) {
+			return true;
+		}
+
+		return priority - quotaQueue.peek().quotaKey < 0;
+	}
+
+	public boolean isQuotaTurn(HTTPSessionNIO session) {
+		// true if the session is being stepped because it is its turn in the quota queue
+		return session == quotaRetrySession;
+	}
+
+	public void run() {
+		while(!(shutdownWhenIdle && selector.keys().isEmpty() && wakeQueue.isEmpty())) {
+			try {
+				// sessions waiting for quota are polled every 10 ms. sessions waiting for a proxied file are woken up by the downloader
+				selector.select(quotaQueue.isEmpty() ? 1000 : 10);
+			}
+			catch(java.io.IOException e) {
+				Out.warning("HTTPServerEventLoop: Selector failed: " + e);
+				break;
+			}
+
+			HTTPSessionNIO session = null;
+
+			while((session = wakeQueue.poll()) != null) {
+				session.step();
+			}
+
+			Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+
+			while(keys.hasNext()) {
+				SelectionKey key = keys.next();
+				keys.remove();
+
+				if(key.isValid()) {
+					((HTTPSessionNIO) key.attachment()).step();
+				}
+			}
+
+			if(!quotaQueue.isEmpty()) {
+				// there is no point in asking for more quota once a session has been turned down, as the quota is shared
+				int retryCount = quotaQueue.size();
+				quotaDenied = false;
+
+				while(!quotaDenied && retryCount-- > 0) {
+					quotaRetrySession = quotaQueue.poll();
+					quotaRetrySession.quotaQueued = false;
+					quotaRetrySession.step();
+				}
+
+				quotaRetrySession = null;
+			}
+		}
+
+		try {
+			selector.close();
+		} catch(Exception e) {}
+
+		Out.debug("HTTPServerEventLoop: Event loop terminated");
+	}
+}
@@ -0,0 +1,141 @@
+/*
+
+Copyright 2008-2024 E-Hentai.org
+https://forums.e-hentai.org/
+tenboro@e-hentai.org
+
+This file is part of Hentai@Home.
+
+Hentai@Home is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Hentai@Home is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Hentai@Home.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+
+package hath.base;
+
+import java.net.Socket;
+import java.security.KeyStore;
+import java.security.Principal;
+import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.X509ExtendedKeyManager;
+
+// key manager for the internal HTTP server that allows the certificate to be replaced without restarting the server. handshakes that are already in progress finish with the key material they started with, while new ones pick up the new certificate.
+// the aliases we hand out are prefixed with the generation of the key material, since the TLS implementation looks up the certificate chain and the private key in separate calls after choosing the alias.
+
+public class HTTPServerKeyManager extends X509ExtendedKeyManager {
+	// the current and the previous key material, indexed by generation modulo 2. the array slot is always written before the generation is published
+	private X509ExtendedKeyManager[] keyManagers = new X509ExtendedKeyManager[2];
+	private volatile int currentGeneration = 0;
+
+	public HTTPServerKeyManager(KeyStore keyStore, char[] password) throws Exception {
+		setKeyStore(keyStore, password);
+	}
+
+	public synchronized void setKeyStore(KeyStore keyStore, char[] password) throws Exception {
+		KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+		kmf.init(keyStore, password);
+
+		Out.debug("Initialized KeyManagerFactory with algorithm=" + kmf.getAlgorithm());
+
+		for(KeyManager keyManager : kmf.getKeyManagers()) {
+			if(keyManager instanceof X509ExtendedKeyManager) {
+				int nextGeneration = currentGeneration + 1;
+				keyManagers[nextGeneration % 2] = (X509ExtendedKeyManager) keyManager;
+				currentGeneration = nextGeneration;
+				return;
+			}
+		}
+
+		throw new java.security.KeyStoreException("No X509 key manager available for algorithm " + kmf.getAlgorithm());
+	}
+
+	public String chooseServerAlias(String keyType, Principal[] issuers, Socket socket) {
+		int generation = currentGeneration;
+		return addGeneration(generation, getKeyManager(generation).chooseServerAlias(keyType, issuers, socket));
+	}
+
+	public String chooseEngineServerAlias(String keyType, Principal[] issuers, SSLEngine engine) {
+		int generation = currentGeneration;
+		return addGeneration(generation, getKeyManager(generation).chooseEngineServerAlias(keyType, issuers, engine));
+	}
+
+	public String[] getServerAliases(String keyType, Principal[] issuers) {
+		int generation = currentGeneration;
+		String[] aliases = getKeyManager(generation).getServerAliases(keyType, issuers);
+
+		if(aliases != null) {
+			for(int i = 0; i < aliases.length; i++) {
+				aliases[i] = addGeneration(generation, aliases[i]);
+			}
+		}
+
+		return aliases;
+	}
+
+	public X509Certificate[] getCertificateChain(String alias) {
+		X509ExtendedKeyManager keyManager = getKeyManager(alias);
+		return keyManager == null ? null : keyManager.getCertificateChain(removeGeneration(alias));
+	}
+
+	public PrivateKey getPrivateKey(String alias) {
+		X509ExtendedKeyManager keyManager = getKeyManager(alias);
+		return keyManager == null ? null : keyManager.getPrivateKey(removeGeneration(alias));
+	}
+
+	// we never act as a TLS client
+
+	public String chooseClientAlias(String[] keyType, Principal[] issuers, Socket socket) {
+		return null;
+	}
+
+	public String chooseEngineClientAlias(String[] keyType, Principal[] issuers, SSLEngine engine) {
+		return null;
+	}
+
+	public String[] getClientAliases(String keyType, Principal[] issuers) {
+		return null;
+	}
+
+	private X509ExtendedKeyManager getKeyManager(int generation) {
+		return keyManagers[generation % 2];
+	}
+
+	private X509ExtendedKeyManager getKeyManager(String alias) {
+		if(alias == null || alias.indexOf(':') < 0) {
+			return null;
+		}
+
+		try {
+			int generation = Integer.parseInt(alias.substring(0, alias.indexOf(':')));
+			int current = currentGeneration;
+
+			if(generation == current || (generation == current - 1 && generation > 0)) {
+				return getKeyManager(generation);
+			}
+		} catch(NumberFormatException e) {}
+
+		return null;
+	}
+
+	private static String addGeneration(int generation, String alias) {
+		return alias == null ? null : generation + ":" + alias;
+	}
+
+	private static String removeGeneration(String alias) {
+		return alias.substring(alias.indexOf(':') + 1);
+	}
+}
@@ -23,50 +23,73 @@ along with Hentai@Home.  If not, see <https://www.gnu.org/licenses/>.
 
 package hath.base;
 
-import java.util.Date;
-import java.util.TimeZone;
-import java.text.DecimalFormat;
-import java.text.SimpleDateFormat;
 import java.net.InetAddress;
 import java.lang.Thread;
 import java.lang.StringBuilder;
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
+import java.io.InputStream;
 import java.io.DataOutputStream;
 import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
-import java.util.regex.Pattern;
-import java.util.regex.Matcher;
 import javax.net.ssl.SSLSocket;
 
 public class HTTPSession implements Runnable {
 
 	public static final String CRLF = "\r\n";
 
-	private static final Pattern getheadPattern = Pattern.compile("^((GET)|(HEAD)).*", Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+	private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
 
 	private SSLSocket socket;
 	private HTTPServer httpServer;
 	private int connId;
 	private Thread myThread;
 	private boolean localNetworkAccess;
-	private long sessionStartTime, lastPacketSend;
-	private HTTPResponse hr;
+	private int requestCount = 0;
+	private byte[] recordBuffer = null;
+	private HTTPResponseHeader responseHeader = null;
+	private byte[] handshakeAddress = null;
+	private long responseStartNanos = 0, firstByteNanos = 0, responseBytesSent = 0;
+	private boolean connectionClose = false, connectionKeepAlive = false;
+	protected long sessionStartTime, lastPacketSend;
+	protected boolean keepAlive = false;
+	protected volatile boolean keepAliveIdle = false;
+	protected HTTPResponse hr;
+	protected HTTPResponseProcessor hpc;
+	protected String request;
+	private HTTPRequestParser requestParser = new HTTPRequestParser();
+	private String rangeHeader = null, ifRangeHeader = null, ifNoneMatchHeader = null, ifModifiedSinceHeader = null;
 
 	public HTTPSession(SSLSocket socket, int connId, boolean localNetworkAccess, HTTPServer httpServer) {
-		sessionStartTime = System.currentTimeMillis();
+		this(connId, localNetworkAccess, httpServer);
 		this.socket = socket;
+	}
+
+	protected HTTPSession(int connId, boolean localNetworkAccess, HTTPServer httpServer) {
+		sessionStartTime = System.currentTimeMillis();
 		this.connId = connId;
 		this.localNetworkAccess = localNetworkAccess;
 		this.httpServer = httpServer;
 	}
 
 	public void handleSession() {
-		myThread = new Thread(this);
+		myThread = Tools.createThread(this);
 		myThread.start();
 	}
 
-	private void connectionFinished() {
+	public void setHandshakeAddress(byte[] address) {
+		handshakeAddress = address;
+	}
+
+	protected void handshakeFinished() {
+		// gives back the handshake slot taken by the admission filter. called once the handshake has completed, and again when the connection is closed in case it never did
+		if(handshakeAddress != null) {
+			httpServer.handshakeFinished(handshakeAddress);
+			handshakeAddress = null;
+		}
+	}
+
+	protected void connectionFinished() {
+		handshakeFinished();
+
 		if(hr != null) {
 			hr.requestCompleted();
 		}
@@ -76,152 +99,174 @@ public class HTTPSession implements Runnable {
 
 	public void run() {
 		// why are we back to input/output streams? because java has no SSLSocketChannel, using them with SSLEngine is stupidly complex, and all the middleware libraries for SSL over channels are either broken, outdated, or require a major code rewrite
-		// may switch back to channels in the future if a decent library materializes, or I can be arsed to learn SSLEngine and implementing it does not require a major rewrite
+		// this is the fallback blocking mode used with --use-blocking-io. the default is now the SSLEngine-based HTTPSessionNIO, which drives the same HTTPResponse and HTTPResponseProcessor code from a small pool of event loops
 		HTTPStreamReader reader = null;
 		DataOutputStream writer = null;
-		HTTPResponseProcessor hpc = null;
 		String info = this.toString() + " ";
 
 		try {
+			// the handshake is done up front rather than on the first read, so the handshake slot can be given back as soon as possible
 			socket.setSoTimeout(10000);
+			socket.startHandshake();
+			handshakeFinished();
 
-			reader = new HTTPStreamReader(new InputStreamReader(socket.getInputStream()));
+			reader = new HTTPStreamReader(socket.getInputStream());
 			writer = new DataOutputStream(socket.getOutputStream());
 
-			// scan through the HTTP request header until we find a GET or HEAD request. everything else is ignored
-			// readLine in HTTPStreamReader is limited to 1000 bytes per line; it will return the first 1000 bytes if the limit is exceeded, and leave the rest of the line intact
-			// if the request header is more than 100 lines or 10000 bytes, we bail, since the request is clearly malformed (and probably malicious)
-			String request = null;
-			int rcvdBytes = 0, readLines = 0;
-
 			do {
-				String currentLine = reader.readLine();
+				// on a persistent connection, we wait up to the keepalive timeout for the next request to start. pipelined requests are already sitting in the reader buffer, and are processed in order
+				socket.setSoTimeout(requestCount > 0 ? Settings.getKeepAliveTimeout() * 1000 : 10000);
 
-				if(currentLine == null) {
-					// EOF
-					break;
-				}
-
-				rcvdBytes += currentLine.length();
+				// scan through the HTTP request header until we find a GET or HEAD request. everything else is ignored
+				// readLine in HTTPStreamReader is limited to 1000 bytes per line; it will return the first 1000 bytes if the limit is exceeded, and leave the rest of the line intact
+				// if the request header is more than 100 lines or 10000 bytes, we bail, since the request is clearly malformed (and probably malicious)
+				int rcvdBytes = 0, readLines = 0;
 
-				if(getheadPattern.matcher(currentLine).matches()) {
-					request = currentLine;
-				}
-				else if(currentLine.isEmpty()) {
-					// end of request header (empty line + EOL)
-					break;
-				}
-			} while( (++readLines < 100) && (rcvdBytes < 10000) );
-
-			// parse the request and get the status code and response processor - in case of an error, this will be a text type with the error message
-			hr = new HTTPResponse(this);
-			hr.parseRequest(request, localNetworkAccess);
-			hpc = hr.getHTTPResponseProcessor();
-			int statusCode = hr.getResponseStatusCode();
-			int contentLength = hpc.getContentLength();
-
-			// we'll create a new date formatter for each session instead of synchronizing on a shared formatter. (sdf is not thread-safe)
-			SimpleDateFormat sdf = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss", java.util.Locale.US);
-			sdf.setTimeZone(TimeZone.getTimeZone("UTC"));
-
-			// build the header
-			StringBuilder header = new StringBuilder(300);
-			header.append(getHTTPStatusHeader(statusCode));
-			header.append(hpc.getHeader());
-			header.append("Date: " + sdf.format(new Date()) + " GMT" + CRLF);
-			header.append("Server: Genetic Lifeform and Distributed Open Server " + Settings.CLIENT_VERSION + CRLF);
-			header.append("Connection: close" + CRLF);
-			header.append("Content-Type: " + hpc.getContentType() + CRLF);
+				do {
+					boolean lineRead = false;
 
-			if(contentLength > 0) {
-				header.append("Cache-Control: public, max-age=31536000" + CRLF);
-				header.append("Content-Length: " + contentLength + CRLF);
-			}
+					try {
+						lineRead = reader.readLine();
+					}
+					catch(java.net.SocketTimeoutException e) {
+						if(rcvdBytes == 0 && requestCount > 0) {
+							// idle persistent connection timed out
+							return;
+						}
 
-			header.append(CRLF);
+						throw e;
+					}
 
-			// write the header to the socket
-			byte[] headerBytes = header.toString().getBytes(Charset.forName("ISO-8859-1"));
+					if(!lineRead) {
+						// EOF
+						if(rcvdBytes == 0 && requestCount > 0) {
+							// the client closed an idle persistent connection
+							return;
+						}
 
-			if(request != null && contentLength > 0) {
-				try {
-					// buffer size might be limited by OS. for linux, check net.core.wmem_max
-					int bufferSize = (int) Math.min(contentLength + headerBytes.length + 32, Math.min(Settings.isUseLessMemory() ? 131072 : 524288, Math.round(0.2 * Settings.getThrottleBytesPerSec())));
-					socket.setSendBufferSize(bufferSize);
-					//Out.debug("Socket size for " + connId + " is now " + socket.getSendBufferSize() + " (requested " + bufferSize + ")");
-				}
-				catch (Exception e) {
-					Out.info(e.getMessage());
-				}
-			}
+						disableKeepAlive();
+						break;
+					}
 
-			HTTPBandwidthMonitor bwm = httpServer.getBandwidthMonitor();
+					if(rcvdBytes == 0) {
+						if(keepAliveIdle) {
+							// the next request on a persistent connection gets the full start timeout, not what is left of it after the idle time
+							keepAliveIdle = false;
+							sessionStartTime = System.currentTimeMillis();
+							httpServer.scheduleTimeoutCheck(this);
+						}
 
-			if(bwm != null && !localNetworkAccess) {
-				bwm.waitForQuota(myThread, headerBytes.length);
-			}
+						socket.setSoTimeout(10000);
+					}
 
-			writer.write(headerBytes, 0, headerBytes.length);
+					int lineLength = reader.lineEnd - reader.lineStart;
+					rcvdBytes += lineLength + 1;
 
-			//Out.debug("Wrote " +  headerBytes.length + " header bytes to socket for connId=" + connId + " with contentLength=" + contentLength);
+					if(lineLength == 0) {
+						// end of request header (empty line + EOL)
+						break;
+					}
 
-			if(!localNetworkAccess) {
-				Stats.bytesSent(headerBytes.length);
-			}
+					processHeaderLine(reader.buffer, reader.lineStart, reader.lineEnd);
 
-			if(hr.isRequestHeadOnly()) {
-				// if this is a HEAD request, we are done
-				writer.flush();
+					if( (++readLines >= 100) || (rcvdBytes >= 10000) ) {
+						// the rest of this header would be mistaken for the next request
+						disableKeepAlive();
+						break;
+					}
+				} while(true);
 
-				info += "Code=" + statusCode + " ";
-				Out.info(info + (request == null ? "Invalid Request" : request));
-			}
-			else {
-				// if this is a GET request, process the body if we have one
-				info += "Code=" + statusCode + " Bytes=" + String.format("%1$-8s", contentLength) + " ";
+				ByteBuffer headerBuffer = prepareResponse();
+				int headerLength = headerBuffer.remaining();
+				int statusCode = hr.getResponseStatusCode();
+				int contentLength = hpc.getContentLength();
 
-				if(request != null) {
-					// skip the startup message for error requests
-					Out.info(info + request);
+				if(request != null && contentLength > 0) {
+					try {
+						socket.setSendBufferSize(getSendBufferSize(headerLength));
+						//Out.debug("Socket size for " + connId + " is now " + socket.getSendBufferSize());
+					}
+					catch (Exception e) {
+						Out.info(e.getMessage());
+					}
 				}
 
-				long startTime = System.currentTimeMillis();
-
-				if(contentLength > 0) {
-					int writtenBytes = 0;
-					int lastWriteLen = 0;
-
-					// bytebuffers returned by getPreparedTCPBuffer should never have a remaining() larger than Settings.TCP_PACKET_SIZE. if that happens due to some bug, we will hit an IndexOutOfBounds exception during the get below
-					byte[] buffer = new byte[Settings.TCP_PACKET_SIZE];
+				HTTPBandwidthMonitor bwm = httpServer.getBandwidthMonitor();
+				startResponseTiming();
 
-					while(writtenBytes < contentLength) {
-						lastPacketSend = System.currentTimeMillis();
-						ByteBuffer tcpBuffer = hpc.getPreparedTCPBuffer();
-						lastWriteLen = tcpBuffer.remaining();
+				// a 304 is the cheap alternative to sending the file, so it is not held back by the bandwidth limit
+				if(bwm != null && !localNetworkAccess && statusCode != 304) {
+					bwm.waitForQuota(myThread, headerLength, getQuotaPriority(bwm));
+				}
 
-						if(bwm != null && !localNetworkAccess) {
-							bwm.waitForQuota(myThread, lastWriteLen);
-						}
+				writer.write(headerBuffer.array(), headerBuffer.arrayOffset() + headerBuffer.position(), headerLength);
 
-						tcpBuffer.get(buffer, 0, lastWriteLen);
-						writer.write(buffer, 0, lastWriteLen);
-						writtenBytes += lastWriteLen;
+				//Out.debug("Wrote " +  headerLength + " header bytes to socket for connId=" + connId + " with contentLength=" + contentLength);
 
-						//Out.debug("Wrote " + lastWriteLen + " content bytes to socket for connId=" + connId + " with contentLength=" + contentLength);
+				if(!localNetworkAccess) {
+					Stats.bytesSent(headerLength);
+				}
 
-						if(!localNetworkAccess) {
-							Stats.bytesSent(lastWriteLen);
+				if(hr.isRequestHeadOnly()) {
+					// if this is a HEAD request, we are done
+					writer.flush();
+					logRequestStart();
+				}
+				else {
+					// if this is a GET request, process the body if we have one
+					logRequestStart();
+					long startTime = System.currentTimeMillis();
+
+					if(contentLength > 0) {
+						int writtenBytes = 0;
+						int lastWriteLen = 0;
+
+						while(writtenBytes < contentLength) {
+							// each write to the socket becomes a single TLS record, so the body is written in chunks of the record size we want
+							lastPacketSend = System.currentTimeMillis();
+							ByteBuffer tcpBuffer = hpc.getPreparedTCPBuffer(getRecordSize(writtenBytes));
+							lastWriteLen = tcpBuffer.remaining();
+
+							if(bwm != null && !localNetworkAccess) {
+								bwm.waitForQuota(myThread, lastWriteLen, getQuotaPriority(bwm));
+							}
+
+							if(tcpBuffer.hasArray()) {
+								writer.write(tcpBuffer.array(), tcpBuffer.arrayOffset() + tcpBuffer.position(), lastWriteLen);
+							}
+							else {
+								// direct buffers have to be copied out, as the socket streams only take arrays. bytebuffers returned by getPreparedTCPBuffer should never have a remaining() larger than the requested length
+								if(recordBuffer == null) {
+									recordBuffer = new byte[Settings.TLS_RECORD_SIZE];
+								}
+
+								tcpBuffer.get(recordBuffer, 0, lastWriteLen);
+								writer.write(recordBuffer, 0, lastWriteLen);
+							}
+
+							writtenBytes += lastWriteLen;
+							countBodyBytes(lastWriteLen);
+
+							//Out.debug("Wrote " + lastWriteLen + " content bytes to socket for connId=" + connId + " with contentLength=" + contentLength);
+
+							if(!localNetworkAccess) {
+								Stats.bytesSent(lastWriteLen);
+							}
 						}
 					}
+
+					writer.flush();
+
+					// while the outputstream is flushed and empty, the bytes may not have made it further than the OS network buffers, so the time calculated here is approximate at best and widely misleading at worst, especially if the BWM is disabled
+					logRequestFinished(System.currentTimeMillis() - startTime);
 				}
 
-				writer.flush();
+				if(!keepAlive) {
+					break;
+				}
 
-				// while the outputstream is flushed and empty, the bytes may not have made it further than the OS network buffers, so the time calculated here is approximate at best and widely misleading at worst, especially if the BWM is disabled
-				long sendTime = System.currentTimeMillis() - startTime;
-				DecimalFormat df = new DecimalFormat("0.00");
-				Out.info(info + "Finished processing request in " + df.format(sendTime / 1000.0) + " seconds" + (sendTime >= 10 ? " (" + df.format(contentLength / (float) sendTime) + " KB/s)" : ""));
-			}
+				requestFinished();
+			} while(true);
 		}
 		catch(Exception e) {
 			Out.debug(info + "The connection was interrupted or closed by the remote host.");
@@ -233,36 +278,258 @@ public class HTTPSession implements Runnable {
 				hpc.cleanup();
 			}
 
-			try { reader.close(); writer.close(); } catch(Exception e) {}
+			try { writer.close(); } catch(Exception e) {}
 			try { socket.close(); } catch(Exception e) {}
+
+			connectionFinished();
 		}
+	}
 
-		connectionFinished();
+	protected void processHeaderLine(String currentLine) {
+		byte[] line = currentLine.getBytes(ISO_8859_1);
+		processHeaderLine(line, 0, line.length);
 	}
 
-	private String getHTTPStatusHeader(int statuscode) {
-		switch(statuscode) {
-			case 200: return "HTTP/1.1 200 OK" + CRLF;
-			case 301: return "HTTP/1.1 301 Moved Permanently" + CRLF;
-			case 400: return "HTTP/1.1 400 Bad Request" + CRLF;
-			case 403: return "HTTP/1.1 403 Permission Denied" + CRLF;
-			case 404: return "HTTP/1.1 404 Not Found" + CRLF;
-			case 405: return "HTTP/1.1 405 Method Not Allowed" + CRLF;
-			case 418: return "HTTP/1.1 418 I'm a teapot" + CRLF;
-			case 501: return "HTTP/1.1 501 Not Implemented" + CRLF;
-			case 502: return "HTTP/1.1 502 Bad Gateway" + CRLF;
-			default: return "HTTP/1.1 500 Internal Server Error" + CRLF;
+	protected void processHeaderLine(byte[] data, int start, int end) {
+		// only the request line and the few headers we care about are turned into strings
+		if(HTTPRequestParser.regionMatches(data, start, end, "GET") || HTTPRequestParser.regionMatches(data, start, end, "HEAD")) {
+			setRequestLine(data, start, end);
+		}
+		else if(HTTPRequestParser.regionMatches(data, start, end, "Connection:")) {
+			connectionClose |= HTTPRequestParser.contains(data, start + 11, end, "close");
+			connectionKeepAlive |= HTTPRequestParser.contains(data, start + 11, end, "keep-alive");
+		}
+		else if(HTTPRequestParser.regionMatches(data, start, end, "Range:")) {
+			rangeHeader = HTTPRequestParser.getValue(data, start + 6, end);
+		}
+		else if(HTTPRequestParser.regionMatches(data, start, end, "If-Range:")) {
+			ifRangeHeader = HTTPRequestParser.getValue(data, start + 9, end);
 		}
+		else if(HTTPRequestParser.regionMatches(data, start, end, "If-None-Match:")) {
+			ifNoneMatchHeader = HTTPRequestParser.getValue(data, start + 14, end);
+		}
+		else if(HTTPRequestParser.regionMatches(data, start, end, "If-Modified-Since:")) {
+			ifModifiedSinceHeader = HTTPRequestParser.getValue(data, start + 18, end);
+		}
+	}
+
+	protected void setRequestLine(String requestLine) {
+		byte[] line = requestLine.getBytes(ISO_8859_1);
+		setRequestLine(line, 0, line.length);
+	}
+
+	private void setRequestLine(byte[] data, int start, int end) {
+		request = new String(data, start, end - start, ISO_8859_1);
+		requestParser.parse(data, start, end - start);
+	}
+
+	protected void disableKeepAlive() {
+		connectionClose = true;
+	}
+
+	private boolean isKeepAlivePossible() {
+		if(request == null || hr.isServercmd() || requestCount >= Settings.getMaxKeepAliveRequests() || connectionClose) {
+			return false;
+		}
+
+		// error responses other than the usual missing/forbidden file cases end the connection, since the client is probably confused
+		int statusCode = hr.getResponseStatusCode();
+
+		if(statusCode != 200 && statusCode != 206 && statusCode != 301 && statusCode != 304 && statusCode != 403 && statusCode != 404 && statusCode != 416) {
+			return false;
+		}
+
+		if(!httpServer.isKeepAliveAllowed(this)) {
+			return false;
+		}
+
+		// HTTP/1.1 connections are persistent unless the client says otherwise, while HTTP/1.0 clients have to ask for it
+		return !requestParser.isHTTP10() || connectionKeepAlive;
+	}
+
+	protected void requestFinished() {
+		// called after each response on a persistent connection, which then goes back to waiting for the next request
+		if(hpc != null) {
+			hpc.cleanup();
+		}
+
+		if(hr != null) {
+			hr.requestCompleted();
+		}
+
+		hr = null;
+		hpc = null;
+		request = null;
+		keepAlive = false;
+		connectionClose = false;
+		connectionKeepAlive = false;
+		rangeHeader = null;
+		ifRangeHeader = null;
+		ifNoneMatchHeader = null;
+		ifModifiedSinceHeader = null;
+		lastPacketSend = 0;
+		setKeepAliveIdle();
+	}
+
+	protected void setKeepAliveIdle() {
+		// an idle connection times out sooner than one that is sending, so the timer has to know
+		sessionStartTime = System.currentTimeMillis();
+		keepAliveIdle = true;
+		httpServer.scheduleTimeoutCheck(this);
+	}
+
+	protected ByteBuffer prepareResponse() {
+		// parse the request and get the status code and response processor - in case of an error, this will be a text type with the error message
+		hr = new HTTPResponse(this);
+		hr.parseRequest(getRequestParser(), localNetworkAccess);
+		hpc = hr.getHTTPResponseProcessor();
+		int statusCode = hr.getResponseStatusCode();
+		++requestCount;
+		keepAlive = isKeepAlivePossible();
+
+		// build the header. the builder is reused for every request on the connection, and the buffer returned here is only valid until the next one
+		if(responseHeader == null) {
+			responseHeader = new HTTPResponseHeader();
+		}
+
+		int contentLength = hpc.getContentLength();
+
+		responseHeader.reset();
+		responseHeader.appendStatusLine(statusCode);
+		responseHeader.appendConnection(keepAlive, Settings.getKeepAliveTimeout(), Settings.getMaxKeepAliveRequests() - requestCount);
+		responseHeader.appendLines(hpc.getHeader());
+		responseHeader.appendDate();
+		responseHeader.appendServer();
+
+		if(statusCode == 304) {
+			// a 304 has no body by definition, and must not claim to have a zero length one. it should still carry the caching headers the full response would have had
+			responseHeader.appendCacheControl();
+		}
+		else {
+			responseHeader.appendContentType(hpc.getContentType());
+
+			if(contentLength > 0) {
+				responseHeader.appendCacheControl();
+			}
+
+			// persistent connections depend on the client knowing where the response ends, so this is sent even for empty bodies
+			responseHeader.appendContentLength(contentLength);
+		}
+
+		responseHeader.appendEnd();
+
+		return responseHeader.getByteBuffer();
+	}
+
+	protected String getResponseHeaderFields() {
+		// the header fields for HTTP/2 responses, which are encoded by HTTP2HeaderCodec rather than sent as is. these have to match the ones added by prepareResponse
+		int contentLength = hpc.getContentLength();
+
+		StringBuilder header = new StringBuilder(300);
+		header.append(hpc.getHeader());
+		header.append("Date: " + HTTPResponseHeader.getDateValue() + CRLF);
+		header.append("Server: " + HTTPResponseHeader.SERVER + CRLF);
+
+		if(hr.getResponseStatusCode() == 304) {
+			header.append("Cache-Control: " + HTTPResponseHeader.CACHE_CONTROL + CRLF);
+			return header.toString();
+		}
+
+		header.append("Content-Type: " + hpc.getContentType() + CRLF);
+
+		if(contentLength > 0) {
+			header.append("Cache-Control: " + HTTPResponseHeader.CACHE_CONTROL + CRLF);
+		}
+
+		header.append("Content-Length: " + contentLength + CRLF);
+
+		return header.toString();
+	}
+
+	protected int getRecordSize(int writtenBytes) {
+		// dynamic record sizing: the start of the body is sent in records that fit in a single TCP segment, so the client can decrypt and use the first bytes as soon as they arrive instead of waiting for a full 16 KB record to trickle in while the congestion window is still small.
+		// after that, full-size records minimize the per-record header, MAC and syscall overhead
+		if(writtenBytes < Settings.TLS_SMALL_RECORD_BYTES) {
+			return Settings.TLS_SMALL_RECORD_SIZE;
+		}
+
+		HTTPBandwidthMonitor bwm = httpServer.getBandwidthMonitor();
+
+		if(bwm != null && !localNetworkAccess) {
+			// with a low throttle, large records would make the output very bursty, so we keep them within the quota of a single bandwidth monitor tick
+			return Math.max(Settings.TLS_SMALL_RECORD_SIZE, Math.min(Settings.TLS_RECORD_SIZE, bwm.getBytesPerTick()));
+		}
+
+		return Settings.TLS_RECORD_SIZE;
+	}
+
+	protected int getSendBufferSize(int headerLength) {
+		// buffer size might be limited by OS. for linux, check net.core.wmem_max
+		return (int) Math.min(hpc.getContentLength() + headerLength + 32, Math.min(Settings.isUseLessMemory() ? 131072 : 524288, Math.round(0.2 * Settings.getThrottleBytesPerSec())));
+	}
+
+	protected void logRequestStart() {
+		String info = this.toString() + " Code=" + hr.getResponseStatusCode() + " ";
+
+		if(hr.isRequestHeadOnly()) {
+			Out.info(info + (request == null ? "Invalid Request" : request));
+		}
+		else if(request != null) {
+			// skip the startup message for error requests
+			Out.info(info + "Bytes=" + String.format("%1$-8s", hpc.getContentLength()) + " " + request);
+		}
+	}
+
+	public void bodyDataAvailable() {
+		// called by response processors that had to wait for data, once more is available. the blocking sessions wait inside the processor, so there is nothing to do here
+	}
+
+	protected void startResponseTiming() {
+		responseStartNanos = System.nanoTime();
+		responseBytesSent = 0;
+	}
+
+	protected void countBodyBytes(int length) {
+		if(responseBytesSent == 0) {
+			firstByteNanos = System.nanoTime();
+		}
+
+		responseBytesSent += length;
+	}
+
+	public long getQuotaPriority(HTTPBandwidthMonitor bwm) {
+		return bwm.getPriority(responseStartNanos, hpc.getContentLength(), responseBytesSent);
+	}
+
+	protected void logRequestFinished(long sendTime) {
+		if(!localNetworkAccess && responseBytesSent > 0) {
+			Stats.responseSent(responseBytesSent, firstByteNanos - responseStartNanos, System.nanoTime() - responseStartNanos);
+		}
+
+		Out.info(this.toString() + " Code=" + hr.getResponseStatusCode() + " Bytes=" + String.format("%1$-8s", hpc.getContentLength()) + " Finished processing request in " + formatDecimal(sendTime / 1000.0) + " seconds" + (sendTime >= 10 ? " (" + formatDecimal(hpc.getContentLength() / (double) sendTime) + " KB/s)" : ""));
+	}
+
+	private static String formatDecimal(double value) {
+		// same output as DecimalFormat("0.00") for the non-negative values we log, without creating a formatter for every request
+		long hundredths = Math.round(value * 100);
+		long fraction = hundredths % 100;
+		return (hundredths / 100) + (fraction < 10 ? ".0" : ".") + fraction;
 	}
 
 	public boolean doTimeoutCheck() {
 		long nowtime = System.currentTimeMillis();
 
-		if(lastPacketSend < nowtime - 1000 && socket.isClosed()) {
+		if(lastPacketSend < nowtime - 1000 && isSocketClosed()) {
 			// the connecion was already closed and should be removed by the HTTPServer instance.
 			// the lastPacketSend check was added to prevent spurious "Killing stuck session" errors
 			return true;
 		}
+		else if(keepAliveIdle) {
+			// persistent connection waiting for the next request. these are also closed early if the server is running out of connection slots or the client has tripped the flood control
+			if(sessionStartTime < nowtime - Settings.getKeepAliveTimeout() * 1000 || !httpServer.isKeepAliveAllowed(this)) {
+				return true;
+			}
+		}
 		else {
 			int startTimeout = hr != null ? (hr.isServercmd() ? 1800000 : 180000) : 30000;
 
@@ -274,6 +541,22 @@ public class HTTPSession implements Runnable {
 		return false;
 	}
 
+	public long getTimeoutCheckTime() {
+		// the earliest time at which doTimeoutCheck can return true, assuming nothing else happens. the session timer checks the session at that time, and reschedules it if it is still alive
+		if(keepAliveIdle) {
+			return sessionStartTime + Settings.getKeepAliveTimeout() * 1000;
+		}
+
+		int startTimeout = hr != null ? (hr.isServercmd() ? 1800000 : 180000) : 30000;
+		long checkTime = sessionStartTime + startTimeout;
+
+		if(lastPacketSend > 0) {
+			checkTime = Math.min(checkTime, lastPacketSend + 30000);
+		}
+
+		return checkTime;
+	}
+
 	public void forceCloseSocket() {
 		try {
 			if(!socket.isClosed()) {
@@ -286,8 +569,37 @@ public class HTTPSession implements Runnable {
 		}
 	}
 
+	protected boolean isSocketClosed() {
+		return socket.isClosed();
+	}
+
 	// accessors
 
+	protected int getConnId() {
+		return connId;
+	}
+
+	protected HTTPRequestParser getRequestParser() {
+		// null if the client did not send a request line
+		return request == null ? null : requestParser;
+	}
+
+	public String getRangeHeader() {
+		return rangeHeader;
+	}
+
+	public String getIfRangeHeader() {
+		return ifRangeHeader;
+	}
+
+	public String getIfNoneMatchHeader() {
+		return ifNoneMatchHeader;
+	}
+
+	public String getIfModifiedSinceHeader() {
+		return ifModifiedSinceHeader;
+	}
+
 	public HTTPServer getHTTPServer() {
 		return httpServer;
 	}
@@ -304,62 +616,98 @@ public class HTTPSession implements Runnable {
 		return "{" + connId + String.format("%1$-17s", getSocketInetAddress().toString() + "}");
 	}
 
-	private class HTTPStreamReader extends BufferedReader {
-		private final int maxLen = 1000, CR = 13, LF = 10;
+	private class HTTPStreamReader {
+		// reads header lines straight from the socket into a reusable buffer, without any charset decoding. the line is returned as lineStart and lineEnd in buffer, and stays valid until the next call
+		private final int maxLen = 1000;
+		private InputStream in;
+		private byte[] buffer = new byte[4096];
+		private int pos = 0, limit = 0, keep = 0, lineStart = 0, lineEnd = 0;
 
-		public HTTPStreamReader(InputStreamReader reader) {
-			super(reader);
+		public HTTPStreamReader(InputStream in) {
+			this.in = in;
 		}
 
-		public String readLine() throws java.io.IOException {
-			char[] buffer = new char[maxLen];
-			int currentIndex = 0;
-			int currentChar = read();
+		public boolean readLine() throws java.io.IOException {
+			int scanned = 0;
+			keep = pos;
 
-			while( (currentChar != CR) && (currentChar != LF) && (currentChar >= 0) ) {
-				// not EOF or EOL; add it to the buffer
-				buffer[currentIndex++] = (char) currentChar;
+			while(true) {
+				int scan = pos + scanned;
+				int max = Math.min(limit, pos + maxLen);
 
-				if(currentIndex >= maxLen) {
-					// we are at the maxLen limit; exit the loop after adding the last char to the buffer but before reading the next char
-					// currentChar is now a non-EOL and non-EOF character, which will trigger the EOL read-ahead check below
+				while(scan < max && buffer[scan] != '\r' && buffer[scan] != '\n') {
+					++scan;
+				}
+
+				scanned = scan - pos;
+
+				if(scan < max || scanned >= maxLen) {
+					// found the EOL, or hit the maxLen limit
 					break;
 				}
 
-				currentChar = read();
-			}
+				if(!fill()) {
+					// EOF; return what we have, or false if no data has been read
+					if(limit == pos) {
+						return false;
+					}
 
-			if(currentChar < 0) {
-				// EOF; return the buffer, or null if no data has been read
-				return currentIndex > 0 ? new String(buffer, 0, currentIndex) : null;
+					lineStart = pos;
+					lineEnd = limit;
+					pos = limit;
+					return true;
+				}
 			}
 
-			if(currentChar == CR) {
-				// read one more char to check for LF, discard if so
-				mark(1);
+			lineStart = pos;
+			lineEnd = pos + scanned;
+			pos = lineEnd;
+			keep = lineStart;
 
-				if(read() != LF) {
-					reset();
+			// discard CR, LF or CRLF. if we stopped at the maxLen limit, the same check is done on the next chars, and the rest of the line is otherwise left intact
+			int eol = peek();
+
+			if(eol == '\r') {
+				++pos;
+
+				if(peek() == '\n') {
+					++pos;
 				}
 			}
-			else if(currentChar != LF) {
-				// we exited the loop without ending on a CR or LF, meaning we hit the maxLen limit; check if the next character is CR/LF and discard if so, otherwise leave it intact
-				mark(1);
-				currentChar = read();
+			else if(eol == '\n') {
+				++pos;
+			}
+
+			return true;
+		}
+
+		private int peek() throws java.io.IOException {
+			if(pos == limit && !fill()) {
+				return -1;
+			}
 
-				if(currentChar == CR) {
-					mark(1);
+			return buffer[pos];
+		}
 
-					if(read() != LF) {
-						reset();
-					}
-				}
-				else if(currentChar != LF) {
-					reset();
-				}
+		private boolean fill() throws java.io.IOException {
+			if(limit == buffer.length) {
+				// move everything from the current line onwards to the start of the buffer
+				System.arraycopy(buffer, keep, buffer, 0, limit - keep);
+				limit -= keep;
+				pos -= keep;
+				lineStart -= keep;
+				lineEnd -= keep;
+				keep = 0;
 			}
 
-			return new String(buffer, 0, currentIndex);
+			int read = in.read(buffer, limit, buffer.length - limit);
+
+			if(read < 0) {
+				return false;
+			}
+
+			limit += read;
+			return true;
 		}
 	}
 
@@ -23,30 +23,33 @@ along with Hentai@Home.  If not, see <https://www.gnu.org/licenses/>.
 
 package hath.base;
 
-import java.util.List;
-import java.lang.Thread;
-
-public class HTTPSessionKiller implements Runnable {
-	private List<HTTPSession> remove;
-	private Thread rachel;
-
-	public HTTPSessionKiller(List<HTTPSession> remove) {
-		this.remove = remove;
-		rachel = new Thread(this);
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+// closes timed out sessions off the timer thread, as it can take a long time (several minutes) to kill SSL sockets for some reason
+// every close gets a thread of its own, so one stuck close never holds up the others. the threads are reused, and go away after a minute without work
+public class HTTPSessionKiller {
+	private ExecutorService rachel;
+
+	public HTTPSessionKiller() {
+		rachel = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new ThreadFactory() {
+			public Thread newThread(Runnable runnable) {
+				Thread thread = Tools.createThread(runnable);
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
 	}
 	
-	public void satsuriku() {
-		rachel.start();
-	}
-
-	public void run() {
-		Out.debug("Starting kill thread for " + remove.size() + " sessions");
-
-		for(HTTPSession session : remove) {
-			// jama
-			session.forceCloseSocket();
-		}
-
-		Out.debug("Kill thread finished closing " + remove.size() + " sessions");
+	public void satsuriku(final HTTPSession session) {
+		rachel.execute(new Runnable() {
+			public void run() {
+				// jama
+				session.forceCloseSocket();
+			}
+		});
 	}
 }
@@ -0,0 +1,612 @@
+/*
+
+Copyright 2008-2024 E-Hentai.org
+https://forums.e-hentai.org/
+tenboro@e-hentai.org
+
+This file is part of Hentai@Home.
+
+Hentai@Home is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Hentai@Home is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Hentai@Home.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+
+
+package hath.base;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLSession;
+
+// non-blocking counterpart to HTTPSession. all network I/O and TLS processing is done by the event loop this session was assigned to, while parsing the request (which can block on RPC calls for proxied files) is handed off to the request processor pool in HTTPServer.
+// the response is still produced by the same HTTPResponse and HTTPResponseProcessor code as the blocking sessions, one getPreparedTCPBuffer at a time.
+
+public class HTTPSessionNIO extends HTTPSession {
+	private static final int STATE_HANDSHAKE = 0, STATE_READ_REQUEST = 1, STATE_PROCESSING = 2, STATE_WRITE_RESPONSE = 3, STATE_CLOSED = 4, STATE_HTTP2 = 5;
+	private static final int MAX_HEADER_LENGTH = 10000, MAX_HEADER_LINES = 100, MAX_LINE_LENGTH = 1000;
+	private static final ByteBuffer EMPTY_BUFFER = ByteBuffer.allocate(0);
+
+	private SocketChannel socketChannel;
+	private SSLEngine sslEngine;
+	private HTTPServerEventLoop eventLoop;
+	private SelectionKey selectionKey;
+	private InetAddress remoteAddress;
+	private HTTPBandwidthMonitor bwm;
+	private HTTP2Connection http2 = null;
+	private ByteBuffer netIn, netOut, appIn, headerBuffer, bodyBuffer;
+	private int state = STATE_HANDSHAKE, bodyLength = 0, writtenBytes = 0;
+	private long startTime = 0;
+	private boolean quotaAcquired = false, finished = false, madeProgress = false;
+	private volatile boolean processingComplete = false, forceClose = false;
+	// the place of the session in the quota queue of its event loop
+	long quotaKey = 0, quotaSequence = 0;
+	boolean quotaQueued = false;
+
+	public HTTPSessionNIO(SocketChannel socketChannel, SSLEngine sslEngine, int connId, boolean localNetworkAccess, HTTPServer httpServer) {
+		super(connId, localNetworkAccess, httpServer);
+		this.socketChannel = socketChannel;
+		this.sslEngine = sslEngine;
+		remoteAddress = socketChannel.socket().getInetAddress();
+		bwm = localNetworkAccess ? null : httpServer.getBandwidthMonitor();
+	}
+
+	public void handleSession() {
+		eventLoop = getHTTPServer().getNextEventLoop();
+		eventLoop.wakeSession(this);
+	}
+
+	// called by the event loop whenever the channel is ready, the session was woken up, or it is its turn in the quota queue. advances the session as far as it can go without blocking.
+	public void step() {
+		if(state == STATE_CLOSED) {
+			if(processingComplete) {
+				finishSession();
+			}
+
+			return;
+		}
+
+		try {
+			if(forceClose) {
+				closeSession();
+				return;
+			}
+
+			if(selectionKey == null) {
+				registerSession();
+			}
+
+			if(state != STATE_PROCESSING && sslEngine.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING) {
+				if(!processHandshake()) {
+					return;
+				}
+			}
+
+			if(state == STATE_HANDSHAKE) {
+				handshakeFinished();
+
+				if(getHTTPServer().isHTTP2Negotiated(sslEngine)) {
+					startHTTP2();
+				}
+				else {
+					state = STATE_READ_REQUEST;
+				}
+			}
+
+			if(state == STATE_HTTP2) {
+				if(!http2.step()) {
+					closeSession();
+				}
+
+				return;
+			}
+
+			while(true) {
+				if(state == STATE_READ_REQUEST) {
+					if(!readRequest()) {
+						return;
+					}
+
+					// the request processor will call run(), which wakes us up again when the response is ready
+					state = STATE_PROCESSING;
+					setInterest(0);
+					getHTTPServer().getRequestProcessor().execute(this);
+					return;
+				}
+
+				if(state == STATE_PROCESSING) {
+					if(!processingComplete) {
+						return;
+					}
+
+					startResponse();
+					state = STATE_WRITE_RESPONSE;
+				}
+
+				if(state == STATE_WRITE_RESPONSE) {
+					if(!writeResponse()) {
+						return;
+					}
+
+					if(!hr.isRequestHeadOnly()) {
+						logRequestFinished(System.currentTimeMillis() - startTime);
+					}
+
+					if(!keepAlive) {
+						closeSession();
+						return;
+					}
+
+					// persistent connection; go back to reading the next request, which may already have been pipelined into appIn
+					startNextRequest();
+				}
+			}
+		}
+		catch(Exception e) {
+			if(!keepAliveIdle || appIn.position() > 0) {
+				Out.debug(this + " The connection was interrupted or closed by the remote host.");
+				Out.debug(e == null ? "(no exception)" : e.getMessage());
+			}
+
+			closeSession();
+		}
+	}
+
+	public void run() {
+		// this is executed by the request processor pool, not the event loop
+		try {
+			headerBuffer = prepareResponse();
+		}
+		catch(Exception e) {
+			Out.debug(this + " Failed to process request: " + e);
+			forceClose = true;
+		}
+
+		processingComplete = true;
+		eventLoop.wakeSession(this);
+	}
+
+	private void startHTTP2() {
+		// the request header limit does not apply to HTTP/2, but the buffer has to be able to hold a full frame on top of a TLS record
+		ByteBuffer temp = ByteBuffer.allocate(sslEngine.getSession().getApplicationBufferSize() + HTTP2Connection.MAX_FRAME_LENGTH);
+		appIn.flip();
+		temp.put(appIn);
+		appIn = temp;
+
+		http2 = new HTTP2Connection(this, appIn, bwm);
+		state = STATE_HTTP2;
+		keepAliveIdle = true;
+		getHTTPServer().scheduleTimeoutCheck(this);
+		Out.debug(this + " Negotiated HTTP/2");
+	}
+
+	private void registerSession() throws java.io.IOException {
+		socketChannel.configureBlocking(false);
+		selectionKey = socketChannel.register(eventLoop.getSelector(), SelectionKey.OP_READ, this);
+
+		SSLSession sslSession = sslEngine.getSession();
+		netIn = ByteBuffer.allocate(sslSession.getPacketBufferSize());
+		netOut = ByteBuffer.allocate(sslSession.getPacketBufferSize());
+		netOut.flip();
+		// leave room for one full TLS record on top of the max header size, so reading a request header can never overflow
+		appIn = ByteBuffer.allocate(sslSession.getApplicationBufferSize() + MAX_HEADER_LENGTH);
+
+		sslEngine.beginHandshake();
+	}
+
+	boolean processHandshake() throws java.io.IOException {
+		while(true) {
+			switch(sslEngine.getHandshakeStatus()) {
+				case NEED_TASK:
+					// the delegated tasks are fairly cheap for the key types we use, so they are run directly on the event loop
+					Runnable task = null;
+
+					while((task = sslEngine.getDelegatedTask()) != null) {
+						task.run();
+					}
+					break;
+
+				case NEED_WRAP:
+					if(!wrap(EMPTY_BUFFER)) {
+						return false;
+					}
+					break;
+
+				case NEED_UNWRAP:
+					// anything we wrapped has to reach the client before we can expect a reply
+					if(!flushNetOut() || !unwrap()) {
+						return false;
+					}
+					break;
+
+				default:
+					return flushNetOut();
+			}
+		}
+	}
+
+	private boolean readRequest() throws java.io.IOException {
+		while(true) {
+			int headerEnd = findHeaderEnd();
+
+			if(keepAliveIdle && appIn.position() > 0) {
+				// the next request on a persistent connection gets the full start timeout, not what is left of it after the idle time
+				keepAliveIdle = false;
+				sessionStartTime = System.currentTimeMillis();
+				getHTTPServer().scheduleTimeoutCheck(this);
+			}
+
+			if(headerEnd >= 0 || appIn.position() >= MAX_HEADER_LENGTH) {
+				// if the request header is more than 10000 bytes, we process what we have, same as the blocking sessions. the rest of it would be mistaken for the next request, so such connections are not kept alive
+				if(headerEnd < 0) {
+					disableKeepAlive();
+				}
+
+				parseRequestHeader(headerEnd >= 0 ? headerEnd : MAX_HEADER_LENGTH);
+				return true;
+			}
+
+			if(!unwrap()) {
+				return false;
+			}
+
+			if(sslEngine.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING && !processHandshake()) {
+				// post-handshake messages, like TLS 1.3 key updates
+				return false;
+			}
+		}
+	}
+
+	private int findHeaderEnd() {
+		byte[] data = appIn.array();
+		int end = appIn.position();
+
+		for(int i = 1; i < end; i++) {
+			if(data[i] == '\n') {
+				if(data[i - 1] == '\n' || (i > 1 && data[i - 1] == '\r' && data[i - 2] == '\n')) {
+					return i + 1;
+				}
+			}
+		}
+
+		return -1;
+	}
+
+	private void parseRequestHeader(int length) {
+		// scan through the HTTP request header until we find a GET or HEAD request. everything else is ignored
+		// the lines are parsed where they are in the buffer, so this has to be done before it is compacted
+		byte[] data = appIn.array();
+		int readLines = 0, lineStart = 0;
+
+		while(lineStart < length) {
+			int lineEnd = HTTPRequestParser.indexOf(data, lineStart, length, '\n');
+			int nextLine = lineEnd < 0 ? length : lineEnd + 1;
+
+			if(lineEnd < 0) {
+				lineEnd = length;
+			}
+
+			if(lineEnd > lineStart && data[lineEnd - 1] == '\r') {
+				--lineEnd;
+			}
+
+			if(lineEnd - lineStart > MAX_LINE_LENGTH) {
+				lineEnd = lineStart + MAX_LINE_LENGTH;
+			}
+
+			if(lineEnd == lineStart) {
+				break;
+			}
+
+			processHeaderLine(data, lineStart, lineEnd);
+
+			if(++readLines >= MAX_HEADER_LINES) {
+				disableKeepAlive();
+				break;
+			}
+
+			lineStart = nextLine;
+		}
+
+		// anything after the header is the start of a pipelined request, which is kept in the buffer for later
+		appIn.flip();
+		appIn.position(length);
+		appIn.compact();
+	}
+
+	private void startResponse() {
+		bodyLength = hr.isRequestHeadOnly() ? 0 : hpc.getContentLength();
+
+		if(request != null && bodyLength > 0) {
+			try {
+				socketChannel.socket().setSendBufferSize(getSendBufferSize(headerBuffer.remaining()));
+			}
+			catch(Exception e) {
+				Out.info(e.getMessage());
+			}
+		}
+
+		logRequestStart();
+		startTime = System.currentTimeMillis();
+		startResponseTiming();
+	}
+
+	private void startNextRequest() {
+		requestFinished();
+		headerBuffer = null;
+		bodyBuffer = null;
+		bodyLength = 0;
+		writtenBytes = 0;
+		processingComplete = false;
+		state = STATE_READ_REQUEST;
+		setInterest(SelectionKey.OP_READ);
+	}
+
+	private boolean writeResponse() throws Exception {
+		madeProgress = false;
+
+		while(true) {
+			if(!flushNetOut()) {
+				return false;
+			}
+
+			ByteBuffer src = null;
+
+			if(headerBuffer.hasRemaining()) {
+				src = headerBuffer;
+			}
+			else if(writtenBytes < bodyLength) {
+				if(bodyBuffer == null) {
+					// each wrap produces a single TLS record, so the buffer size decides the record size
+					int recordSize = getRecordSize(writtenBytes);
+
+					if(!hpc.isBufferReady(recordSize)) {
+						// the response processor will wake us up through bodyDataAvailable
+						setInterest(0);
+						return false;
+					}
+
+					lastPacketSend = System.currentTimeMillis();
+					bodyBuffer = hpc.getPreparedTCPBuffer(recordSize);
+				}
+
+				src = bodyBuffer;
+			}
+			else {
+				return true;
+			}
+
+			if(!quotaAcquired) {
+				if(bwm != null && hr.getResponseStatusCode() != 304) {
+					long priority = getQuotaPriority(bwm);
+
+					if(!eventLoop.mayAcquireQuota(this, priority) || !bwm.tryAcquireQuota(src.remaining())) {
+						setInterest(0);
+						eventLoop.markWaitingForQuota(this, madeProgress, priority);
+						return false;
+					}
+				}
+
+				quotaAcquired = true;
+				madeProgress = true;
+			}
+
+			// a buffer can take more than one wrap if the engine splits it into several records, so we count what was actually consumed
+			int srcLength = src.remaining();
+			wrap(src);
+			int wrappedBytes = srcLength - src.remaining();
+
+			if(src == bodyBuffer) {
+				writtenBytes += wrappedBytes;
+				countBodyBytes(wrappedBytes);
+			}
+
+			if(!isLocalNetworkAccess()) {
+				Stats.bytesSent(wrappedBytes);
+			}
+
+			if(!src.hasRemaining()) {
+				quotaAcquired = false;
+
+				if(src == bodyBuffer) {
+					bodyBuffer = null;
+				}
+			}
+		}
+	}
+
+	// the I/O methods below are also used by HTTP2Connection, which drives the session once h2 has been negotiated
+
+	public void bodyDataAvailable() {
+		// can be called from any thread
+		eventLoop.wakeSession(this);
+	}
+
+	boolean mayAcquireQuota(long priority) {
+		return eventLoop.mayAcquireQuota(this, priority);
+	}
+
+	void waitForQuota(boolean madeProgress, long priority) {
+		eventLoop.markWaitingForQuota(this, madeProgress, priority);
+	}
+
+	boolean isQuotaTurn() {
+		return eventLoop.isQuotaTurn(this);
+	}
+
+	boolean isHandshaking() {
+		return sslEngine.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING;
+	}
+
+	void wakeUp() {
+		eventLoop.wakeSession(this);
+	}
+
+	// encrypts src into the outgoing network buffer and tries to send it. returns false if the previous record has not been sent yet, in which case we are waiting for OP_WRITE
+	boolean wrap(ByteBuffer src) throws java.io.IOException {
+		if(!flushNetOut()) {
+			return false;
+		}
+
+		netOut.clear();
+		SSLEngineResult result = sslEngine.wrap(src, netOut);
+		netOut.flip();
+
+		if(result.getStatus() != SSLEngineResult.Status.OK) {
+			throw new javax.net.ssl.SSLException("Unexpected wrap result: " + result.getStatus());
+		}
+
+		flushNetOut();
+		return true;
+	}
+
+	// returns true if the engine consumed a record from the network, or false if we have to wait for more data
+	boolean unwrap() throws java.io.IOException {
+		while(true) {
+			netIn.flip();
+			SSLEngineResult result = sslEngine.unwrap(netIn, appIn);
+			netIn.compact();
+
+			switch(result.getStatus()) {
+				case OK:
+					return true;
+
+				case BUFFER_UNDERFLOW:
+					if(!netIn.hasRemaining()) {
+						// the packet size can grow after the handshake has completed
+						ByteBuffer temp = ByteBuffer.allocate(sslEngine.getSession().getPacketBufferSize() + netIn.position());
+						netIn.flip();
+						temp.put(netIn);
+						netIn = temp;
+					}
+
+					int readBytes = socketChannel.read(netIn);
+
+					if(readBytes < 0) {
+						throw new java.io.EOFException("Connection closed by remote host");
+					}
+					else if(readBytes == 0) {
+						setInterest(SelectionKey.OP_READ);
+						return false;
+					}
+					break;
+
+				case BUFFER_OVERFLOW:
+					throw new java.io.IOException("Request exceeds the maximum allowed size");
+
+				default:
+					throw new java.io.EOFException("Connection closed by remote host");
+			}
+		}
+	}
+
+	boolean flushNetOut() throws java.io.IOException {
+		while(netOut.hasRemaining()) {
+			if(socketChannel.write(netOut) == 0) {
+				setInterest(SelectionKey.OP_WRITE);
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	void setInterest(int ops) {
+		if(selectionKey != null && selectionKey.isValid()) {
+			selectionKey.interestOps(ops);
+		}
+	}
+
+	private void closeSession() {
+		if(state == STATE_CLOSED) {
+			return;
+		}
+
+		// if a request processor thread is still working on this session, the cleanup is deferred until it wakes us up
+		boolean processing = state == STATE_PROCESSING && !processingComplete;
+		state = STATE_CLOSED;
+
+		if(http2 != null) {
+			// HTTP/2 streams clean up after themselves if they are still being processed
+			http2.connectionClosed();
+		}
+
+		if(!forceClose && selectionKey != null && netOut != null && !netOut.hasRemaining()) {
+			try {
+				// best effort attempt at sending close_notify; we do not wait around for the client to acknowledge it
+				sslEngine.closeOutbound();
+				netOut.clear();
+				sslEngine.wrap(EMPTY_BUFFER, netOut);
+				netOut.flip();
+				socketChannel.write(netOut);
+			} catch(Exception e) {}
+		}
+
+		try {
+			socketChannel.close();
+		} catch(Exception e) {}
+
+		if(!processing) {
+			finishSession();
+		}
+	}
+
+	private void finishSession() {
+		if(finished) {
+			return;
+		}
+
+		finished = true;
+
+		if(hpc != null) {
+			hpc.cleanup();
+		}
+
+		connectionFinished();
+	}
+
+	public void forceCloseSocket() {
+		// the socket is closed from the event loop, so the session can clean up after itself
+		Out.debug("Closing socket for session " + this);
+		forceClose = true;
+		eventLoop.wakeSession(this);
+	}
+
+	public boolean doTimeoutCheck() {
+		if(http2 != null && !keepAliveIdle && !isSocketClosed()) {
+			// an HTTP/2 connection with open streams can stay busy for much longer than any single request
+			return http2.isStuck();
+		}
+
+		return super.doTimeoutCheck();
+	}
+
+	public long getTimeoutCheckTime() {
+		if(http2 != null && !keepAliveIdle) {
+			return http2.getStuckTime();
+		}
+
+		return super.getTimeoutCheckTime();
+	}
+
+	protected boolean isSocketClosed() {
+		return !socketChannel.isOpen();
+	}
+
+	public InetAddress getSocketInetAddress() {
+		return remoteAddress;
+	}
+}
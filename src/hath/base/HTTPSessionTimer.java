@@ -0,0 +1,216 @@
+/*
+
+Copyright 2008-2024 E-Hentai.org
+https://forums.e-hentai.org/
+tenboro@e-hentai.org
+
+This file is part of Hentai@Home.
+
+Hentai@Home is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Hentai@Home is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Hentai@Home.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+package hath.base;
+
+import java.util.IdentityHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+// a hierarchical timer wheel holding the next timeout check of every open session. the wheel is only touched by its own thread; other threads hand it sessions through lock-free queues, so scheduling never blocks a session.
+// each session is checked at the earliest time it could possibly time out. activity on a session only pushes that time further out, so if the session is still alive when the check fires, it is simply rescheduled.
+
+public class HTTPSessionTimer implements Runnable {
+	private static final int TICK_MILLIS = 100;
+	// three levels of 256 slots cover 25.6 seconds, 1.8 hours and 19 days
+	private static final int WHEEL_BITS = 8, WHEEL_SIZE = 1 << WHEEL_BITS, WHEEL_MASK = WHEEL_SIZE - 1, LEVELS = 3;
+	private static final long MAX_DELTA = (1L << (WHEEL_BITS * LEVELS)) - 1;
+
+	private HTTPServer httpServer;
+	private HTTPSessionKiller killer;
+	private Thread myThread;
+	private ConcurrentLinkedQueue<HTTPSession> updates, checks;
+	private IdentityHashMap<HTTPSession, TimerNode> nodes;
+	private TimerNode[][] wheel;
+	private long currentTick;
+
+	public HTTPSessionTimer(HTTPServer httpServer) {
+		this.httpServer = httpServer;
+		killer = new HTTPSessionKiller();
+		updates = new ConcurrentLinkedQueue<HTTPSession>();
+		checks = new ConcurrentLinkedQueue<HTTPSession>();
+		nodes = new IdentityHashMap<HTTPSession, TimerNode>();
+		wheel = new TimerNode[LEVELS][WHEEL_SIZE];
+
+		for(int level = 0; level < LEVELS; level++) {
+			for(int slot = 0; slot < WHEEL_SIZE; slot++) {
+				// each slot is a circular list with a sentinel head
+				TimerNode head = new TimerNode(null);
+				head.prev = head;
+				head.next = head;
+				wheel[level][slot] = head;
+			}
+		}
+
+		currentTick = System.currentTimeMillis() / TICK_MILLIS;
+		myThread = new Thread(this);
+		myThread.setDaemon(true);
+		myThread.start();
+	}
+
+	// (re)computes the next check of a session. this has to be called when a session is added or removed, and whenever its timeout may have moved closer
+	public void schedule(HTTPSession session) {
+		updates.add(session);
+	}
+
+	// checks a session on the next tick, for timeout conditions that do not depend on time
+	public void checkNow(HTTPSession session) {
+		checks.add(session);
+	}
+
+	public void run() {
+		while(true) {
+			try {
+				Thread.sleep(TICK_MILLIS);
+			}
+			catch(InterruptedException e) {}
+
+			try {
+				processUpdates();
+				long targetTick = System.currentTimeMillis() / TICK_MILLIS;
+
+				while(currentTick < targetTick) {
+					advance();
+				}
+			}
+			catch(Exception e) {
+				Out.warning("Session timer encountered an error: " + e);
+				e.printStackTrace();
+			}
+		}
+	}
+
+	private void processUpdates() {
+		HTTPSession session = null;
+
+		while((session = updates.poll()) != null) {
+			TimerNode node = nodes.get(session);
+
+			if(!httpServer.isRegistered(session)) {
+				if(node != null) {
+					node.unlink();
+					nodes.remove(session);
+				}
+			}
+			else {
+				if(node == null) {
+					node = new TimerNode(session);
+					nodes.put(session, node);
+				}
+
+				node.unlink();
+				place(node, Math.max(session.getTimeoutCheckTime() / TICK_MILLIS, currentTick + 1));
+			}
+		}
+
+		while((session = checks.poll()) != null) {
+			if(nodes.containsKey(session)) {
+				check(session);
+			}
+		}
+	}
+
+	private void advance() {
+		++currentTick;
+
+		// when a lower level wraps around, the next slot of the level above is spread out over the levels below it
+		for(int level = LEVELS - 1; level > 0; level--) {
+			if((currentTick & ((1L << (WHEEL_BITS * level)) - 1)) == 0) {
+				TimerNode head = wheel[level][(int) (currentTick >>> (WHEEL_BITS * level)) & WHEEL_MASK];
+
+				while(head.next != head) {
+					TimerNode node = head.next;
+					node.unlink();
+					place(node, node.deadline);
+				}
+			}
+		}
+
+		TimerNode head = wheel[0][(int) currentTick & WHEEL_MASK];
+
+		while(head.next != head) {
+			TimerNode node = head.next;
+			node.unlink();
+			check(node.session);
+		}
+	}
+
+	private void check(HTTPSession session) {
+		TimerNode node = nodes.get(session);
+
+		if(!httpServer.isRegistered(session)) {
+			node.unlink();
+			nodes.remove(session);
+		}
+		else if(session.doTimeoutCheck()) {
+			// closing an SSL socket can take a long time, so that is left to the killer thread
+			Out.debug("Adding session " + session + " to timeout kill queue");
+			node.unlink();
+			nodes.remove(session);
+			httpServer.removeHTTPSession(session);
+			killer.satsuriku(session);
+		}
+		else if(!node.isLinked()) {
+			// if the check time has already passed, the session is waiting for something other than time, and is checked again on the next tick
+			place(node, Math.max(session.getTimeoutCheckTime() / TICK_MILLIS, currentTick + 1));
+		}
+	}
+
+	private void place(TimerNode node, long deadline) {
+		// anything further out than the wheel can hold is checked at the end of it, and then rescheduled
+		node.deadline = Math.min(deadline, currentTick + MAX_DELTA);
+		long delta = node.deadline - currentTick;
+		int level = 0;
+
+		while(level < LEVELS - 1 && delta >= (1L << (WHEEL_BITS * (level + 1)))) {
+			++level;
+		}
+
+		TimerNode head = wheel[level][(int) (node.deadline >>> (WHEEL_BITS * level)) & WHEEL_MASK];
+		node.prev = head.prev;
+		node.next = head;
+		head.prev.next = node;
+		head.prev = node;
+	}
+
+	private class TimerNode {
+		private HTTPSession session;
+		private TimerNode prev = null, next = null;
+		private long deadline = 0;
+
+		public TimerNode(HTTPSession session) {
+			this.session = session;
+		}
+
+		public boolean isLinked() {
+			return next != null;
+		}
+
+		public void unlink() {
+			if(next != null) {
+				prev.next = next;
+				next.prev = prev;
+				prev = null;
+				next = null;
+			}
+		}
+	}
+}
@@ -90,10 +90,9 @@ public class HentaiAtHomeClient implements Runnable {
 	public void run() {
 		out = new Out();
 
-		System.setProperty("http.keepAlive", "false");
-
 		Settings.setActiveClient(this);
 		Settings.parseArgs(args);
+		HTTPClient.configure();
 
 		try {
 			Settings.initializeDirectories();
@@ -226,40 +225,14 @@ public class HentaiAtHomeClient implements Runnable {
 				}
 
 				if(doCertRefresh) {
-					Out.info("Doing internal restart of HTTP server to refresh certs");
-					
-					if(!serverHandler.notifySuspend()) {
-						Out.warning("Failed to contact server to suspend client traffic; will retry");
+					// the new certificate is swapped into the running server, so there is no need to suspend traffic or drop any connections
+					Out.info("Refreshing the certificate of the internal HTTP server");
+
+					if(!httpServer.refreshCertificate()) {
+						Out.warning("Failed to refresh the certificate; will retry");
 					}
 					else {
-						try {
-							myThread.sleep(5000);
-							httpServerShutdown(true);
-
-							int restartTimeout = 0;
-							
-							do {
-								Out.info("Waiting for HTTPServer thread to fully terminate..." + (restartTimeout > 1 ? " (waited " + (restartTimeout * 5) + " seconds)" : ""));
-								myThread.sleep(5000);
-							} while(!httpServer.isThreadTerminated() && ++restartTimeout < 60);
-							
-							myThread.sleep(1000);
-						} catch(java.lang.InterruptedException e) {}
-
-						httpServer = new HTTPServer(this);
-
-						if(!httpServer.startConnectionListener(Settings.getClientPort())) {
-							setFastShutdown();
-							dieWithError("Failed to reinitialize HTTPServer");
-							return;
-						}
-						
-						httpServer.allowNormalConnections();
-						serverHandler.stillAliveTest(true);
-						
 						doCertRefresh = false;
-
-						Out.info("Internal HTTP server was successfully restarted");
 					}
 				}
 				else if(threadSkipCounter % 11 == 0) {
@@ -278,13 +251,23 @@ public class HentaiAtHomeClient implements Runnable {
 				}
 
 				if(threadSkipCounter % 6 == 2) {
-					//Out.debug("Running httpServer.pruneFloodControlTable");
-					httpServer.pruneFloodControlTable();
+					httpServer.logRejectedConnections();
 				}
-				
-				if(threadSkipCounter % 1440 == 1439) {
-					//Out.debug("Running Settings.clearRPCServerFailure");
-					Settings.clearRPCServerFailure();
+
+				if(threadSkipCounter % 60 == 3) {
+					String latency = Stats.getResponseLatencySummary();
+
+					if(latency != null) {
+						Out.info(latency);
+					}
+
+					String rpcHealth = Stats.getRPCServerSummary();
+
+					if(rpcHealth != null) {
+						Out.info(rpcHealth);
+					}
+
+					Out.debug("ProxySourceStats: " + ProxySourceStats.getSummary());
 				}
 
 				if(threadSkipCounter % 2160 == 2159) {
@@ -295,9 +278,6 @@ public class HentaiAtHomeClient implements Runnable {
 				//Out.debug("Running cacheHandler.cycleLRUCacheTable");
 				cacheHandler.cycleLRUCacheTable();
 
-				//Out.debug("Running httpServer.nukeOldConnections");
-				httpServer.nukeOldConnections();
-
 				//Out.debug("Running Stats.shiftBytesSentHistory");
 				Stats.shiftBytesSentHistory();
 
@@ -0,0 +1,162 @@
+/*
+
+Copyright 2008-2024 E-Hentai.org
+https://forums.e-hentai.org/
+tenboro@e-hentai.org
+
+This file is part of Hentai@Home.
+
+Hentai@Home is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Hentai@Home is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Hentai@Home.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+
+package hath.base;
+
+import java.net.InetAddress;
+
+// matches raw IPv4 and IPv6 addresses against a fixed list of networks in CIDR notation. the networks are turned into masked integers when the matcher is built, so a lookup is just a few integer compares and never touches strings.
+// a matcher is never modified after it has been handed out; to change the list, build a new one and swap the reference.
+
+public class NetworkMatcher {
+	public static final NetworkMatcher EMPTY = new NetworkMatcher(new String[0]);
+
+	private int[] networks4, masks4;
+	private long[] networks6, masks6;
+
+	public NetworkMatcher(String[] cidrs) {
+		int count4 = 0, count6 = 0;
+		byte[][] addresses = new byte[cidrs.length][];
+		int[] prefixLengths = new int[cidrs.length];
+
+		for(int i = 0; i < cidrs.length; i++) {
+			String cidr = cidrs[i].trim();
+			int slash = cidr.indexOf('/');
+			addresses[i] = parseAddress(slash < 0 ? cidr : cidr.substring(0, slash));
+
+			if(addresses[i] == null) {
+				continue;
+			}
+
+			int maxLength = addresses[i].length * 8;
+			prefixLengths[i] = slash < 0 ? maxLength : Math.max(0, Math.min(maxLength, Integer.parseInt(cidr.substring(slash + 1))));
+
+			if(addresses[i].length == 4) {
+				++count4;
+			}
+			else {
+				++count6;
+			}
+		}
+
+		networks4 = new int[count4];
+		masks4 = new int[count4];
+		// the IPv6 arrays hold two longs per network, the high half first
+		networks6 = new long[count6 * 2];
+		masks6 = new long[count6 * 2];
+		count4 = 0;
+		count6 = 0;
+
+		for(int i = 0; i < cidrs.length; i++) {
+			byte[] address = addresses[i];
+
+			if(address == null) {
+				continue;
+			}
+
+			if(address.length == 4) {
+				masks4[count4] = prefixLengths[i] == 0 ? 0 : -1 << (32 - prefixLengths[i]);
+				networks4[count4] = toInt(address) & masks4[count4];
+				++count4;
+			}
+			else {
+				int prefixLength = prefixLengths[i];
+				masks6[count6] = prefixLength == 0 ? 0 : -1L << (64 - Math.min(64, prefixLength));
+				masks6[count6 + 1] = prefixLength <= 64 ? 0 : -1L << (128 - prefixLength);
+				networks6[count6] = toLong(address, 0) & masks6[count6];
+				networks6[count6 + 1] = toLong(address, 8) & masks6[count6 + 1];
+				count6 += 2;
+			}
+		}
+	}
+
+	public boolean matches(InetAddress addr) {
+		return matches(addr.getAddress());
+	}
+
+	public boolean matches(byte[] address) {
+		if(address.length == 4) {
+			int value = toInt(address);
+
+			for(int i = 0; i < networks4.length; i++) {
+				if((value & masks4[i]) == networks4[i]) {
+					return true;
+				}
+			}
+		}
+		else if(networks6.length > 0) {
+			long high = toLong(address, 0), low = toLong(address, 8);
+
+			for(int i = 0; i < networks6.length; i += 2) {
+				if((high & masks6[i]) == networks6[i] && (low & masks6[i + 1]) == networks6[i + 1]) {
+					return true;
+				}
+			}
+		}
+
+		return false;
+	}
+
+	public boolean isEmpty() {
+		return networks4.length == 0 && networks6.length == 0;
+	}
+
+	public static byte[] parseAddress(String address) {
+		// only literal addresses are accepted, so this never does a DNS lookup
+		if(address.isEmpty()) {
+			return null;
+		}
+
+		// host names can not contain colons, so anything with a colon is an IPv6 literal. otherwise, only dotted decimal is allowed
+		boolean ipv6 = address.indexOf(':') >= 0;
+
+		for(int i = 0; i < address.length(); i++) {
+			char c = address.charAt(i);
+
+			if(!(c >= '0' && c <= '9' || c == '.' || ipv6 && (c >= 'a' && c <= 'f' || c >= 'A' && c <= 'F' || c == ':'))) {
+				return null;
+			}
+		}
+
+		try {
+			return InetAddress.getByName(address).getAddress();
+		}
+		catch(java.net.UnknownHostException e) {
+			return null;
+		}
+	}
+
+	static int toInt(byte[] address) {
+		return (address[0] & 0xff) << 24 | (address[1] & 0xff) << 16 | (address[2] & 0xff) << 8 | (address[3] & 0xff);
+	}
+
+	static long toLong(byte[] address, int offset) {
+		long value = 0;
+
+		for(int i = offset; i < offset + 8; i++) {
+			value = value << 8 | (address[i] & 0xff);
+		}
+
+		return value;
+	}
+}
@@ -0,0 +1,84 @@
+/*
+
+Copyright 2008-2024 E-Hentai.org
+https://forums.e-hentai.org/
+tenboro@e-hentai.org
+
+This file is part of Hentai@Home.
+
+Hentai@Home is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Hentai@Home is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Hentai@Home.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+package hath.base;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+// off-heap segments that ProxyFileDownloader keeps the proxied files in while they are passed on to the clients. the total amount of memory held by the downloads is limited by --proxy-buffer-mb; downloads that do not fit go through a temporary file instead.
+// returned segments are kept for reuse, but only up to a quarter of the limit, so a burst of misses does not pin the full amount for good.
+
+public class ProxyBufferPool {
+	public static final int SEGMENT_SIZE = 65536;
+
+	private static final ArrayList<ByteBuffer> freeSegments = new ArrayList<ByteBuffer>();
+	private static long allocatedBytes = 0;
+
+	// returns enough segments to hold the given number of bytes, or null if this would exceed the limit
+	public static ByteBuffer[] allocate(int length) {
+		int count = Math.max(1, (length + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+		long bytes = (long) count * SEGMENT_SIZE;
+		ByteBuffer[] segments = new ByteBuffer[count];
+		int reused = 0;
+
+		synchronized(freeSegments) {
+			if(allocatedBytes + bytes > Settings.getProxyBufferBytes()) {
+				return null;
+			}
+
+			allocatedBytes += bytes;
+
+			while(reused < count && !freeSegments.isEmpty()) {
+				segments[reused++] = freeSegments.remove(freeSegments.size() - 1);
+			}
+		}
+
+		try {
+			for(int i = reused; i < count; i++) {
+				segments[i] = ByteBuffer.allocateDirect(SEGMENT_SIZE);
+			}
+		}
+		catch(OutOfMemoryError e) {
+			// the JVM's direct memory limit (-XX:MaxDirectMemorySize, which defaults to the heap size) is lower than --proxy-buffer-mb
+			Out.warning("ProxyBufferPool: Could not allocate a proxy buffer, consider lowering --proxy-buffer-mb or raising -XX:MaxDirectMemorySize");
+			free(segments);
+			return null;
+		}
+
+		return segments;
+	}
+
+	public static void free(ByteBuffer[] segments) {
+		synchronized(freeSegments) {
+			// the whole array was counted by allocate, even if it could not be filled
+			allocatedBytes -= (long) segments.length * SEGMENT_SIZE;
+
+			for(ByteBuffer segment : segments) {
+				if(segment != null && (long) freeSegments.size() * SEGMENT_SIZE < Settings.getProxyBufferBytes() / 4) {
+					segment.clear();
+					freeSegments.add(segment);
+				}
+			}
+		}
+	}
+}
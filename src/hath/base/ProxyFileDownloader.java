@@ -24,11 +24,13 @@ along with Hentai@Home.  If not, see <https://www.gnu.org/licenses/>.
 package hath.base;
 
 import java.lang.Thread;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.net.HttpURLConnection;
 import java.net.URL;
 import java.net.URLConnection;
-import java.net.Proxy;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.RandomAccessFile;
 import java.io.InputStream;
 import java.nio.channels.Channels;
@@ -36,193 +38,700 @@ import java.nio.channels.FileChannel;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.ByteBuffer;
 import java.security.MessageDigest;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+// downloads a file that is not in the cache while it is being sent to the clients that asked for it. there is at most one download per fileid at a time; requests for a file that is already being downloaded are attached to that download as extra readers.
+// the data is normally kept in memory segments from ProxyBufferPool, which the readers send from directly. once the download has completed and the hash has been verified, the file is written to a temporary file in its cache directory and renamed into place, so the disk is only touched once.
+// if the memory limit has been reached, the download instead goes to that temporary file as it arrives, and the readers read it back from there. it is then imported once the last reader is done with it.
 
 public class ProxyFileDownloader implements Runnable {
+	private static final ConcurrentHashMap<String, ProxyFileDownloader> activeDownloads = new ConcurrentHashMap<String, ProxyFileDownloader>();
+
 	private HentaiAtHomeClient client;
 	private HVFile requestedHVFile;
 	private String fileid;
-	private File tempFile = null, returnFile = null;
+	private File tempFile = null;
 	private RandomAccessFile fileHandle;
 	private FileChannel fileChannel;
+	private ByteBuffer[] segments = null;
 	private URL[] sources;
 	private URLConnection connection;
+	// the sources in the order they were tried, and the one that answered first
+	private URL[] orderedSources;
+	private int sourceIndex = 0;
 	private Thread myThread;
 	private MessageDigest sha1Digest;
-	private int readoff, writeoff, contentLength;
-	private boolean streamThreadSuccess = false, streamThreadComplete = false, proxyThreadComplete = false, fileFinalized = false;
-	private Object downloadLock = new Object();
-
-	public ProxyFileDownloader(HentaiAtHomeClient client, String fileid, URL[] sources) {
+	private DownloadPart[] parts;
+	// guards the digest and the advancing of writeoff, which the parts of a parallel download do from their own threads
+	private final Object publishLock = new Object();
+	private int contentLength, readers = 0;
+	// the download is set up once, by the first reader. the others wait on the latch instead of the monitor, which is not held while connecting
+	private final AtomicBoolean initStarted = new AtomicBoolean(false);
+	private final CountDownLatch initDone = new CountDownLatch(1);
+	private volatile int initStatus = 0;
+	private volatile int writeoff;
+	private volatile boolean streamThreadSuccess = false, streamThreadComplete = false, downloadAborted = false;
+	private boolean fileFinalized = false, fileVerified = false;
+	private ReentrantLock downloadLock = new ReentrantLock();
+	// the sessions waiting for more data. also used as the monitor that the blocking sessions wait on
+	private ArrayList<HTTPSession> dataWaiters = new ArrayList<HTTPSession>();
+
+	private ProxyFileDownloader(HentaiAtHomeClient client, String fileid, URL[] sources) {
 		this.client = client;
 		this.fileid = fileid;
 		this.sources = sources;
 
 		this.requestedHVFile = HVFile.getHVFileFromFileid(fileid);
 		writeoff = 0;
-		readoff = 0;
-		myThread = new Thread(this);
+		myThread = Tools.createThread(this);
+	}
+
+	// returns the download that is already in progress for this fileid with a new reader attached, or null if there is none. this is checked before asking the server for the sources
+	public static ProxyFileDownloader attachToDownload(String fileid) {
+		ProxyFileDownloader download = activeDownloads.get(fileid);
+
+		if(download != null && download.addReader()) {
+			Out.debug("ProxyFileDownloader: Attached to the running download of fileid=" + fileid);
+			return download;
+		}
+
+		return null;
+	}
+
+	// returns a new download for this fileid with one reader attached, unless another request started one first, in which case that one is used instead
+	public static ProxyFileDownloader startDownload(HentaiAtHomeClient client, String fileid, URL[] sources) {
+		ProxyFileDownloader download = new ProxyFileDownloader(client, fileid, sources);
+		download.readers = 1;
+
+		while(true) {
+			ProxyFileDownloader existing = activeDownloads.putIfAbsent(fileid, download);
+
+			if(existing == null) {
+				return download;
+			}
+
+			if(existing.addReader()) {
+				Out.debug("ProxyFileDownloader: Attached to the running download of fileid=" + fileid);
+				return existing;
+			}
+
+			// the other download is finished or has failed, and is about to remove itself
+			activeDownloads.remove(fileid, existing);
+		}
+	}
+
+	private synchronized boolean addReader() {
+		if(fileFinalized || (initStatus != 0 && initStatus != 200) || (streamThreadComplete && !streamThreadSuccess)) {
+			return false;
+		}
+
+		++readers;
+		return true;
 	}
 
 	public int initialize() {
+		// only the first reader sets up the download. the others wait for it to finish, and get the same result
+		if(initStarted.compareAndSet(false, true)) {
+			int status = 500;
+
+			try {
+				status = connect();
+			}
+			finally {
+				completeInitialize(status);
+			}
+		}
+		else {
+			try {
+				initDone.await();
+			}
+			catch(InterruptedException e) {
+				return 500;
+			}
+		}
+
+		return initStatus;
+	}
+
+	private void completeInitialize(int status) {
+		synchronized(this) {
+			initStatus = status;
+		}
+
+		if(status != 200) {
+			activeDownloads.remove(fileid, this);
+		}
+
+		initDone.countDown();
+	}
+
+	private int connect() {
 		// we'll need to run this in a private thread so we can push data to the originating client at the same time we download it (pass-through)
 		// this will NOT work with HTTPS (see FileDownloader), but upstream can be kept as HTTP so This Is Fine™
 
-		Out.debug("ProxyFileDownloader::initialize with fileid=" + fileid + " sources=" + Arrays.toString(sources));
-		int retval = 500;
+		// the sources are tried in order of how fast they have been. if a source has not answered within the hedge delay, the next one is started as well, and whichever answers first is used. a source that fails is replaced by the next one right away
+		orderedSources = ProxySourceStats.orderSources(sources);
+		long hedgeDelay = ProxySourceStats.getHedgeDelay();
+		LinkedBlockingQueue<SourceRequest> responses = new LinkedBlockingQueue<SourceRequest>();
+		ArrayList<SourceRequest> requests = new ArrayList<SourceRequest>();
+		SourceRequest winner = null;
+		int finished = 0, retval = 500;
 
-		for(URL source : sources) {
-			try {
-				Out.debug("ProxyFileDownloader: Requesting file download from " + source);
+		Out.debug("ProxyFileDownloader::initialize with fileid=" + fileid + " sources=" + Arrays.toString(orderedSources) + " hedgeDelay=" + hedgeDelay);
+
+		try {
+			requests.add(startSourceRequest(orderedSources[0], responses));
+
+			while(winner == null && finished < orderedSources.length) {
+				SourceRequest response = null;
+
+				if(requests.size() < orderedSources.length) {
+					response = responses.poll(hedgeDelay, TimeUnit.MILLISECONDS);
+
+					if(response == null) {
+						Out.debug("ProxyFileDownloader: No response from " + requests.get(requests.size() - 1).source + " within " + hedgeDelay + "ms, also trying the next source");
+						requests.add(startSourceRequest(orderedSources[requests.size()], responses));
+						continue;
+					}
+				}
+				else {
+					// every source has been started. they all give up on their own after the connect and read timeouts
+					response = responses.take();
+				}
 
-				Proxy proxy = Settings.getImageProxy();
+				++finished;
 
-				if(proxy != null) {
-					connection = source.openConnection(proxy);
+				if(response.status == 200) {
+					winner = response;
 				}
 				else {
-					connection = source.openConnection();
+					retval = response.status;
+
+					if(requests.size() < orderedSources.length) {
+						// connection to upstream server could not be properly established; retry if possible
+						requests.add(startSourceRequest(orderedSources[requests.size()], responses));
+					}
+				}
+			}
+		}
+		catch(InterruptedException e) {
+			Out.debug("ProxyFileDownloader: Interrupted while waiting for the upstream sources");
+		}
+
+		synchronized(responses) {
+			// any request that has not been used is closed, either here or when it finishes
+			for(SourceRequest request : requests) {
+				if(request != winner) {
+					request.abandon();
+				}
+			}
+		}
+
+		if(winner == null) {
+			return retval;
+		}
+
+		connection = winner.connection;
+		sourceIndex = Arrays.asList(orderedSources).indexOf(winner.source);
+		contentLength = winner.responseLength;
+
+		try {
+			segments = ProxyBufferPool.allocate(contentLength);
+
+			parts = createParts();
+
+			if(segments == null) {
+				// no room in memory, so the proxied data goes through a temporary file. this is created in the directory the file will be cached in, so importing it is just a rename
+				Out.debug("ProxyFileDownloader: The proxy buffers are full, passing fileid=" + fileid + " through the disk");
+				tempFile = createCacheTempFile();
+				fileHandle = new RandomAccessFile(tempFile, "rw");
+				fileChannel = fileHandle.getChannel();
+
+				if(parts.length > 1) {
+					// the parts are written wherever they are in the file, so it is given its full size up front
+					fileHandle.setLength(contentLength);
 				}
+			}
+
+			// we need to calculate the SHA-1 hash at some point, so we might as well do it on the fly
+			sha1Digest = MessageDigest.getInstance("SHA-1");
 
-				connection.setConnectTimeout(5000);
-				connection.setReadTimeout(30000);
-				connection.setRequestProperty("Hath-Request", Settings.getClientID() + "-" + Tools.getSHA1String(Settings.getClientKey() + fileid));
-				connection.setRequestProperty("User-Agent", "Hentai@Home " + Settings.CLIENT_VERSION);
+			// at this point, everything is ready to receive data from the server and pass it to the client. in order to do this, we'll fork off a new thread to handle the reading, while this thread returns.
+			// control will thus pass to the HTTPSession where this HRP's read functions will be called, and data will be written to the connection this proxy request originated from.
+			myThread.start();
+
+			return 200;
+		}
+		catch(Exception e) {
+			Out.warning(e.getMessage());
+
+			try {
+				if(fileHandle != null) {
+					fileHandle.close();
+					fileHandle = null;
+				}
+			} catch(Exception e2) {}
+
+			if(tempFile != null) {
+				tempFile.delete();
+				tempFile = null;
+			}
+
+			if(segments != null) {
+				ProxyBufferPool.free(segments);
+				segments = null;
+			}
+
+			HTTPClient.discard(connection);
+			return 500;
+		}
+	}
+
+	private SourceRequest startSourceRequest(URL source, LinkedBlockingQueue<SourceRequest> responses) {
+		SourceRequest request = new SourceRequest(source, responses);
+		Tools.createThread(request).start();
+		return request;
+	}
+
+	private URLConnection openSourceConnection(URL source) throws java.io.IOException {
+		URLConnection sourceConnection = HTTPClient.openConnection(source, true, 5000, 30000);
+		sourceConnection.setRequestProperty("Hath-Request", Settings.getClientID() + "-" + Tools.getSHA1String(Settings.getClientKey() + fileid));
+		return sourceConnection;
+	}
+
+	// requests the bytes from start up to end, either to resume a part after its previous connection failed, or for the later parts of a parallel download. if the source ignores the range and sends the whole file, the bytes before start are skipped, and the connection is closed once the part is done
+	private URLConnection openRangeConnection(URL source, int start, int end) throws java.io.IOException {
+		Out.debug("ProxyFileDownloader: Requesting bytes " + start + "-" + (end - 1) + " of fileid=" + fileid + " from " + source);
+
+		URLConnection rangeConnection = openSourceConnection(source);
+		boolean partial = start > 0 || end < contentLength;
+
+		if(partial) {
+			rangeConnection.setRequestProperty("Range", "bytes=" + start + "-" + (end - 1));
+		}
+
+		rangeConnection.connect();
+
+		int responseCode = rangeConnection instanceof HttpURLConnection ? ((HttpURLConnection) rangeConnection).getResponseCode() : 200;
+
+		try {
+			if(responseCode == 206 && partial) {
+				String contentRange = rangeConnection.getHeaderField("Content-Range");
+
+				if(contentRange == null || !contentRange.startsWith("bytes " + start + "-") || !contentRange.endsWith("/" + contentLength)) {
+					throw new java.io.IOException("Unexpected Content-Range " + contentRange + " for bytes " + start + "-" + (end - 1));
+				}
+			}
+			else if(responseCode == 200 && rangeConnection.getContentLength() == contentLength) {
+				InputStream is = rangeConnection.getInputStream();
+				long skip = start;
+
+				while(skip > 0) {
+					long skipped = is.skip(skip);
+
+					if(skipped <= 0) {
+						if(is.read() < 0) {
+							throw new java.io.EOFException("Unexpected end of file from server");
+						}
+
+						skipped = 1;
+					}
+
+					skip -= skipped;
+				}
+			}
+			else {
+				throw new java.io.IOException("Unexpected response " + responseCode + " for bytes " + start + "-" + (end - 1) + " from " + source);
+			}
+		}
+		catch(java.io.IOException e) {
+			HTTPClient.discard(rangeConnection);
+			throw e;
+		}
+
+		return rangeConnection;
+	}
+
+	// requests the file from one source, and reports back once the response headers have been received and checked. the body is only read if this source ends up being used
+	private class SourceRequest implements Runnable {
+		private URL source;
+		private LinkedBlockingQueue<SourceRequest> responses;
+		private volatile URLConnection connection;
+		private int status = 500, responseLength = 0;
+		private long startTime;
+		private boolean abandoned = false;
+
+		public SourceRequest(URL source, LinkedBlockingQueue<SourceRequest> responses) {
+			this.source = source;
+			this.responses = responses;
+			startTime = System.currentTimeMillis();
+		}
+
+		public void run() {
+			try {
+				Out.debug("ProxyFileDownloader: Requesting file download from " + source);
+
+				connection = openSourceConnection(source);
 				connection.connect();
 
 				int tempLength = connection.getContentLength();
-				retval = 0;
+
+				synchronized(responses) {
+					if(abandoned) {
+						// a connection that was closed by abandon() can also just come back without headers
+						throw new java.io.IOException("Abandoned");
+					}
+				}
+
+				ProxySourceStats.recordResponse(source, System.currentTimeMillis() - startTime);
 
 				if(tempLength < 0) {
 					Out.warning("Request host did not send Content-Length, aborting transfer." + " (" + connection + ")");
 					Out.warning("Note: A common reason for this is running firewalls with outgoing restrictions or programs like PeerGuardian/PeerBlock. Verify that the remote host is not blocked.");
-					retval = 502;
+					status = 502;
 				}
 				else if(tempLength > Settings.getMaxAllowedFileSize()) {
-					Out.warning("Reported contentLength " + contentLength + " exceeds currently max allowed filesize " + Settings.getMaxAllowedFileSize());
-					retval = 502;
+					Out.warning("Reported contentLength " + tempLength + " exceeds currently max allowed filesize " + Settings.getMaxAllowedFileSize());
+					status = 502;
 				}
 				else if(tempLength != requestedHVFile.getSize()) {
-					Out.warning("Reported contentLength " + contentLength + " does not match expected length of file " + fileid + " (" + connection + ")");
-					retval = 502;
+					Out.warning("Reported contentLength " + tempLength + " does not match expected length of file " + fileid + " (" + connection + ")");
+					status = 502;
+				}
+				else {
+					responseLength = tempLength;
+					status = 200;
+				}
+
+				if(status != 200) {
+					ProxySourceStats.recordFailure(source);
+				}
+			}
+			catch(Exception e) {
+				synchronized(responses) {
+					if(abandoned) {
+						// we were cut off because another source answered first. this one would have taken at least this long
+						ProxySourceStats.recordAbandoned(source, System.currentTimeMillis() - startTime);
+					}
+					else {
+						Out.warning(e.getMessage());
+						ProxySourceStats.recordFailure(source);
+					}
 				}
+			}
 
-				if(retval > 0) {
-					// connection to upstream server could not be properly established; retry if possible
-					continue;
+			synchronized(responses) {
+				if(abandoned || status != 200) {
+					HTTPClient.discard(connection);
 				}
 
-				contentLength = tempLength;
+				if(!abandoned) {
+					responses.add(this);
+				}
+			}
+		}
 
-				// create the temporary file used to hold the proxied data
-				tempFile = File.createTempFile("proxyfile_", "", Settings.getTempDir());
-				fileHandle = new RandomAccessFile(tempFile, "rw");
-				fileChannel = fileHandle.getChannel();
+		// must be called while holding the lock on responses
+		public void abandon() {
+			abandoned = true;
 
-				// we need to calculate the SHA-1 hash at some point, so we might as well do it on the fly
-				sha1Digest = MessageDigest.getInstance("SHA-1");
+			if(connection != null) {
+				// if the request is still waiting for the response, this makes it fail right away instead of holding on to the connection until the timeout. if the connection has not been opened yet, it is closed once the request finishes
+				HTTPClient.discard(connection);
+			}
+		}
+	}
 
-				// at this point, everything is ready to receive data from the server and pass it to the client. in order to do this, we'll fork off a new thread to handle the reading, while this thread returns.
-				// control will thus pass to the HTTPSession where this HRP's read functions will be called, and data will be written to the connection this proxy request originated from.
-				myThread.start();
+	private DownloadPart[] createParts() {
+		// large files are split into parallel range requests, as a single upstream connection often cannot keep up with the clients. the first part uses the connection that is already open, and the others are spread over the sources
+		int partCount = 1;
+
+		if(contentLength >= Settings.getProxyParallelThresholdBytes()) {
+			partCount = Settings.getProxyParallelParts();
+		}
 
-				retval = 200;
+		// the part boundaries are aligned to the memory segments
+		int partSize = contentLength / partCount;
+		partSize = Math.max(ProxyBufferPool.SEGMENT_SIZE, partSize - partSize % ProxyBufferPool.SEGMENT_SIZE);
+		ArrayList<DownloadPart> partList = new ArrayList<DownloadPart>();
+
+		for(int start = 0; start < contentLength || start == 0; start += partSize) {
+			boolean last = partList.size() == partCount - 1 || contentLength - start <= partSize;
+			int end = last ? contentLength : start + partSize;
+			partList.add(new DownloadPart(start, end, (sourceIndex + partList.size()) % orderedSources.length));
+
+			if(last) {
 				break;
 			}
-			catch(Exception e) {
-				Out.warning(e.getMessage());
+		}
 
+		return partList.toArray(new DownloadPart[partList.size()]);
+	}
+
+	public void run() {
+		downloadLock.lock();
+
+		try {
+			parts[0].connection = connection;
+			Thread[] partThreads = new Thread[parts.length];
+
+			if(parts.length > 1) {
+				Out.debug("ProxyFileDownloader: Downloading fileid=" + fileid + " in " + parts.length + " parallel parts");
+			}
+
+			for(int i = 1; i < parts.length; i++) {
+				partThreads[i] = Tools.createThread(parts[i]);
+				partThreads[i].start();
+			}
+
+			parts[0].run();
+
+			for(int i = 1; i < parts.length; i++) {
 				try {
-					if(fileHandle != null) {
-						fileHandle.close();
+					partThreads[i].join();
+				}
+				catch(InterruptedException e) {
+					abortDownload();
+				}
+			}
+
+			streamThreadSuccess = !downloadAborted && writeoff == contentLength;
+
+			if(streamThreadSuccess) {
+				Stats.fileRcvd();
+
+				String sha1Hash = Tools.binaryToHex(sha1Digest.digest());
+				fileVerified = requestedHVFile.getHash().equals(sha1Hash);
+
+				if(!fileVerified) {
+					Out.debug("Proxy-downloaded file " + fileid + " is corrupt, and will not be stored. (digest=" + sha1Hash + ")");
+				}
+				else if(segments != null) {
+					// the readers are sending from memory, so the file can be stored right away without waiting for them
+					storeBufferedFile();
+				}
+			}
+
+			streamThreadComplete = true;
+
+			if(!streamThreadSuccess) {
+				// the readers that are still waiting for data will give up when they see this, so there is no point in attaching new ones
+				activeDownloads.remove(fileid, this);
+				wakeDataWaiters();
+			}
+
+			checkFinalizeDownloadedFile();
+		}
+		finally {
+			downloadLock.unlock();
+		}
+	}
+
+	private void abortDownload() {
+		downloadAborted = true;
+
+		for(DownloadPart part : parts) {
+			// this makes the other parts fail right away if they are waiting for data
+			HTTPClient.discard(part.connection);
+		}
+	}
+
+	// called by the parts after storing the given data, which starts at part.received. if this continues the published data, it is digested and handed to the readers right away, along with anything the later parts already have that now follows on from it. otherwise, it is digested once the parts before it have caught up
+	private void publishData(DownloadPart part, ByteBuffer data, int length) throws java.io.IOException {
+		boolean published = false;
+
+		synchronized(publishLock) {
+			if(part.received == writeoff) {
+				sha1Digest.update(data);
+				writeoff += length;
+				published = true;
+			}
+
+			part.received += length;
+
+			if(published) {
+				for(DownloadPart next : parts) {
+					if(next.start == writeoff && next.received > writeoff) {
+						// this part was waiting for the ones before it
+						digestStoredData(writeoff, next.received);
+						writeoff = next.received;
 					}
-				} catch(Exception e2) {}
+				}
 			}
 		}
 
-		return retval;
+		Stats.bytesRcvd(length);
+
+		if(published) {
+			wakeDataWaiters();
+		}
 	}
 
-	public void run() {
-		synchronized(downloadLock) {
+	private void digestStoredData(int offset, int end) throws java.io.IOException {
+		if(segments != null) {
+			while(offset < end) {
+				ByteBuffer view = getSegmentView(offset);
+				view.limit(Math.min(view.limit(), view.position() + end - offset));
+				offset += view.remaining();
+				sha1Digest.update(view);
+			}
+		}
+		else {
+			// the data was just written, so this will come from the OS disk buffer
+			ByteBuffer readBuffer = ByteBuffer.allocateDirect(Math.min(end - offset, 65536));
+
+			while(offset < end) {
+				readBuffer.clear();
+				readBuffer.limit(Math.min(readBuffer.capacity(), end - offset));
+
+				while(readBuffer.hasRemaining()) {
+					if(fileChannel.read(readBuffer, offset + readBuffer.position()) < 0) {
+						throw new java.io.EOFException("Unexpected end of the temporary file");
+					}
+				}
+
+				readBuffer.flip();
+				offset += readBuffer.remaining();
+				sha1Digest.update(readBuffer);
+			}
+		}
+	}
+
+	// a range of the file that is downloaded over its own connection. a file below the parallel threshold is a single part
+	private class DownloadPart implements Runnable {
+		private final int start, end;
+		private int sourceIndex;
+		// the data up to received has been stored, and is kept if the connection fails
+		private int received;
+		private volatile URLConnection connection = null;
+
+		public DownloadPart(int start, int end, int sourceIndex) {
+			this.start = start;
+			this.end = end;
+			this.sourceIndex = sourceIndex;
+			received = start;
+		}
+
+		public void run() {
 			int trycounter = 3;
-			int bufferSize = 65536;
-			int bufferThreshold = (int) Math.floor(bufferSize * 0.75);
-			ByteBuffer byteBuffer = ByteBuffer.allocateDirect(Math.min(contentLength, bufferSize));
+			boolean success = false;
+			// when the data is kept in memory, we read straight into the segments, one at a time. otherwise, this is the buffer for the file writes
+			ByteBuffer byteBuffer = segments != null ? null : ByteBuffer.allocateDirect(Math.min(end - start, 65536));
 
 			do {
 				InputStream is = null;
 				ReadableByteChannel rbc = null;
 
 				try {
+					if(connection == null) {
+						connection = openRangeConnection(orderedSources[sourceIndex], received, end);
+					}
+
 					is = connection.getInputStream();
 					rbc = Channels.newChannel(is);
 
+					if(segments != null) {
+						byteBuffer = getPartView(received);
+					}
+
 					long downloadStart = System.currentTimeMillis();
-					int readcount = 0;	// the number of bytes in the last read
-					int writecount = 0;	// the number of bytes in the last write
-					int time = 0;		// counts the approximate time (in nanofortnights) since last byte was received
-
-					while(writeoff < contentLength) {
-						if(is.available() > 0) {
-							time = 0;
-							readcount = rbc.read(byteBuffer);
-							//Out.debug("Read " + readcount + " bytes from upstream server");
-
-							if(readcount >= 0) {
-								readoff += readcount;
-
-								// we push the buffer to disk/digest if we either read all of the bytes, or we are above the flush threshold and we cannot fit the remainder in the buffer
-								if( (readoff == contentLength) || ( (readoff > writeoff + bufferThreshold) && (writeoff < contentLength - bufferSize) ) ) {
-									byteBuffer.flip();
-									// we have to make a "metacopy" of this buffer to avoid it being consumed by the digest
-									sha1Digest.update(byteBuffer.asReadOnlyBuffer());
-									// FileChannel.write(ByteBuffer, long) is guaranteed to consume the entire buffer
-									writecount = fileChannel.write(byteBuffer, writeoff);
-									writeoff += writecount;
-									Stats.bytesRcvd(writecount);
-									//Out.debug("Wrote " + writecount + " bytes to " + tempFile);
-									byteBuffer.clear();
+					int pending = 0;	// the number of bytes that have been read, but not yet stored and published
+
+					while(received < end && !downloadAborted) {
+						// this blocks until the upstream server sends something. the connection has a 30 second read timeout, which throws a SocketTimeoutException
+						int readcount = rbc.read(byteBuffer);
+
+						if(readcount < 0) {
+							Out.warning("\nServer sent premature EOF, aborting.. (" + (received - start) + " of " + (end - start) + " bytes received)");
+							throw new java.net.SocketException("Unexpected end of file from server");
+						}
+
+						pending += readcount;
+
+						// the data is handed to the readers as soon as we have read everything the server has sent so far. it is only held back while more is already waiting to be read
+						if(received + pending == end || !byteBuffer.hasRemaining() || is.available() == 0) {
+							if(segments != null) {
+								// the new data is already in place, it just has to be published
+								ByteBuffer data = byteBuffer.duplicate();
+								data.limit(data.position());
+								data.position(data.position() - pending);
+								publishData(this, data, pending);
+
+								if(!byteBuffer.hasRemaining() && received < end) {
+									byteBuffer = getPartView(received);
 								}
 							}
 							else {
-								// readcount == -1 => EOF
-								Out.warning("\nServer sent premature EOF, aborting.. (" + writeoff + " of " + contentLength + " bytes received)");
-								throw new java.net.SocketException("Unexpected end of file from server");
+								byteBuffer.flip();
+								// we have to make a "metacopy" of this buffer, as the write consumes it
+								ByteBuffer data = byteBuffer.asReadOnlyBuffer();
+								// FileChannel.write(ByteBuffer, long) is guaranteed to consume the entire buffer
+								fileChannel.write(byteBuffer, received);
+								publishData(this, data, pending);
+								byteBuffer.clear();
 							}
+
+							pending = 0;
 						}
-						else {
-							if(System.currentTimeMillis() - downloadStart > 300000) {
-								Out.warning("\nDownload time limit has expired, aborting...");
-								throw new java.net.SocketTimeoutException("Download timed out");
-							}
-							else if(time > 30000) {
-								Out.warning("\nTimeout detected waiting for byte " + writeoff + ", aborting..");
-								throw new java.net.SocketTimeoutException("Read timed out");
-							}
 
-							time += 5;
-							Thread.currentThread().sleep(5);
+						if(received < end && System.currentTimeMillis() - downloadStart > 300000) {
+							Out.warning("\nDownload time limit has expired, aborting...");
+							throw new java.net.SocketTimeoutException("Download timed out");
 						}
 					}
 
-					Stats.fileRcvd();
-					streamThreadSuccess = true;
+					success = received == end;
+
+					if(!success || (end < contentLength && !isPartResponse(connection))) {
+						// the response goes on past what we need, so the connection has to be closed instead of being returned to the pool with the rest unread
+						HTTPClient.discard(connection);
+					}
+
+					if(success) {
+						connection = null;
+					}
 				}
 				catch(Exception e) {
-					writeoff = 0;
-					readoff = 0;
-					byteBuffer.clear();
-					sha1Digest.reset();
-					Out.debug("Retrying.. (" + trycounter + " tries left)");
+					// anything that was read but not yet stored is thrown away, and read again after resuming. the rest is requested from the next source, which is the same one if there is only one
+					if(!downloadAborted) {
+						ProxySourceStats.recordFailure(orderedSources[sourceIndex]);
+						Out.debug("Download of fileid=" + fileid + " failed at offset " + received + " with " + e + ", retrying.. (" + (trycounter - 1) + " tries left)");
+					}
+
+					HTTPClient.discard(connection);
+					connection = null;
+					sourceIndex = (sourceIndex + 1) % orderedSources.length;
+
+					if(byteBuffer != null && segments == null) {
+						byteBuffer.clear();
+					}
 				}
 				finally {
 					try { rbc.close(); } catch(Exception e) {}
 					try { is.close(); } catch(Exception e) {}
 				}
-			} while(!streamThreadSuccess && --trycounter > 0);
+			} while(!success && !downloadAborted && --trycounter > 0);
 
-			streamThreadComplete = true;
-			checkFinalizeDownloadedFile();
+			if(!success && !downloadAborted) {
+				abortDownload();
+			}
+		}
+
+		private boolean isPartResponse(URLConnection partConnection) {
+			// a range response that ends with this part. the first part of a parallel download uses a response for the whole file
+			String contentRange = partConnection.getHeaderField("Content-Range");
+			return contentRange != null && contentRange.contains("-" + (end - 1) + "/");
+		}
+
+		private ByteBuffer getPartView(int offset) {
+			ByteBuffer view = getSegmentView(offset);
+			view.limit(Math.min(view.limit(), end - (offset - offset % ProxyBufferPool.SEGMENT_SIZE)));
+			return view;
 		}
 	}
 
@@ -238,12 +747,124 @@ public class ProxyFileDownloader implements Runnable {
 		return writeoff;
 	}
 
+	public boolean isDownloadFailed() {
+		return streamThreadComplete && !streamThreadSuccess;
+	}
+
+	// for the blocking sessions. returns when at least the given number of bytes have been downloaded, the download has failed, or the timeout has expired
+	public void waitForData(int offset, long timeout) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeout;
+
+		synchronized(dataWaiters) {
+			long remaining = timeout;
+
+			while(writeoff < offset && !isDownloadFailed() && remaining > 0) {
+				dataWaiters.wait(remaining);
+				remaining = deadline - System.currentTimeMillis();
+			}
+		}
+	}
+
+	// for the event loop sessions, which cannot block. the session is woken up once the next time the download makes progress
+	public void addDataWaiter(HTTPSession session) {
+		synchronized(dataWaiters) {
+			if(!dataWaiters.contains(session)) {
+				dataWaiters.add(session);
+			}
+		}
+	}
+
+	private void wakeDataWaiters() {
+		HTTPSession[] waiting = null;
+
+		synchronized(dataWaiters) {
+			dataWaiters.notifyAll();
+
+			if(!dataWaiters.isEmpty()) {
+				waiting = dataWaiters.toArray(new HTTPSession[dataWaiters.size()]);
+				dataWaiters.clear();
+			}
+		}
+
+		if(waiting != null) {
+			for(HTTPSession session : waiting) {
+				session.bodyDataAvailable();
+			}
+		}
+	}
+
+	// returns a view of up to length bytes of the memory buffers starting at offset, or null if the download is not kept in memory. the view ends early at the end of a segment
+	public ByteBuffer getBufferedData(int offset, int length) {
+		if(segments == null) {
+			return null;
+		}
+
+		ByteBuffer view = getSegmentView(offset);
+		view.limit(Math.min(view.limit(), view.position() + length));
+		return view.slice();
+	}
+
+	private ByteBuffer getSegmentView(int offset) {
+		// the segments themselves are never read or written, only views of them, so every thread has its own position and limit
+		int segmentStart = offset - offset % ProxyBufferPool.SEGMENT_SIZE;
+		ByteBuffer view = segments[segmentStart / ProxyBufferPool.SEGMENT_SIZE].duplicate();
+		view.limit(Math.min(ProxyBufferPool.SEGMENT_SIZE, contentLength - segmentStart));
+		view.position(offset - segmentStart);
+		return view;
+	}
+
+	private File createCacheTempFile() throws java.io.IOException {
+		// cache scans and pruning will delete this if it is left behind, as the name is not a valid fileid
+		File cacheDir = requestedHVFile.getLocalFileRef().getParentFile();
+		Tools.checkAndCreateDir(cacheDir);
+		return File.createTempFile("proxyfile_", ".tmp", cacheDir);
+	}
+
+	private void storeBufferedFile() {
+		File cacheTempFile = null;
+		FileOutputStream fileStream = null;
+
+		try {
+			cacheTempFile = createCacheTempFile();
+			fileStream = new FileOutputStream(cacheTempFile);
+			FileChannel cacheChannel = fileStream.getChannel();
+
+			for(int offset = 0; offset < contentLength; offset += ProxyBufferPool.SEGMENT_SIZE) {
+				ByteBuffer view = getSegmentView(offset);
+
+				while(view.hasRemaining()) {
+					cacheChannel.write(view);
+				}
+			}
+
+			fileStream.close();
+			fileStream = null;
+
+			if(client.getCacheHandler().importFileToCache(cacheTempFile, requestedHVFile)) {
+				Out.debug("Proxy-downloaded file " + fileid + " was successfully stored in cache.");
+			}
+			else {
+				Out.debug("Proxy-downloaded file " + fileid + " exists or could not be imported to the cache.");
+			}
+		}
+		catch(Exception e) {
+			Out.warning("Proxy-downloaded file " + fileid + " could not be written to the cache: " + e);
+		}
+		finally {
+			try { fileStream.close(); } catch(Exception e) {}
+
+			if(cacheTempFile != null && cacheTempFile.exists()) {
+				cacheTempFile.delete();
+			}
+		}
+	}
+
 	public int fillBuffer(ByteBuffer buffer, int offset) throws java.io.IOException {
 		int readBytes = 0;
 
 		while(buffer.hasRemaining() && writeoff > offset + readBytes) {
 			// this method will never be called unless sufficient bytes are available, so we always want to fill the buffer before we return.
-			// we do not buffer reads when doing proxied file downloads. as the data was *just* written, it is almost guaranteed to be in the OS disk buffer.
+			// this is only used when the download is not kept in memory. as the data was *just* written, it is almost guaranteed to be in the OS disk buffer.
 			readBytes += fileChannel.read(buffer, offset + readBytes);
 		}
 
@@ -251,15 +872,21 @@ public class ProxyFileDownloader implements Runnable {
 		return readBytes;
 	}
 
-	public void proxyThreadCompleted() {
+	public synchronized void proxyThreadCompleted() {
 		Stats.fileSent();
-		proxyThreadComplete = true;
+		--readers;
+
+		if(readers == 0 && initStarted.compareAndSet(false, true)) {
+			// every request that was attached went away before any of them started the download
+			completeInitialize(500);
+		}
+
 		checkFinalizeDownloadedFile();
 	}
 
 	private synchronized void checkFinalizeDownloadedFile() {
-		if(!streamThreadComplete || !proxyThreadComplete) {
-			// we have to wait for both the upstream and downstream transfers to complete before we can close this file
+		if(!streamThreadComplete || readers > 0) {
+			// we have to wait for the upstream transfer and all the downstream transfers to complete before we can close this file
 			return;
 		}
 
@@ -270,6 +897,12 @@ public class ProxyFileDownloader implements Runnable {
 
 		fileFinalized = true;
 
+		if(segments != null) {
+			// no reader is using the memory buffers anymore, and the file has already been stored
+			ProxyBufferPool.free(segments);
+			segments = null;
+		}
+
 		if(fileChannel != null) {
 			try {
 				fileChannel.close();
@@ -282,25 +915,22 @@ public class ProxyFileDownloader implements Runnable {
 			} catch(Exception e) {}
 		}
 
-		if(tempFile.length() != getContentLength()) {
-			Out.debug("Proxy-downloaded file " + fileid + " is incomplete, and will not be stored. (bytes=" + tempFile.length() + ")");
-		}
-		else {
-			String sha1Hash = Tools.binaryToHex(sha1Digest.digest());
-
-			if( !requestedHVFile.getHash().equals(sha1Hash) ) {
-				Out.debug("Proxy-downloaded file " + fileid + " is corrupt, and will not be stored. (digest=" + sha1Hash + ")");
+		if(tempFile != null) {
+			if(!streamThreadSuccess || tempFile.length() != getContentLength()) {
+				Out.debug("Proxy-downloaded file " + fileid + " is incomplete, and will not be stored. (bytes=" + tempFile.length() + ")");
 			}
-			else if(client.getCacheHandler().importFileToCache(tempFile, requestedHVFile)) {
+			else if(fileVerified && client.getCacheHandler().importFileToCache(tempFile, requestedHVFile)) {
 				Out.debug("Proxy-downloaded file " + fileid + " was successfully stored in cache.");
 			}
-			else {
+			else if(fileVerified) {
 				Out.debug("Proxy-downloaded file " + fileid + " exists or could not be imported to the cache.");
 			}
-		}
 
-		if(tempFile.exists()) {
-			tempFile.delete();
+			if(tempFile.exists()) {
+				tempFile.delete();
+			}
 		}
+
+		activeDownloads.remove(fileid, this);
 	}
 }
@@ -0,0 +1,160 @@
+/*
+
+Copyright 2008-2024 E-Hentai.org
+https://forums.e-hentai.org/
+tenboro@e-hentai.org
+
+This file is part of Hentai@Home.
+
+Hentai@Home is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Hentai@Home is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Hentai@Home.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+package hath.base;
+
+import java.net.URL;
+import java.util.Arrays;
+import java.util.HashMap;
+
+// keeps track of how quickly each upstream source for proxied files responds, and how often it fails. this is used to try the sources that have been fast and reliable first, and to decide how long to wait for a source before also trying the next one (hedging).
+// sources are identified by host and port, as the paths differ for every file.
+
+public class ProxySourceStats {
+	private static final int SAMPLE_COUNT = 128, MIN_SAMPLES = 16;
+	private static final long DEFAULT_HEDGE_DELAY = 1000, MIN_HEDGE_DELAY = 50, MAX_HEDGE_DELAY = 5000;
+	private static final double ALPHA = 0.2;
+
+	private static final HashMap<String, SourceStats> sourceStats = new HashMap<String, SourceStats>();
+	// the most recent response times from all sources, used for the hedge delay
+	private static final long[] samples = new long[SAMPLE_COUNT];
+	private static int sampleCount = 0, samplePointer = 0;
+	private static long hedgeDelay = DEFAULT_HEDGE_DELAY;
+
+	private static class SourceStats {
+		double latency = -1, failureRate = 0;
+		int successes = 0, failures = 0;
+	}
+
+	// records the time from starting a request to a source until its response headers were received
+	public static synchronized void recordResponse(URL source, long millis) {
+		SourceStats stats = getStats(source);
+		stats.latency = stats.latency < 0 ? millis : stats.latency + ALPHA * (millis - stats.latency);
+		stats.failureRate -= ALPHA * stats.failureRate;
+		++stats.successes;
+
+		samples[samplePointer] = millis;
+		samplePointer = (samplePointer + 1) % SAMPLE_COUNT;
+		sampleCount = Math.min(sampleCount + 1, SAMPLE_COUNT);
+		updateHedgeDelay();
+	}
+
+	// records a request that was abandoned after the given time because another source answered first. we only know that this source would have taken at least that long
+	public static synchronized void recordAbandoned(URL source, long millis) {
+		SourceStats stats = getStats(source);
+
+		if(stats.latency < millis) {
+			stats.latency = stats.latency < 0 ? millis : stats.latency + ALPHA * (millis - stats.latency);
+		}
+	}
+
+	public static synchronized void recordFailure(URL source) {
+		SourceStats stats = getStats(source);
+		stats.failureRate += ALPHA * (1 - stats.failureRate);
+		++stats.failures;
+	}
+
+	// how long to wait for a source to respond before also starting a request to the next one. this is the 95th percentile of the recent response times, so only the slowest 5% of the requests are hedged
+	public static synchronized long getHedgeDelay() {
+		return hedgeDelay;
+	}
+
+	// returns the sources ordered by their expected response time, with the failure rate as a penalty. sources we know nothing about are ranked as average, and equal sources keep the order the server sent them in
+	public static synchronized URL[] orderSources(URL[] sources) {
+		if(sources.length < 2) {
+			return sources;
+		}
+
+		final double[] scores = new double[sources.length];
+		Integer[] order = new Integer[sources.length];
+		double neutral = getPercentile(0.5);
+
+		for(int i = 0; i < sources.length; i++) {
+			SourceStats stats = sourceStats.get(getSourceKey(sources[i]));
+			double latency = stats == null || stats.latency < 0 ? neutral : stats.latency;
+			// a source that fails half the time is ranked as if it were three times as slow
+			scores[i] = latency * (1 + 4 * (stats == null ? 0 : stats.failureRate));
+			order[i] = i;
+		}
+
+		// Arrays.sort is stable for objects
+		Arrays.sort(order, new java.util.Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				return Double.compare(scores[a], scores[b]);
+			}
+		});
+
+		URL[] ordered = new URL[sources.length];
+
+		for(int i = 0; i < sources.length; i++) {
+			ordered[i] = sources[order[i]];
+		}
+
+		return ordered;
+	}
+
+	public static synchronized String getSummary() {
+		StringBuilder sb = new StringBuilder("hedgeDelay=" + hedgeDelay + "ms");
+
+		for(String key : sourceStats.keySet()) {
+			SourceStats stats = sourceStats.get(key);
+			sb.append(" " + key + "=[latency=" + Math.round(stats.latency) + "ms failureRate=" + Math.round(stats.failureRate * 100) + "% ok=" + stats.successes + " failed=" + stats.failures + "]");
+		}
+
+		return sb.toString();
+	}
+
+	private static SourceStats getStats(URL source) {
+		String key = getSourceKey(source);
+		SourceStats stats = sourceStats.get(key);
+
+		if(stats == null) {
+			stats = new SourceStats();
+			sourceStats.put(key, stats);
+		}
+
+		return stats;
+	}
+
+	private static String getSourceKey(URL source) {
+		return source.getHost() + ":" + (source.getPort() < 0 ? source.getDefaultPort() : source.getPort());
+	}
+
+	private static void updateHedgeDelay() {
+		if(sampleCount < MIN_SAMPLES) {
+			hedgeDelay = DEFAULT_HEDGE_DELAY;
+		}
+		else {
+			hedgeDelay = Math.max(MIN_HEDGE_DELAY, Math.min(MAX_HEDGE_DELAY, (long) getPercentile(0.95)));
+		}
+	}
+
+	private static double getPercentile(double percentile) {
+		if(sampleCount == 0) {
+			return DEFAULT_HEDGE_DELAY;
+		}
+
+		long[] sorted = Arrays.copyOf(samples, sampleCount);
+		Arrays.sort(sorted);
+		return sorted[Math.min(sampleCount - 1, (int) (sampleCount * percentile))];
+	}
+}
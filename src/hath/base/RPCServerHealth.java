@@ -0,0 +1,212 @@
+/*
+
+Copyright 2008-2024 E-Hentai.org
+https://forums.e-hentai.org/
+tenboro@e-hentai.org
+
+This file is part of Hentai@Home.
+
+Hentai@Home is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Hentai@Home is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Hentai@Home.  If not, see <https://www.gnu.org/licenses/>.
+
+*/
+package hath.base;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+// keeps track of how quickly each RPC server answers and how often it fails, and picks the server to use for the next request. a server that keeps failing has its circuit opened, which takes it out of the rotation until a single probe request has succeeded.
+// the server list is an immutable array that is replaced when the server sends a new one, so selecting a server never has to take a lock. only recording a result or starting a probe locks the entry it belongs to.
+
+public class RPCServerHealth {
+	private static final double ALPHA = 0.2;
+	private static final int FAILURE_THRESHOLD = 3;
+	// the penalty added to the latency of a server that has failed every recent request. a single failure is enough to prefer another server
+	private static final double FAILURE_PENALTY = 10000;
+	// the error rate used for selection halves every ten minutes without a new failure, so one bad moment does not keep a server unused forever
+	private static final long ERROR_HALF_LIFE = 600000;
+	private static final long MIN_OPEN_TIME = 30000, MAX_OPEN_TIME = 600000;
+	// if a probe has not reported back in this time, for example because the request was never made, another one is allowed
+	private static final long PROBE_TIMEOUT = 300000;
+
+	private static final int STATE_CLOSED = 0, STATE_OPEN = 1, STATE_HALF_OPEN = 2;
+
+	private static volatile ServerEntry[] servers = new ServerEntry[0];
+
+	private static class ServerEntry {
+		final String host;
+		// the time when the next probe may be sent while the circuit is not closed
+		final AtomicLong probeAt = new AtomicLong(0);
+		volatile int state = STATE_CLOSED;
+		volatile double latency = -1, errorRate = 0;
+		volatile long lastFailure = 0;
+		// when the current probe was granted. a failure only counts as the probe failing if its request was sent after this, as requests sent before the circuit opened can still be coming back
+		long probeStarted = 0;
+		// only accessed while holding the lock on the entry
+		int consecutiveFailures = 0, successes = 0, failures = 0;
+		long openTime = MIN_OPEN_TIME;
+
+		ServerEntry(String host) {
+			this.host = host;
+		}
+	}
+
+	// replaces the list of servers. servers that were already known keep their history
+	public static synchronized void setServers(String[] hosts) {
+		ServerEntry[] previous = servers;
+		ServerEntry[] updated = new ServerEntry[hosts.length];
+
+		for(int i = 0; i < hosts.length; i++) {
+			ServerEntry entry = findEntry(previous, hosts[i]);
+			updated[i] = entry != null ? entry : new ServerEntry(hosts[i]);
+		}
+
+		servers = updated;
+	}
+
+	// returns the host of the healthy server that is expected to answer fastest, a server that is due for a probe, or null if no servers are known
+	public static String selectServer() {
+		ServerEntry[] current = servers;
+
+		if(current.length == 0) {
+			return null;
+		}
+
+		long now = System.currentTimeMillis();
+		ServerEntry best = null, soonest = null;
+		double bestScore = Double.MAX_VALUE;
+
+		for(ServerEntry entry : current) {
+			if(entry.state != STATE_CLOSED) {
+				long probeAt = entry.probeAt.get();
+
+				if(now >= probeAt && entry.probeAt.compareAndSet(probeAt, now + PROBE_TIMEOUT)) {
+					// only the thread that won the update sends the probe, everyone else keeps avoiding this server until it reports back
+					synchronized(entry) {
+						if(entry.state != STATE_CLOSED) {
+							entry.state = STATE_HALF_OPEN;
+							entry.probeStarted = now;
+						}
+					}
+
+					Out.debug("Probing RPC server " + entry.host);
+					return entry.host;
+				}
+
+				if(soonest == null || probeAt < soonest.probeAt.get()) {
+					soonest = entry;
+				}
+
+				continue;
+			}
+
+			// unknown servers score zero so that every server gets measured. the small random spread keeps near-equal servers from being picked in lockstep by every client
+			double latency = entry.latency < 0 ? 0 : entry.latency;
+			double score = (latency + getDecayedErrorRate(entry, now) * FAILURE_PENALTY) * (0.9 + 0.2 * Math.random());
+
+			if(score < bestScore) {
+				best = entry;
+				bestScore = score;
+			}
+		}
+
+		// if every circuit is open we still have to try something, and the one that will be probed first is the best guess
+		return best != null ? best.host : soonest.host;
+	}
+
+	public static void recordSuccess(String host, long millis) {
+		ServerEntry entry = findEntry(servers, host);
+
+		if(entry == null) {
+			return;
+		}
+
+		synchronized(entry) {
+			entry.latency = entry.latency < 0 ? millis : entry.latency + ALPHA * (millis - entry.latency);
+			entry.errorRate -= ALPHA * entry.errorRate;
+			entry.consecutiveFailures = 0;
+			++entry.successes;
+
+			if(entry.state != STATE_CLOSED) {
+				Out.info("RPC server " + entry.host + " is responding again");
+				entry.openTime = MIN_OPEN_TIME;
+				entry.state = STATE_CLOSED;
+			}
+		}
+	}
+
+	// requestStart is the time the failed request was sent, which is used to tell the probe apart from older requests
+	public static void recordFailure(String host, long requestStart) {
+		ServerEntry entry = findEntry(servers, host);
+
+		if(entry == null) {
+			return;
+		}
+
+		synchronized(entry) {
+			long now = System.currentTimeMillis();
+			entry.errorRate = getDecayedErrorRate(entry, now) + ALPHA * (1 - getDecayedErrorRate(entry, now));
+			entry.lastFailure = now;
+			++entry.consecutiveFailures;
+			++entry.failures;
+
+			if(entry.state == STATE_HALF_OPEN && requestStart >= entry.probeStarted) {
+				// the probe failed, so wait longer before the next one
+				entry.openTime = Math.min(entry.openTime * 2, MAX_OPEN_TIME);
+				entry.state = STATE_OPEN;
+				entry.probeAt.set(now + entry.openTime);
+				Out.debug("RPC server " + entry.host + " is still failing, next probe in " + entry.openTime / 1000 + " seconds");
+			}
+			else if(entry.state == STATE_CLOSED && entry.consecutiveFailures >= FAILURE_THRESHOLD) {
+				entry.state = STATE_OPEN;
+				entry.probeAt.set(now + entry.openTime);
+				Out.warning("RPC server " + entry.host + " failed " + entry.consecutiveFailures + " requests in a row, avoiding it for " + entry.openTime / 1000 + " seconds");
+			}
+		}
+	}
+
+	public static String getSummary() {
+		ServerEntry[] current = servers;
+		long now = System.currentTimeMillis();
+		StringBuilder sb = new StringBuilder();
+
+		for(ServerEntry entry : current) {
+			String state = entry.state == STATE_CLOSED ? "ok" : entry.state == STATE_OPEN ? "open" : "probing";
+
+			synchronized(entry) {
+				sb.append((sb.length() > 0 ? " " : "") + entry.host + "=[" + state + " latency=" + Math.round(entry.latency) + "ms errorRate=" + Math.round(getDecayedErrorRate(entry, now) * 100) + "% ok=" + entry.successes + " failed=" + entry.failures + "]");
+			}
+		}
+
+		return sb.toString();
+	}
+
+	private static double getDecayedErrorRate(ServerEntry entry, long now) {
+		double errorRate = entry.errorRate;
+
+		if(errorRate <= 0) {
+			return 0;
+		}
+
+		return errorRate * Math.pow(0.5, (double) (now - entry.lastFailure) / ERROR_HALF_LIFE);
+	}
+
+	private static ServerEntry findEntry(ServerEntry[] entries, String host) {
+		for(ServerEntry entry : entries) {
+			if(entry.host.equals(host)) {
+				return entry;
+			}
+		}
+
+		return null;
+	}
+}
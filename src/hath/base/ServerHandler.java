@@ -27,7 +27,10 @@ import java.net.URL;
 import java.lang.StringBuilder;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
 
 public class ServerHandler {
 	public static final String ACT_SERVER_STAT = "server_stat";
@@ -45,9 +48,42 @@ public class ServerHandler {
 	public static final String ACT_DOWNLOADER_FAILREPORT = "dlfails";
 	public static final String ACT_OVERLOAD = "overload";
 
+	// the static range fetch URLs are kept for a short while, so requests for the same file do not each need a round trip to the server. lookups that failed are remembered for a bit less, so we do not keep asking for files the server cannot provide
+	private static final long STATIC_RANGE_FETCH_TTL = 60000, STATIC_RANGE_FETCH_FAILURE_TTL = 30000;
+	private static final int STATIC_RANGE_FETCH_TIMEOUT = 30000, STATIC_RANGE_FETCH_PRUNE_SIZE = 1000;
+
 	private HentaiAtHomeClient client;
 	private static boolean loginValidated = false;
 	private long lastOverloadNotification;
+	private ConcurrentHashMap<String, StaticRangeFetch> staticRangeFetches = new ConcurrentHashMap<String, StaticRangeFetch>();
+
+	// a static range fetch URL lookup, which is in progress until the latch is released. requests for the same file that arrive in the meantime wait for it instead of making their own
+	private static class StaticRangeFetch {
+		private CountDownLatch done = new CountDownLatch(1);
+		private URL[] urls = null;
+		private long expires = 0;
+
+		public void complete(URL[] urls) {
+			this.urls = urls;
+			expires = System.currentTimeMillis() + (urls == null ? STATIC_RANGE_FETCH_FAILURE_TTL : STATIC_RANGE_FETCH_TTL);
+			done.countDown();
+		}
+
+		public boolean isDone() {
+			return done.getCount() == 0;
+		}
+
+		public URL[] await() {
+			try {
+				done.await();
+			}
+			catch(InterruptedException e) {
+				return null;
+			}
+
+			return urls;
+		}
+	}
 
 	public ServerHandler(HentaiAtHomeClient client) {
 		this.client = client;
@@ -85,10 +121,6 @@ public class ServerHandler {
 	private boolean simpleNotification(String act, String humanReadable) {
 		ServerResponse sr = ServerResponse.getServerResponse(act, this);
 
-		if(sr.getResponseStatus() == ServerResponse.RESPONSE_STATUS_NULL) {
-			Settings.markRPCServerFailure(sr.getFailHost());
-		}
-
 		if(sr.getResponseStatus() == ServerResponse.RESPONSE_STATUS_OK) {
 			Out.debug(humanReadable + " notification successful.");
 			return true;
@@ -132,10 +164,6 @@ public class ServerHandler {
 	public boolean notifyStart() {
 		ServerResponse sr = ServerResponse.getServerResponse(ACT_CLIENT_START, this);
 
-		if(sr.getResponseStatus() == ServerResponse.RESPONSE_STATUS_NULL) {
-			Settings.markRPCServerFailure(sr.getFailHost());
-		}
-
 		if(sr.getResponseStatus() == ServerResponse.RESPONSE_STATUS_OK) {
 			Out.info("Start notification successful. There may be a short wait before the server registers this client on the network.");
 			Stats.serverContact();
@@ -197,10 +225,6 @@ public class ServerHandler {
 		URL blacklistURL = getServerConnectionURL(ACT_GET_BLACKLIST, "" + deltatime);
 		ServerResponse sr = ServerResponse.getServerResponse(blacklistURL, this);
 
-		if(sr.getResponseStatus() == ServerResponse.RESPONSE_STATUS_NULL) {
-			Settings.markRPCServerFailure(sr.getFailHost());
-		}
-
 		if(sr.getResponseStatus() == ServerResponse.RESPONSE_STATUS_OK) {
 			return sr.getResponseText();
 		}
@@ -250,10 +274,6 @@ public class ServerHandler {
 		Out.info("Refreshing Hentai@Home client settings from server...");
 		ServerResponse sr = ServerResponse.getServerResponse(ServerHandler.ACT_CLIENT_SETTINGS, this);
 
-		if(sr.getResponseStatus() == ServerResponse.RESPONSE_STATUS_NULL) {
-			Settings.markRPCServerFailure(sr.getFailHost());
-		}
-
 		if(sr.getResponseStatus() == ServerResponse.RESPONSE_STATUS_OK) {
 			Settings.parseAndUpdateSettings(sr.getResponseText());
 			Out.info("Finished applying settings");
@@ -270,10 +290,6 @@ public class ServerHandler {
 		// get timestamp and minimum client build from server
 		ServerResponse sr = ServerResponse.getServerResponse(ServerHandler.ACT_SERVER_STAT, this);
 
-		if(sr.getResponseStatus() == ServerResponse.RESPONSE_STATUS_NULL) {
-			Settings.markRPCServerFailure(sr.getFailHost());
-		}
-
 		if(sr.getResponseStatus() == ServerResponse.RESPONSE_STATUS_OK) {
 			Settings.parseAndUpdateSettings(sr.getResponseText());
 			return true;
@@ -284,13 +300,69 @@ public class ServerHandler {
 	}
 
 	public URL[] getStaticRangeFetchURL(String fileindex, String xres, String fileid) {
-		URL requestURL = getServerConnectionURL(ACT_STATIC_RANGE_FETCH, fileindex + ";" + xres + ";" + fileid);
-		ServerResponse sr = ServerResponse.getServerResponse(requestURL, this);
+		// the RPC only takes one file at a time, so misses for different files cannot be combined, but concurrent misses for the same file share a single lookup
+		String key = fileindex + ";" + xres + ";" + fileid;
+
+		while(true) {
+			StaticRangeFetch fetch = staticRangeFetches.get(key);
+
+			if(fetch != null) {
+				if(!fetch.isDone()) {
+					Out.debug("Waiting for the running static range fetch of " + fileid);
+					return fetch.await();
+				}
+
+				if(fetch.expires > System.currentTimeMillis()) {
+					Out.debug("Using the cached static range fetch of " + fileid + (fetch.urls == null ? ", which failed" : ""));
+					return fetch.urls;
+				}
+
+				staticRangeFetches.remove(key, fetch);
+			}
+
+			StaticRangeFetch newFetch = new StaticRangeFetch();
+
+			if(staticRangeFetches.putIfAbsent(key, newFetch) == null) {
+				URL[] urls = null;
+
+				if(staticRangeFetches.size() > STATIC_RANGE_FETCH_PRUNE_SIZE) {
+					pruneStaticRangeFetches();
+				}
+
+				ServerResponse sr = null;
+
+				try {
+					sr = ServerResponse.getServerResponse(getServerConnectionURL(ACT_STATIC_RANGE_FETCH, key), this, STATIC_RANGE_FETCH_TIMEOUT);
+					urls = parseStaticRangeFetchURLs(sr, fileid);
+				}
+				finally {
+					if(sr == null || sr.getResponseStatus() == ServerResponse.RESPONSE_STATUS_NULL) {
+						// no answer or a temporarily unavailable server says nothing about the file, so only the requests already waiting get the failure and the next one asks again
+						staticRangeFetches.remove(key, newFetch);
+					}
+
+					newFetch.complete(urls);
+				}
 
-		if(sr.getResponseStatus() == ServerResponse.RESPONSE_STATUS_NULL) {
-			Settings.markRPCServerFailure(sr.getFailHost());
+				return urls;
+			}
 		}
+	}
+
+	private void pruneStaticRangeFetches() {
+		long nowtime = System.currentTimeMillis();
+		Iterator<StaticRangeFetch> iterator = staticRangeFetches.values().iterator();
 
+		while(iterator.hasNext()) {
+			StaticRangeFetch fetch = iterator.next();
+
+			if(fetch.isDone() && fetch.expires < nowtime) {
+				iterator.remove();
+			}
+		}
+	}
+
+	private URL[] parseStaticRangeFetchURLs(ServerResponse sr, String fileid) {
 		if(sr.getResponseStatus() == ServerResponse.RESPONSE_STATUS_OK) {
 			String[] response = sr.getResponseText();
 
@@ -315,10 +387,6 @@ public class ServerHandler {
 		URL requestURL = getServerConnectionURL(ACT_DOWNLOADER_FETCH, gid + ";" + page + ";" + fileindex + ";" + xres + ";" + fileretry);
 		ServerResponse sr = ServerResponse.getServerResponse(requestURL, this);
 
-		if(sr.getResponseStatus() == ServerResponse.RESPONSE_STATUS_NULL) {
-			Settings.markRPCServerFailure(sr.getFailHost());
-		}
-
 		if(sr.getResponseStatus() == ServerResponse.RESPONSE_STATUS_OK) {
 			String[] response = sr.getResponseText();
 
@@ -356,10 +424,6 @@ public class ServerHandler {
 
 		ServerResponse sr = ServerResponse.getServerResponse(getServerConnectionURL(ACT_DOWNLOADER_FAILREPORT, s.toString()), this);
 
-		if(sr.getResponseStatus() == ServerResponse.RESPONSE_STATUS_NULL) {
-			Settings.markRPCServerFailure(sr.getFailHost());
-		}
-
 		Out.debug("Reported " + failcount + " download failures with response " + (sr.getResponseStatus() == ServerResponse.RESPONSE_STATUS_OK ? "OK" : "FAIL"));
 	}
 
@@ -50,29 +50,44 @@ public class ServerResponse {
 
 	public static ServerResponse getServerResponse(String act, ServerHandler retryhandler) {
 		URL	serverConnectionURL = ServerHandler.getServerConnectionURL(act);
-		return getServerResponse(serverConnectionURL, retryhandler, act);
+		return getServerResponse(serverConnectionURL, retryhandler, act, 3600000);
 	}
 
 	public static ServerResponse getServerResponse(URL serverConnectionURL, ServerHandler retryhandler) {
-		return getServerResponse(serverConnectionURL, retryhandler, null);
+		return getServerResponse(serverConnectionURL, retryhandler, null, 3600000);
 	}
 
-	private static ServerResponse getServerResponse(URL serverConnectionURL, ServerHandler retryhandler, String retryact) {
-		FileDownloader dler = new FileDownloader(serverConnectionURL, 3600000, 3600000);
+	public static ServerResponse getServerResponse(URL serverConnectionURL, ServerHandler retryhandler, int timeout) {
+		// for the calls that a client request is waiting on, which should give up long before the default of an hour
+		return getServerResponse(serverConnectionURL, retryhandler, null, timeout);
+	}
+
+	private static ServerResponse getServerResponse(URL serverConnectionURL, ServerHandler retryhandler, String retryact, int timeout) {
+		String rpcHost = serverConnectionURL.getHost().toLowerCase();
+		long startTime = System.currentTimeMillis();
+		FileDownloader dler = new FileDownloader(serverConnectionURL, timeout, timeout);
 		String serverResponse = dler.getResponseAsString("ASCII");
 
+		// any answer other than these counts as the server being healthy, as the failure codes are about the request and not the server
+		if(serverResponse == null || serverResponse.startsWith("TEMPORARILY_UNAVAILABLE")) {
+			RPCServerHealth.recordFailure(rpcHost, startTime);
+		}
+		else {
+			RPCServerHealth.recordSuccess(rpcHost, System.currentTimeMillis() - startTime);
+		}
+
 		if(serverResponse == null) {
-			return new ServerResponse(RESPONSE_STATUS_NULL, "NO_RESPONSE", serverConnectionURL.getHost().toLowerCase());
+			return new ServerResponse(RESPONSE_STATUS_NULL, "NO_RESPONSE", rpcHost);
 		}
 
 		Out.debug("Received response: " + serverResponse);
 		String[] split = serverResponse.split("\n");
 
 		if(split.length < 1) {
-			return new ServerResponse(RESPONSE_STATUS_NULL, "NO_RESPONSE", serverConnectionURL.getHost().toLowerCase());
+			return new ServerResponse(RESPONSE_STATUS_NULL, "NO_RESPONSE", rpcHost);
 		}
 		else if(split[0].startsWith("TEMPORARILY_UNAVAILABLE")) {
-			return new ServerResponse(RESPONSE_STATUS_NULL, "TEMPORARILY_UNAVAILABLE", serverConnectionURL.getHost().toLowerCase());
+			return new ServerResponse(RESPONSE_STATUS_NULL, "TEMPORARILY_UNAVAILABLE", rpcHost);
 		}
 		else if(split[0].equals("OK")) {
 			return new ServerResponse(RESPONSE_STATUS_OK, Arrays.copyOfRange(split, 1, split.length));
@@ -83,7 +98,7 @@ public class ServerResponse {
 			return getServerResponse(ServerHandler.getServerConnectionURL(retryact), null);
 		}
 		else {
-			return new ServerResponse(RESPONSE_STATUS_FAIL, split[0], serverConnectionURL.getHost().toLowerCase());
+			return new ServerResponse(RESPONSE_STATUS_FAIL, split[0], rpcHost);
 		}
 	}
 
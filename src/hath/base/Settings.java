@@ -37,6 +37,10 @@ public class Settings {
 	public static final int MAX_KEY_TIME_DRIFT = 300;
 	public static final int MAX_CONNECTION_BASE = 20;
 	public static final int TCP_PACKET_SIZE = 1460;
+	// the most data that fits in a single TLS record. TLS 1.3 spends one byte of the 16384 byte limit on the content type and 16 on the AEAD tag
+	public static final int TLS_RECORD_SIZE = 16384 - 17;
+	public static final int TLS_SMALL_RECORD_SIZE = 1400;
+	public static final int TLS_SMALL_RECORD_BYTES = 14000;
 
 	public static final String CLIENT_VERSION = "1.6.4";
 	public static final String CLIENT_RPC_PROTOCOL = "http://";
@@ -47,17 +51,17 @@ public class Settings {
 	private static HentaiAtHomeClient activeClient = null;
 	private static HathGUI activeGUI = null;
 	private static Proxy imageProxy = null;
-	private static Object rpcServerLock = new Object();
-	private static InetAddress rpcServers[] = null;
-	private static String rpcServerCurrent = null, rpcServerLastFailed = null, imageProxyType = null, imageProxyHost = null;
+	// lock-free copies of the RPC server list and the client host for the accept loop, rebuilt whenever those settings change
+	private static volatile NetworkMatcher rpcServerMatcher = NetworkMatcher.EMPTY, clientHostMatcher = NetworkMatcher.EMPTY;
+	private static String imageProxyType = null, imageProxyHost = null;
 	private static Hashtable<String, Integer> staticRanges = null;
 	private static File datadir = null, logdir = null, cachedir = null, tempdir = null, downloaddir = null;
 	private static String clientKey = "", clientHost = "", dataDirPath = "data", logDirPath = "log", cacheDirPath = "cache", tempDirPath = "tmp", downloadDirPath = "download", rpcPath = "15/rpc?";
 
 	private static short rpcServerPort = 80;
-	private static int clientID = 0, clientPort = 0, throttle_bytes = 0, overrideConns = 0, serverTimeDelta = 0, maxAllowedFileSize = 1073741824, currentStaticRangeCount = 0, maxFilenameLength = 125, imageProxyPort = 0;
+	private static int clientID = 0, clientPort = 0, throttle_bytes = 0, overrideConns = 0, serverTimeDelta = 0, maxAllowedFileSize = 1073741824, currentStaticRangeCount = 0, maxFilenameLength = 125, imageProxyPort = 0, eventLoopThreads = 0, maxKeepAliveRequests = 100, keepAliveTimeout = 15, maxHandshakesPerIP = 8, throttleBurstBytes = 0, proxyBufferMB = 64, proxyParallelThresholdMB = 8, proxyParallelParts = 4, upstreamMaxIdleConnections = 16, downloadThreads = 4;
 	private static long disklimit_bytes = 0, diskremaining_bytes = 0, fileSystemBlocksize = 4096;
-	private static boolean verifyCache = false, rescanCache = false, skipFreeSpaceCheck = false, warnNewClient = false, useLessMemory = false, disableBWM = false, disableDownloadBWM = false, disableFileVerification = false, disableLogs = false, flushLogs = false, disableIPOriginCheck = false, disableFloodControl = false;
+	private static boolean verifyCache = false, rescanCache = false, skipFreeSpaceCheck = false, warnNewClient = false, useLessMemory = false, disableBWM = false, disableDownloadBWM = false, disableFileVerification = false, disableLogs = false, flushLogs = false, disableIPOriginCheck = false, disableFloodControl = false, useBlockingIO = false, useVirtualThreads = false, disableHTTP2 = false, disableShortestFirst = false, disableUpstreamKeepAlive = false;
 
 	public static void setActiveClient(HentaiAtHomeClient client) {
 		activeClient = client;
@@ -204,36 +208,26 @@ public class Settings {
 				rpcServerPort = Short.parseShort(value);
 			}
 			else if(setting.equals("rpc_server_ip")) {
-				synchronized(rpcServerLock) {
-					String[] split = value.split(";");
-					rpcServers = new InetAddress[split.length];
-					int i = 0;
-					boolean keepCurrent = false;
-
-					for(String s : split) {
-						InetAddress rpcServer = InetAddress.getByName(s);
-						rpcServers[i++] = rpcServer;
-
-						if(rpcServerCurrent != null) {
-							if(rpcServerCurrent.equals(rpcServer.getHostAddress().toLowerCase())) {
-								keepCurrent = true;
-							}
-						}
-					}
-
-					if(keepCurrent) {
-						Out.debug("Keeping current rpcServerCurrent=" + rpcServerCurrent);
-					}
-					else {
-						rpcServerCurrent = null;
-					}
+				String[] split = value.split(";");
+				String[] rpcServerAddresses = new String[split.length];
+				String[] rpcServerHosts = new String[split.length];
+				int i = 0;
+
+				for(String s : split) {
+					InetAddress rpcServer = InetAddress.getByName(s);
+					rpcServerAddresses[i] = rpcServer.getHostAddress();
+					rpcServerHosts[i++] = rpcServer.getHostAddress().toLowerCase();
 				}
+
+				rpcServerMatcher = new NetworkMatcher(rpcServerAddresses);
+				RPCServerHealth.setServers(rpcServerHosts);
 			}
 			else if(setting.equals("rpc_path")) {
 				rpcPath = value;
 			}
 			else if(setting.equals("host")) {
 				clientHost = value;
+				clientHostMatcher = new NetworkMatcher(new String[] {value.replace("::ffff:", "")});
 			}
 			else if(setting.equals("port")) {
 				if( clientPort == 0 ) {
@@ -295,6 +289,51 @@ public class Settings {
 			else if(setting.equals("disable_flood_control")) {
 				disableFloodControl = value.equals("true");
 			}
+			else if(setting.equals("use_blocking_io")) {
+				useBlockingIO = value.equals("true");
+			}
+			else if(setting.equals("disable_http2")) {
+				disableHTTP2 = value.equals("true");
+			}
+			else if(setting.equals("disable_shortest_first")) {
+				disableShortestFirst = value.equals("true");
+			}
+			else if(setting.equals("use_virtual_threads")) {
+				useVirtualThreads = value.equals("true");
+			}
+			else if(setting.equals("event_loop_threads")) {
+				eventLoopThreads = Integer.parseInt(value);
+			}
+			else if(setting.equals("max_keepalive_requests")) {
+				maxKeepAliveRequests = Integer.parseInt(value);
+			}
+			else if(setting.equals("throttle_burst_bytes")) {
+				throttleBurstBytes = Integer.parseInt(value);
+			}
+			else if(setting.equals("max_handshakes_per_ip")) {
+				maxHandshakesPerIP = Integer.parseInt(value);
+			}
+			else if(setting.equals("proxy_buffer_mb")) {
+				proxyBufferMB = Integer.parseInt(value);
+			}
+			else if(setting.equals("proxy_parallel_threshold_mb")) {
+				proxyParallelThresholdMB = Integer.parseInt(value);
+			}
+			else if(setting.equals("proxy_parallel_parts")) {
+				proxyParallelParts = Integer.parseInt(value);
+			}
+			else if(setting.equals("upstream_max_idle_connections")) {
+				upstreamMaxIdleConnections = Integer.parseInt(value);
+			}
+			else if(setting.equals("download_threads")) {
+				downloadThreads = Integer.parseInt(value);
+			}
+			else if(setting.equals("disable_upstream_keepalive")) {
+				disableUpstreamKeepAlive = value.equals("true");
+			}
+			else if(setting.equals("keepalive_timeout")) {
+				keepAliveTimeout = Integer.parseInt(value);
+			}
 			else if(setting.equals("skip_free_space_check")) {
 				skipFreeSpaceCheck = value.equals("true");
 			}
@@ -423,6 +462,38 @@ public class Settings {
 		return throttle_bytes;
 	}
 
+	public static int getThrottleBurstBytes() {
+		// zero or less uses the default, which depends on the throttle
+		return throttleBurstBytes;
+	}
+
+	public static long getProxyBufferBytes() {
+		// zero disables the memory buffers, and all proxied files are then passed through the disk
+		return Math.max(0, proxyBufferMB) * 1048576L;
+	}
+
+	public static long getProxyParallelThresholdBytes() {
+		return Math.max(0, proxyParallelThresholdMB) * 1048576L;
+	}
+
+	public static int getProxyParallelParts() {
+		// one part disables parallel downloads
+		return Math.max(1, proxyParallelParts);
+	}
+
+	public static int getDownloadThreads() {
+		// the number of files of a gallery that the downloader fetches at the same time
+		return Math.max(1, downloadThreads);
+	}
+
+	public static int getUpstreamMaxIdleConnections() {
+		return Math.max(1, upstreamMaxIdleConnections);
+	}
+
+	public static boolean isDisableUpstreamKeepAlive() {
+		return disableUpstreamKeepAlive;
+	}
+
 	public static int getMaxAllowedFileSize() {
 		return maxAllowedFileSize;
 	}
@@ -507,6 +578,45 @@ public class Settings {
 		return disableFloodControl;
 	}
 	
+	public static boolean isUseBlockingIO() {
+		return useBlockingIO;
+	}
+
+	public static boolean isDisableHTTP2() {
+		return disableHTTP2;
+	}
+
+	public static boolean isDisableShortestFirst() {
+		return disableShortestFirst;
+	}
+
+	public static boolean isUseVirtualThreads() {
+		return useVirtualThreads;
+	}
+
+	public static int getEventLoopThreads() {
+		if(eventLoopThreads > 0) {
+			return eventLoopThreads;
+		}
+
+		// disk reads for cached files are done directly on the event loops, so we use a couple per core to keep a slow disk from stalling the network side
+		return Math.max(2, Runtime.getRuntime().availableProcessors() * 2);
+	}
+
+	public static int getMaxKeepAliveRequests() {
+		// setting this to 1 or less disables persistent connections
+		return maxKeepAliveRequests;
+	}
+
+	public static int getMaxHandshakesPerIP() {
+		// zero or less disables the limit
+		return maxHandshakesPerIP;
+	}
+
+	public static int getKeepAliveTimeout() {
+		return Math.max(1, Math.min(300, keepAliveTimeout));
+	}
+
 	public static boolean isImageProxyEnabled() {
 		return imageProxyHost != null;
 	}
@@ -572,23 +682,15 @@ public class Settings {
 	}
 
 	public static boolean isValidRPCServer(InetAddress compareTo) {
-		if(disableIPOriginCheck) {
-			return true;
-		}
-		
-		synchronized(rpcServerLock) {
-			if(rpcServers == null) {
-				return false;
-			}
+		return disableIPOriginCheck || rpcServerMatcher.matches(compareTo);
+	}
 
-			for(InetAddress i : rpcServers) {
-				if(i.equals(compareTo)) {
-					return true;
-				}
-			}
+	public static boolean isValidRPCServer(byte[] address) {
+		return disableIPOriginCheck || rpcServerMatcher.matches(address);
+	}
 
-			return false;
-		}
+	public static boolean isClientHost(byte[] address) {
+		return clientHostMatcher.matches(address);
 	}
 
 	public static String getRPCPath() {
@@ -596,64 +698,13 @@ public class Settings {
 	}
 
 	public static String getRPCServerHost() {
-		synchronized(rpcServerLock) {
-			if(rpcServerCurrent == null) {
-				if(rpcServers == null) {
-					return Settings.CLIENT_RPC_HOST;
-				}
-
-				if(rpcServers.length < 1) {
-					return Settings.CLIENT_RPC_HOST;
-				}
-
-				if(rpcServers.length == 1) {
-					rpcServerCurrent = rpcServers[0].getHostAddress().toLowerCase();
-				}
-				else {
-					int rpcServerSelector = (int) (Math.random() * rpcServers.length);
-					int scanDirection = Math.random() < 0.5 ? -1 : 1;
-
-					while(true) {
-						String candidate = rpcServers[(rpcServers.length + rpcServerSelector) % rpcServers.length].getHostAddress().toLowerCase();
-
-						if(rpcServerLastFailed != null) {
-							if(candidate.equals(rpcServerLastFailed)) {
-								Out.debug(rpcServerLastFailed + " was marked as last failed");
-								rpcServerSelector += scanDirection;
-								continue;
-							}
-						}
-
-						rpcServerCurrent = candidate;
-						Out.debug("Selected rpcServerCurrent=" + rpcServerCurrent);
-						break;
-					}
-				}
-			}
+		String rpcServer = RPCServerHealth.selectServer();
 
-			return rpcServerCurrent + (rpcServerPort == 80 ? "" : ":" + rpcServerPort);
+		if(rpcServer == null) {
+			return Settings.CLIENT_RPC_HOST;
 		}
-	}
 
-	public static void clearRPCServerFailure() {
-		synchronized(rpcServerLock) {
-			if(rpcServerLastFailed != null) {
-				// to avoid long-term uneven loads on the RPC servers in case one of them goes down for a bit, we run this occasionally to clear the failure
-				Out.debug("Cleared rpcServerLastFailed");
-				rpcServerLastFailed = null;
-				rpcServerCurrent = null;
-			}
-		}
-	}
-	
-	public static void markRPCServerFailure(String failHost) {
-		synchronized(rpcServerLock) {
-			if(rpcServerCurrent != null) {
-				Out.debug("Marking " + failHost + " as rpcServerLastFailed");
-				rpcServerLastFailed = failHost;
-				rpcServerCurrent = null;
-			}
-		}
+		return rpcServer + (rpcServerPort == 80 ? "" : ":" + rpcServerPort);
 	}
 
 	public static int getMaxConnections() {
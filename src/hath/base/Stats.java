@@ -43,6 +43,11 @@ public class Stats {
 	private static int openConnections;
 	private static int lastServerContact;
 
+	// response latency by size class, for showing how the bandwidth scheduling treats small and large files. reset every time the summary is taken
+	private static final long[] LATENCY_CLASS_LIMITS = {262144, 4194304, Long.MAX_VALUE};
+	private static final String[] LATENCY_CLASS_NAMES = {"<256KB", "<4MB", ">=4MB"};
+	private static long[] latencyCount = new long[3], firstByteNanos = new long[3], maxFirstByteNanos = new long[3], totalNanos = new long[3];
+
 	static {
 		statListeners = new ArrayList<StatListener>();
 		resetStats();
@@ -179,6 +184,19 @@ public class Stats {
 		statChanged("bytesSent");
 	}
 
+	public static synchronized void responseSent(long bytes, long firstByte, long total) {
+		int sizeClass = 0;
+
+		while(bytes >= LATENCY_CLASS_LIMITS[sizeClass]) {
+			++sizeClass;
+		}
+
+		++latencyCount[sizeClass];
+		firstByteNanos[sizeClass] += firstByte;
+		maxFirstByteNanos[sizeClass] = Math.max(maxFirstByteNanos[sizeClass], firstByte);
+		totalNanos[sizeClass] += total;
+	}
+
 	public static void bytesRcvd(int b) {
 		if(clientRunning) {
 			bytesRcvd += b;
@@ -272,6 +290,33 @@ public class Stats {
 		return Settings.getDiskLimitBytes() != 0 ? cacheSize / (float) Settings.getDiskLimitBytes() : 0;
 	}
 
+	// returns the response latency per size class since the last call, or null if no responses were sent
+	public static synchronized String getResponseLatencySummary() {
+		StringBuilder sb = null;
+
+		for(int i = 0; i < LATENCY_CLASS_NAMES.length; i++) {
+			if(latencyCount[i] > 0) {
+				sb = sb == null ? new StringBuilder("Response latency by size: ") : sb.append("; ");
+				sb.append(LATENCY_CLASS_NAMES[i]).append(" n=").append(latencyCount[i]);
+				sb.append(" first byte avg=").append(firstByteNanos[i] / latencyCount[i] / 1000000).append("ms max=").append(maxFirstByteNanos[i] / 1000000).append("ms");
+				sb.append(" total avg=").append(totalNanos[i] / latencyCount[i] / 1000000).append("ms");
+			}
+
+			latencyCount[i] = 0;
+			firstByteNanos[i] = 0;
+			maxFirstByteNanos[i] = 0;
+			totalNanos[i] = 0;
+		}
+
+		return sb == null ? null : sb.toString();
+	}
+
+	// returns the health of each RPC server, or null if the server has not sent the list yet
+	public static String getRPCServerSummary() {
+		String summary = RPCServerHealth.getSummary();
+		return summary.length() == 0 ? null : "RPC server health: " + summary;
+	}
+
 	public static int getOpenConnections() {
 		return openConnections;
 	}
@@ -34,10 +34,39 @@ import java.nio.channels.FileChannel;
 import java.nio.file.StandardOpenOption;
 import java.util.Arrays;
 import java.util.Hashtable;
+import java.util.concurrent.ThreadFactory;
 import java.security.MessageDigest;
 import java.lang.StringBuilder;
 
 public class Tools {
+	private static ThreadFactory threadFactory = null;
+
+	public static Thread createThread(Runnable runnable) {
+		return getThreadFactory().newThread(runnable);
+	}
+
+	public static synchronized ThreadFactory getThreadFactory() {
+		if(threadFactory == null) {
+			if(Settings.isUseVirtualThreads()) {
+				try {
+					// Thread.ofVirtual() was added in Java 21. it is looked up through reflection, as the client still has to build and run on Java 8
+					Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+					threadFactory = (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+					Out.info("Using virtual threads for HTTP sessions and downloads");
+				}
+				catch(Exception e) {
+					Out.warning("Virtual threads are not supported by Java " + System.getProperty("java.version") + ", falling back to platform threads");
+				}
+			}
+
+			if(threadFactory == null) {
+				threadFactory = new PlatformThreadFactory();
+			}
+		}
+
+		return threadFactory;
+	}
+
 	public static File checkAndCreateDir(File dir) throws java.io.IOException {
 		if(dir.isFile()) {
 			dir.delete();
@@ -169,4 +198,10 @@ public class Tools {
 		
 		return sb.toString().toLowerCase();
 	}
+
+	private static class PlatformThreadFactory implements ThreadFactory {
+		public Thread newThread(Runnable runnable) {
+			return new Thread(runnable);
+		}
+	}
 }